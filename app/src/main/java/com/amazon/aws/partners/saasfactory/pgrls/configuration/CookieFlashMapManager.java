@@ -0,0 +1,127 @@
+/**
+ * Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.amazon.aws.partners.saasfactory.pgrls.configuration;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.web.servlet.FlashMap;
+import org.springframework.web.servlet.support.AbstractFlashMapManager;
+import org.springframework.web.util.WebUtils;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps flash attributes (the messages shown after a redirect) in a signed cookie instead of the
+ * HttpSession, so the request after the redirect can land on any instance. Values come back as
+ * JSON types, strings, numbers, lists and maps, so flash attributes should be plain values.
+ */
+public class CookieFlashMapManager extends AbstractFlashMapManager {
+
+    public static final String COOKIE = "FLASH";
+    private static final Logger LOGGER = LoggerFactory.getLogger(CookieFlashMapManager.class);
+    // Browsers drop cookies over 4KB, leave room for the name and attributes
+    private static final int MAX_COOKIE_LENGTH = 3800;
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final TypeReference<List<StoredFlashMap>> STORED = new TypeReference<List<StoredFlashMap>>() {};
+
+    private final TenantTokens tokens;
+
+    public CookieFlashMapManager(TenantTokens tokens) {
+        this.tokens = tokens;
+    }
+
+    @Override
+    protected List<FlashMap> retrieveFlashMaps(HttpServletRequest request) {
+        Cookie cookie = WebUtils.getCookie(request, COOKIE);
+        byte[] payload = cookie != null ? tokens.open(cookie.getValue()) : null;
+        if (payload == null) {
+            return null;
+        }
+        try {
+            List<FlashMap> flashMaps = new ArrayList<>();
+            for (StoredFlashMap stored : JSON.readValue(payload, STORED)) {
+                FlashMap flashMap = new FlashMap();
+                flashMap.setTargetRequestPath(stored.path);
+                flashMap.addTargetRequestParams(new LinkedMultiValueMap<>(stored.params));
+                flashMap.setExpirationTime(stored.expires);
+                flashMap.putAll(stored.attributes);
+                flashMaps.add(flashMap);
+            }
+            return flashMaps;
+        } catch (IOException e) {
+            LOGGER.warn("Ignoring unreadable flash cookie", e);
+            return null;
+        }
+    }
+
+    @Override
+    protected void updateFlashMaps(List<FlashMap> flashMaps, HttpServletRequest request, HttpServletResponse response) {
+        if (flashMaps.isEmpty()) {
+            tokens.write(request, response, COOKIE, "", Duration.ZERO);
+            return;
+        }
+        List<StoredFlashMap> stored = new ArrayList<>();
+        for (FlashMap flashMap : flashMaps) {
+            stored.add(new StoredFlashMap(flashMap));
+        }
+        try {
+            String value = tokens.seal(JSON.writeValueAsBytes(stored));
+            if (value.length() > MAX_COOKIE_LENGTH) {
+                LOGGER.warn("Flash attributes too large for a cookie ({} characters), dropping them", value.length());
+                value = "";
+            }
+            tokens.write(request, response, COOKIE, value, value.isEmpty() ? Duration.ZERO : Duration.ofSeconds(getFlashMapTimeout()));
+        } catch (IOException e) {
+            LOGGER.error("Error writing flash cookie", e);
+        }
+    }
+
+    // Every request brings its own copy of the cookie, there is nothing shared to lock
+    @Override
+    protected Object getFlashMapsMutex(HttpServletRequest request) {
+        return null;
+    }
+
+    static class StoredFlashMap {
+
+        public String path;
+        public Map<String, List<String>> params = new LinkedHashMap<>();
+        public long expires;
+        public Map<String, Object> attributes = new LinkedHashMap<>();
+
+        StoredFlashMap() {
+        }
+
+        StoredFlashMap(FlashMap flashMap) {
+            path = flashMap.getTargetRequestPath();
+            params.putAll(flashMap.getTargetRequestParams());
+            expires = flashMap.getExpirationTime();
+            attributes.putAll(flashMap);
+        }
+    }
+}
@@ -16,26 +16,32 @@
  */
 package com.amazon.aws.partners.saasfactory.pgrls.configuration;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-
 import com.amazon.aws.partners.saasfactory.pgrls.repository.DataSourceRepository;
+import com.amazon.aws.partners.saasfactory.pgrls.repository.TenantDataSourceCache;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 /**
  * Creates a singleton (shared Spring application wide) cache of active
- * tenants and their data source connection pools.
+ * tenants and their data source connection pools. The cache is bounded
+ * so that tenants who never log out (expired sessions, closed browsers)
+ * don't hold on to database connections forever.
  * @author mibeard
  * @see DataSourceRepository
  */
 @Configuration
 public class DataSourceCacheConfiguration {
 
+	@Value("${tenant.datasource.cache.maximum-size:100}")
+	private int maximumSize;
+
+	@Value("${tenant.datasource.cache.idle-timeout-seconds:600}")
+	private long idleTimeoutSeconds;
+
 	@Bean
-	public Map<Object, Object> dataSourceTargets() {
-		ConcurrentHashMap<Object, Object> targets = new ConcurrentHashMap<>();
-		return targets;
+	public TenantDataSourceCache dataSourceTargets() {
+		return new TenantDataSourceCache(maximumSize, idleTimeoutSeconds * 1000);
 	}
 
 }
@@ -21,18 +21,29 @@ import org.slf4j.LoggerFactory;
 import org.springframework.boot.context.event.ApplicationContextInitializedEvent;
 import org.springframework.context.ApplicationListener;
 import org.springframework.core.env.Environment;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
 import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.*;
-import java.util.Properties;
-import java.util.Scanner;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 @Component
 public class DatabaseInit implements ApplicationListener<ApplicationContextInitializedEvent> {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(DatabaseInit.class);
+    private static final String MIGRATIONS = "classpath*:db/migration/V*__*.sql";
+    private static final Pattern MIGRATION_NAME = Pattern.compile("V(\\d+)__(\\w+)\\.sql");
+    // Arbitrary application wide key for pg_advisory_xact_lock so only one instance migrates at a time
+    private static final long MIGRATION_LOCK = 0x7067726c73L;
 
     // Execute this database bootstrap sequence after Spring has initialized its
     // context but before any Beans (data sources) are instantiated
@@ -50,34 +61,188 @@ public class DatabaseInit implements ApplicationListener<ApplicationContextIniti
         masterConnectionProperties.put("user", env.getRequiredProperty("admin.datasource.username"));
         masterConnectionProperties.put("password", env.getRequiredProperty("admin.datasource.password"));
 
-        // Bootstrap the database objects. The SQL is written to be idempotent so it can run each time Spring Boot
-        // launches. This bootstrapping creates the tables and RLS policies. The RDS master user will be the owner
-        // of these tables and by default will bypass RLS which is what we need for new tenant on-boarding where
-        // INSERT statements would otherwise fail.
+        // Bootstrap the database objects from the versioned scripts in db/migration. Each script is recorded
+        // in the schema_migration ledger with a checksum once it has run, so a normal startup only reads the
+        // ledger and runs nothing. The scripts are still written to be idempotent so a database created by
+        // older versions of this application, which replayed everything on each launch, can be adopted.
+        // The RDS master user will be the owner of these tables and by default will bypass RLS which is
+        // what we need for new tenant on-boarding where INSERT statements would otherwise fail.
         //
         // This also will create a non root user with full read/write privileges for our application code to connect
         // as. This user will not be the owner of tables or other objects and will be bound by the RLS policies.
-        try (Connection connection = DriverManager.getConnection(jdbcUrl, masterConnectionProperties); Statement sql = connection.createStatement()) {
+        migrate(jdbcUrl, masterConnectionProperties, dbAppUser, dbAppPassword);
+
+        // Optionally move tenant_user to a hash partitioned table. This copies every existing row so it runs in
+        // the background while the application starts and serves requests from the current table.
+        int partitions = env.getProperty("tenant.users.partitions", Integer.class, 0);
+        if (partitions > 0) {
+            int batchSize = env.getProperty("tenant.users.partition-batch-size", Integer.class, 5000);
+            Thread partitioner = new Thread(new TenantUserPartitioner(jdbcUrl, masterConnectionProperties, partitions, batchSize), "tenant-user-partitioner");
+            partitioner.setDaemon(true);
+            partitioner.start();
+        }
+    }
+
+    private static void migrate(String jdbcUrl, Properties masterConnectionProperties, String dbAppUser, String dbAppPassword) {
+        List<Migration> migrations = loadMigrations();
+        try (Connection connection = DriverManager.getConnection(jdbcUrl, masterConnectionProperties)) {
+            // Fast path without taking any locks. Most launches end here.
+            if (pending(migrations, appliedMigrations(connection)).isEmpty()) {
+                LOGGER.info("Database schema is current at version {}", migrations.isEmpty() ? 0 : migrations.get(migrations.size() - 1).version);
+                return;
+            }
             connection.setAutoCommit(false);
-            LOGGER.info("Executing bootstrap database");
-            try (InputStream is = Thread.currentThread().getContextClassLoader().getResourceAsStream("bootstrap.sql")) {
-                Scanner scanner = new Scanner(is, "UTF-8");
-                // Break on blank newline so we can send the DO...END statements as a single statement
-                scanner.useDelimiter("\n\n");
-                while (scanner.hasNext()) {
-                    String stmt = scanner.next()
-                            .replace("{{DB_APP_USER}}", dbAppUser)
-                            .replace("{{DB_APP_PASS}}", dbAppPassword)
-                            .trim();
-                    sql.addBatch(stmt);
+            try (Statement sql = connection.createStatement()) {
+                // Serialise instances starting together. The lock is released when we commit or roll back and
+                // whoever waited re-reads the ledger and will normally find nothing left to do.
+                sql.execute("SELECT pg_advisory_xact_lock(" + MIGRATION_LOCK + ")");
+                sql.execute("CREATE TABLE IF NOT EXISTS schema_migration (" +
+                        "version INTEGER PRIMARY KEY, " +
+                        "description VARCHAR(255) NOT NULL, " +
+                        "checksum VARCHAR(64) NOT NULL, " +
+                        "execution_millis BIGINT NOT NULL, " +
+                        "installed_on TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT now())");
+                // The application user is granted access to new tables by default. RLS without a policy hides
+                // the ledger from it again while the owner still bypasses RLS.
+                sql.execute("ALTER TABLE schema_migration ENABLE ROW LEVEL SECURITY");
+            }
+            List<Migration> pending = pending(migrations, appliedMigrations(connection));
+            for (Migration migration : pending) {
+                LOGGER.info("Applying database migration V{} {}", migration.version, migration.description);
+                long start = System.currentTimeMillis();
+                try (Statement sql = connection.createStatement()) {
+                    for (String stmt : migration.statements()) {
+                        sql.addBatch(stmt
+                                .replace("{{DB_APP_USER}}", dbAppUser)
+                                .replace("{{DB_APP_PASS}}", dbAppPassword)
+                        );
+                    }
+                    sql.executeBatch();
+                }
+                try (PreparedStatement ledger = connection.prepareStatement("INSERT INTO schema_migration (version, description, checksum, execution_millis) VALUES (?, ?, ?, ?)")) {
+                    ledger.setInt(1, migration.version);
+                    ledger.setString(2, migration.description);
+                    ledger.setString(3, migration.checksum);
+                    ledger.setLong(4, System.currentTimeMillis() - start);
+                    ledger.executeUpdate();
                 }
-                int[] count = sql.executeBatch();
-                connection.commit();
-            } catch (IOException ioe) {
-                throw new RuntimeException(ioe);
             }
+            connection.commit();
+            LOGGER.info("Applied {} database migration(s)", pending.size());
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
     }
+
+    static List<Migration> loadMigrations() {
+        return loadMigrations(MIGRATIONS);
+    }
+
+    // Sorted by version, which isn't the order the resources are found in
+    static List<Migration> loadMigrations(String locationPattern) {
+        List<Migration> migrations = new ArrayList<>();
+        try {
+            for (Resource resource : new PathMatchingResourcePatternResolver().getResources(locationPattern)) {
+                Matcher name = MIGRATION_NAME.matcher(String.valueOf(resource.getFilename()));
+                if (!name.matches()) {
+                    throw new IllegalStateException("Migration " + resource.getFilename() + " is not named V<version>__<description>.sql");
+                }
+                String script;
+                try (InputStream is = resource.getInputStream()) {
+                    script = StreamUtils.copyToString(is, StandardCharsets.UTF_8);
+                }
+                migrations.add(new Migration(Integer.parseInt(name.group(1)), name.group(2).replace('_', ' '), script));
+            }
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+        migrations.sort(Comparator.comparingInt(m -> m.version));
+        for (int i = 1; i < migrations.size(); i++) {
+            if (migrations.get(i).version == migrations.get(i - 1).version) {
+                throw new IllegalStateException("Duplicate database migration version " + migrations.get(i).version);
+            }
+        }
+        return migrations;
+    }
+
+    static List<String> statements(String script) {
+        List<String> statements = new ArrayList<>();
+        Scanner scanner = new Scanner(script);
+        // Break on blank newline so we can send the DO...END statements as a single statement
+        scanner.useDelimiter("\n\n");
+        while (scanner.hasNext()) {
+            String stmt = scanner.next().trim();
+            if (!stmt.isEmpty()) {
+                statements.add(stmt);
+            }
+        }
+        return statements;
+    }
+
+    // Checksum of every recorded migration by version, or an empty map when the ledger doesn't exist yet
+    private static Map<Integer, String> appliedMigrations(Connection connection) throws SQLException {
+        Map<Integer, String> applied = new HashMap<>();
+        try (Statement sql = connection.createStatement()) {
+            try (ResultSet rs = sql.executeQuery("SELECT to_regclass('schema_migration') IS NOT NULL")) {
+                rs.next();
+                if (!rs.getBoolean(1)) {
+                    return applied;
+                }
+            }
+            try (ResultSet rs = sql.executeQuery("SELECT version, checksum FROM schema_migration")) {
+                while (rs.next()) {
+                    applied.put(rs.getInt("version"), rs.getString("checksum"));
+                }
+            }
+        }
+        return applied;
+    }
+
+    // Migrations not yet in the ledger. Refuses to start if a script that already ran has been edited
+    // because the database would no longer match what the scripts describe.
+    static List<Migration> pending(List<Migration> migrations, Map<Integer, String> applied) {
+        List<Migration> pending = new ArrayList<>();
+        for (Migration migration : migrations) {
+            String checksum = applied.get(migration.version);
+            if (checksum == null) {
+                pending.add(migration);
+            } else if (!checksum.equals(migration.checksum)) {
+                throw new IllegalStateException("Database migration V" + migration.version + " " + migration.description
+                        + " has changed since it was applied. Add a new migration instead of editing it.");
+            }
+        }
+        return pending;
+    }
+
+    static class Migration {
+        final int version;
+        final String description;
+        final String script;
+        final String checksum;
+
+        Migration(int version, String description, String script) {
+            this.version = version;
+            this.description = description;
+            // Normalise line endings so a checkout on Windows doesn't look like an edited migration
+            this.script = script.replace("\r\n", "\n");
+            this.checksum = sha256(this.script);
+        }
+
+        List<String> statements() {
+            return DatabaseInit.statements(script);
+        }
+
+        private static String sha256(String script) {
+            try {
+                byte[] digest = MessageDigest.getInstance("SHA-256").digest(script.getBytes(StandardCharsets.UTF_8));
+                StringBuilder hex = new StringBuilder();
+                for (byte b : digest) {
+                    hex.append(String.format("%02x", b));
+                }
+                return hex.toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
 }
@@ -16,6 +16,8 @@
  */
 package com.amazon.aws.partners.saasfactory.pgrls.configuration;
 
+import com.amazon.aws.partners.saasfactory.pgrls.domain.Tenant;
+import com.amazon.aws.partners.saasfactory.pgrls.service.AdminService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.security.config.annotation.authentication.builders.AuthenticationManagerBuilder;
@@ -23,7 +25,11 @@ import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.builders.WebSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
 import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
+import org.springframework.security.config.http.SessionCreationPolicy;
+import org.springframework.security.web.authentication.logout.LogoutFilter;
 import org.springframework.security.web.authentication.logout.LogoutSuccessHandler;
+import org.springframework.security.web.csrf.CookieCsrfTokenRepository;
+import org.springframework.security.web.savedrequest.NullRequestCache;
 
 @EnableWebSecurity
 public class SecurityConfiguration extends WebSecurityConfigurerAdapter {
@@ -31,6 +37,13 @@ public class SecurityConfiguration extends WebSecurityConfigurerAdapter {
     @Autowired
     private TenantAuthenticationProvider authenticationProvider;
 
+    @Autowired
+    private AdminService adminService;
+
+    // Only there when tenant.token.enabled is set
+    @Autowired(required = false)
+    private TenantTokens tenantTokens;
+
     @Override
     protected void configure(AuthenticationManagerBuilder auth) throws Exception {
         auth.authenticationProvider(authenticationProvider);
@@ -49,7 +62,7 @@ public class SecurityConfiguration extends WebSecurityConfigurerAdapter {
     @Override
     public void configure(HttpSecurity http) throws Exception {
         http.authorizeRequests()
-                .antMatchers("/", "/health", "/admin/**").permitAll() // no auth
+                .antMatchers("/", "/health", "/metrics", "/admin/**").permitAll() // no auth
                 .antMatchers("/tenant/**").authenticated() // tenant user management is authenticated
             .and() // custom login form
                 .formLogin()
@@ -59,6 +72,33 @@ public class SecurityConfiguration extends WebSecurityConfigurerAdapter {
                 .logout()
                     .logoutSuccessHandler(logoutSuccessHandler())
                     .permitAll(); // anyone can access logout
+        if (tenantTokens != null) {
+            configureStateless(http, tenantTokens);
+        }
+    }
+
+    // No HttpSession. The tenant rides along with every request in a signed cookie so any
+    // instance behind the load balancer can serve it without sticky sessions.
+    private void configureStateless(HttpSecurity http, TenantTokens tokens) throws Exception {
+        http.sessionManagement()
+                .sessionCreationPolicy(SessionCreationPolicy.STATELESS)
+            .and() // nowhere to keep the page that sent us to login
+                .requestCache()
+                    .requestCache(new NullRequestCache())
+            .and() // CSRF token can't live in the session either
+                .csrf()
+                    .csrfTokenRepository(new CookieCsrfTokenRepository())
+            .and()
+                .formLogin()
+                    .successHandler((request, response, authentication) -> {
+                        tokens.write(request, response, (Tenant) authentication.getPrincipal());
+                        response.sendRedirect(request.getContextPath() + "/tenant");
+                    })
+            .and()
+                .logout()
+                    .addLogoutHandler((request, response, authentication) -> tokens.clear(request, response))
+            .and()
+                .addFilterBefore(new TenantTokenFilter(tokens, adminService::getTenant), LogoutFilter.class);
     }
 
 }
@@ -17,6 +17,7 @@
 package com.amazon.aws.partners.saasfactory.pgrls.configuration;
 
 import com.amazon.aws.partners.saasfactory.pgrls.domain.Tenant;
+import com.amazon.aws.partners.saasfactory.pgrls.repository.DataSourceRepository;
 import com.amazon.aws.partners.saasfactory.pgrls.service.AdminService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,6 +40,9 @@ public class TenantAuthenticationProvider implements AuthenticationProvider {
     @Autowired
     AdminService adminService;
 
+    @Autowired
+    DataSourceRepository dataSourceRepository;
+
     // Not a real auth experience here, but lets us create a session which we can use to bind
     // tenant context to our HTTP requests
     @Override
@@ -49,6 +53,11 @@ public class TenantAuthenticationProvider implements AuthenticationProvider {
         try {
             Tenant principal = adminService.getTenant(UUID.fromString(password));
             token = new UsernamePasswordAuthenticationToken(principal, principal.getId(), new ArrayList<>());
+            // Get the tenant's connection pool ready while the browser follows the login redirect. The login
+            // counts towards the tenant's warm-up ranking either way, and is written off the login thread
+            // because warm returns an already completed future when there's no pool to warm.
+            dataSourceRepository.warm(principal)
+                    .whenCompleteAsync((warmed, error) -> adminService.recordLogin(principal.getId()));
         } catch (Exception e) {
             LOGGER.error("Error authenticating", e);
             throw new AuthenticationServiceException("Error authenticating");
@@ -18,7 +18,6 @@ package com.amazon.aws.partners.saasfactory.pgrls.configuration;
 
 import com.amazon.aws.partners.saasfactory.pgrls.domain.Tenant;
 import com.amazon.aws.partners.saasfactory.pgrls.repository.DataSourceRepository;
-import com.zaxxer.hikari.HikariDataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.BeansException;
@@ -31,7 +30,6 @@ import org.springframework.security.web.authentication.logout.SimpleUrlLogoutSuc
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.sql.DataSource;
 import java.io.IOException;
 import java.util.UUID;
 
@@ -48,13 +46,9 @@ public class TenantLogoutHandler extends SimpleUrlLogoutSuccessHandler implement
         LOGGER.info("Tenant logout: removing database connection pool for tenant {}", tenantId);
         // Can't just call databaseConnectionPools.dataSource() because we just logged out the security context
         // principal and we'll get a null pointer when it tries to resolve the pool from it's target map.
-        DataSource connectionPool = (DataSource) databaseConnectionPools.getDataSourceTargets().get(tenantId);
-        // Explicitly close down the connection pool
-        if (connectionPool != null) {
-            ((HikariDataSource) connectionPool).close();
-        }
-        // And remove it from the list of targets
-        databaseConnectionPools.getDataSourceTargets().remove(tenantId);
+        // Evicting removes the pool from the list of targets and closes it once any in-flight connections
+        // are returned. Tenants that never logout are evicted by the cache when they go idle.
+        databaseConnectionPools.getDataSourceTargets().evict(tenantId);
         super.onLogoutSuccess(httpServletRequest, httpServletResponse, authentication);
     }
 
@@ -0,0 +1,89 @@
+/**
+ * Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.amazon.aws.partners.saasfactory.pgrls.configuration;
+
+import com.amazon.aws.partners.saasfactory.pgrls.domain.Tenant;
+import com.amazon.aws.partners.saasfactory.pgrls.repository.DataSourceRepository;
+import com.amazon.aws.partners.saasfactory.pgrls.service.AdminService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Pre-builds the connection pools for the most active tenants when the application starts so
+ * a freshly launched task doesn't make its first users wait on pool creation. The health check
+ * reports unavailable until this has finished (or timed out) so the load balancer holds traffic.
+ */
+@Component
+public class TenantPoolWarmer implements ApplicationListener<ApplicationReadyEvent> {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(TenantPoolWarmer.class);
+
+    @Autowired
+    private AdminService adminService;
+
+    @Autowired
+    private DataSourceRepository dataSourceRepository;
+
+    @Value("${tenant.datasource.warm-up.count:10}")
+    private int count;
+
+    @Value("${tenant.datasource.warm-up.timeout-seconds:60}")
+    private long timeoutSeconds;
+
+    private volatile boolean warm = false;
+
+    @Override
+    public void onApplicationEvent(ApplicationReadyEvent event) {
+        // Never warm more pools than the cache will hold or we'd just evict the ones we built
+        int limit = Math.min(count, dataSourceRepository.getDataSourceTargets().getMaximumSize());
+        if (limit < 1) {
+            warm = true;
+            return;
+        }
+        List<Tenant> tenants = adminService.getHotTenants(limit);
+        LOGGER.info("Warming connection pools for {} tenants", tenants.size());
+        CompletableFuture.allOf(tenants.stream()
+                        .map(dataSourceRepository::warm)
+                        .toArray(CompletableFuture[]::new))
+                .orTimeout(timeoutSeconds, TimeUnit.SECONDS)
+                .whenComplete((result, error) -> {
+                    if (error instanceof TimeoutException) {
+                        LOGGER.warn("Gave up waiting on tenant connection pools to warm after {} seconds", timeoutSeconds);
+                    } else if (error != null) {
+                        // Already logged per tenant, those tenants will build their pools on first use
+                        LOGGER.warn("Finished warming tenant connection pools with errors");
+                    } else {
+                        LOGGER.info("Finished warming tenant connection pools");
+                    }
+                    warm = true;
+                });
+    }
+
+    public boolean isWarm() {
+        return warm;
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.amazon.aws.partners.saasfactory.pgrls.configuration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.FlashMapManager;
+
+/**
+ * Beans for running without server side sessions (tenant.token.enabled). The tenant and the flash
+ * messages that survive a redirect both travel in signed cookies, so any instance can serve any request.
+ * @see SecurityConfiguration
+ */
+@Configuration
+@ConditionalOnProperty(name = "tenant.token.enabled", havingValue = "true")
+public class TenantTokenConfiguration {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(TenantTokenConfiguration.class);
+
+    @Value("${tenant.token.secret:}")
+    private String secret;
+
+    @Value("${tenant.token.ttl-seconds:900}")
+    private long ttlSeconds;
+
+    @Value("${tenant.token.max-age-seconds:43200}")
+    private long maxAgeSeconds;
+
+    @Value("${tenant.datasource.cache.idle-timeout-seconds:600}")
+    private long poolIdleTimeoutSeconds;
+
+    @Bean
+    public TenantTokens tenantTokens() {
+        if (poolIdleTimeoutSeconds <= 0) {
+            // Logout only reaches one instance, the others only let go of a tenant's pool when it goes idle
+            LOGGER.warn("Stateless tenant tokens without an idle timeout keep tenant connection pools until the cache is full");
+        }
+        return new TenantTokens(secret, ttlSeconds * 1000, maxAgeSeconds * 1000);
+    }
+
+    // Spring Boot steps aside for a bean with this name
+    @Bean
+    public FlashMapManager flashMapManager(TenantTokens tenantTokens) {
+        return new CookieFlashMapManager(tenantTokens);
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.amazon.aws.partners.saasfactory.pgrls.configuration;
+
+import com.amazon.aws.partners.saasfactory.pgrls.domain.Tenant;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.UUID;
+import java.util.function.Function;
+
+/**
+ * Authenticates requests from the signed tenant token cookie instead of the HttpSession.
+ * The principal is the same Tenant the login form produces, so the tenant aware data
+ * source routes the request the same way whichever mode we're in. Renewing a token is when it
+ * picks up changes to the tenant, and a tenant that no longer exists loses its token.
+ * @see TenantTokens
+ */
+public class TenantTokenFilter extends OncePerRequestFilter {
+
+    private final TenantTokens tokens;
+    private final Function<UUID, Tenant> tenants;
+
+    /**
+     * @param tenants looks up the tenant as it is now, null if it's gone
+     */
+    public TenantTokenFilter(TenantTokens tokens, Function<UUID, Tenant> tenants) {
+        this.tokens = tokens;
+        this.tenants = tenants;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain) throws ServletException, IOException {
+        String token = tokens.read(request);
+        if (token != null && SecurityContextHolder.getContext().getAuthentication() == null) {
+            TenantTokens.Verified verified = tokens.verify(token);
+            Tenant tenant = verified != null ? verified.getTenant() : null;
+            if (verified != null && tokens.isStale(verified)) {
+                tenant = tenants.apply(verified.getTenant().getId());
+                if (tenant != null) {
+                    tokens.write(request, response, tenant, verified);
+                }
+            }
+            if (tenant != null) {
+                SecurityContextHolder.getContext().setAuthentication(
+                        new UsernamePasswordAuthenticationToken(tenant, tenant.getId(), new ArrayList<>()));
+            } else {
+                // Expired, forged or the tenant was deleted, don't keep sending it
+                tokens.clear(request, response);
+            }
+        }
+        chain.doFilter(request, response);
+    }
+}
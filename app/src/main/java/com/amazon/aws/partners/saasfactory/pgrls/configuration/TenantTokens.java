@@ -0,0 +1,250 @@
+/**
+ * Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.amazon.aws.partners.saasfactory.pgrls.configuration;
+
+import com.amazon.aws.partners.saasfactory.pgrls.domain.Status;
+import com.amazon.aws.partners.saasfactory.pgrls.domain.Tenant;
+import com.amazon.aws.partners.saasfactory.pgrls.domain.Tier;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseCookie;
+import org.springframework.web.util.WebUtils;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.UUID;
+
+/**
+ * Signed, short-lived tenant tokens for running without server side sessions. The token
+ * carries everything the request needs to know about the tenant (id, name, tier and status)
+ * and an HMAC-SHA256 signature, so any instance holding the secret can trust it without
+ * looking the tenant up. Tokens can't be revoked before they expire, keep the lifetime short.
+ * Renewing a token extends it by the lifetime again, but never past maxAgeMillis after login.
+ */
+public class TenantTokens {
+
+    public static final String COOKIE = "TENANT_TOKEN";
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int MIN_SECRET_LENGTH = 32;
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final SecretKeySpec key;
+    private final long ttlMillis;
+    private final long maxAgeMillis;
+    private final Clock clock;
+    // Mac instances aren't thread safe
+    private final ThreadLocal<Mac> macs;
+
+    public TenantTokens(String secret, long ttlMillis, long maxAgeMillis) {
+        this(secret, ttlMillis, maxAgeMillis, Clock.systemUTC());
+    }
+
+    public TenantTokens(String secret, long ttlMillis, long maxAgeMillis, Clock clock) {
+        if (secret == null || secret.length() < MIN_SECRET_LENGTH) {
+            throw new IllegalArgumentException("Tenant token secret must be at least " + MIN_SECRET_LENGTH + " characters");
+        }
+        if (ttlMillis <= 0 || maxAgeMillis < ttlMillis) {
+            throw new IllegalArgumentException("Tenant token lifetime must be positive and no longer than its maximum age");
+        }
+        this.key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+        this.ttlMillis = ttlMillis;
+        this.maxAgeMillis = maxAgeMillis;
+        this.clock = clock;
+        this.macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    /**
+     * Token for a tenant that just logged in
+     */
+    public String issue(Tenant tenant) {
+        long now = clock.millis();
+        return issue(tenant, now, now + ttlMillis);
+    }
+
+    /**
+     * Token for the tenant as it is now, keeping the login time of the token being renewed
+     */
+    public String renew(Tenant tenant, Verified verified) {
+        return issue(tenant, verified.getIssuedAt(), expiry(verified.getIssuedAt()));
+    }
+
+    private String issue(Tenant tenant, long issuedAt, long expiresAt) {
+        // Name goes last because it's the only free text field
+        String claims = String.join("|",
+                tenant.getIdAsString(),
+                tenant.getTier() != null ? tenant.getTier().name() : "",
+                tenant.getStatus() != null ? tenant.getStatus().name() : "",
+                Long.toString(issuedAt),
+                Long.toString(expiresAt),
+                tenant.getName() != null ? tenant.getName() : "");
+        return seal(claims.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * The tenant the token was issued for, or null if the token is malformed, has been
+     * tampered with or has expired.
+     */
+    public Verified verify(String token) {
+        byte[] payload = open(token);
+        if (payload == null) {
+            return null;
+        }
+        String[] claims = new String(payload, StandardCharsets.UTF_8).split("\\|", 6);
+        if (claims.length != 6) {
+            return null;
+        }
+        try {
+            long issuedAt = Long.parseLong(claims[3]);
+            long expiresAt = Long.parseLong(claims[4]);
+            long now = clock.millis();
+            if (expiresAt <= now || issuedAt + maxAgeMillis <= now) {
+                return null;
+            }
+            Tenant tenant = new Tenant(UUID.fromString(claims[0]));
+            tenant.setTier(claims[1].isEmpty() ? null : Tier.valueOf(claims[1]));
+            tenant.setStatus(claims[2].isEmpty() ? null : Status.valueOf(claims[2]));
+            tenant.setName(claims[5]);
+            return new Verified(tenant, issuedAt, expiresAt);
+        } catch (IllegalArgumentException e) {
+            // Signed by us with a different set of tiers or statuses
+            return null;
+        }
+    }
+
+    /**
+     * True once less than half of the token's lifetime is left and renewing would extend it, so
+     * active tenants get a fresh token before the old one expires without every response setting
+     * a cookie.
+     */
+    public boolean isStale(Verified verified) {
+        return verified.getExpiresAt() - clock.millis() < ttlMillis / 2 && expiry(verified.getIssuedAt()) > verified.getExpiresAt();
+    }
+
+    private long expiry(long issuedAt) {
+        return Math.min(clock.millis() + ttlMillis, issuedAt + maxAgeMillis);
+    }
+
+    /**
+     * Signs any payload so it can be handed to the browser and trusted when it comes back
+     */
+    public String seal(byte[] payload) {
+        return ENCODER.encodeToString(payload) + "." + ENCODER.encodeToString(sign(payload));
+    }
+
+    /**
+     * @return the payload of a sealed value, or null if it wasn't sealed with our secret
+     */
+    public byte[] open(String sealed) {
+        if (sealed == null) {
+            return null;
+        }
+        int dot = sealed.indexOf('.');
+        if (dot < 1) {
+            return null;
+        }
+        byte[] payload;
+        byte[] signature;
+        try {
+            payload = DECODER.decode(sealed.substring(0, dot));
+            signature = DECODER.decode(sealed.substring(dot + 1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        // Constant time comparison so response timing doesn't leak how much of a forged signature is right
+        return MessageDigest.isEqual(sign(payload), signature) ? payload : null;
+    }
+
+    public String read(HttpServletRequest request) {
+        Cookie cookie = WebUtils.getCookie(request, COOKIE);
+        return cookie != null ? cookie.getValue() : null;
+    }
+
+    public void write(HttpServletRequest request, HttpServletResponse response, Tenant tenant) {
+        write(request, response, COOKIE, issue(tenant), Duration.ofMillis(ttlMillis));
+    }
+
+    public void write(HttpServletRequest request, HttpServletResponse response, Tenant tenant, Verified verified) {
+        write(request, response, COOKIE, renew(tenant, verified), Duration.ofMillis(Math.max(0, expiry(verified.getIssuedAt()) - clock.millis())));
+    }
+
+    public void clear(HttpServletRequest request, HttpServletResponse response) {
+        write(request, response, COOKIE, "", Duration.ZERO);
+    }
+
+    /**
+     * Sets an HttpOnly cookie scoped to the application
+     */
+    public void write(HttpServletRequest request, HttpServletResponse response, String name, String value, Duration maxAge) {
+        String path = request.getContextPath().isEmpty() ? "/" : request.getContextPath();
+        ResponseCookie cookie = ResponseCookie.from(name, value)
+                .path(path)
+                .maxAge(maxAge)
+                .httpOnly(true)
+                .secure(request.isSecure())
+                .sameSite("Lax")
+                .build();
+        response.addHeader(HttpHeaders.SET_COOKIE, cookie.toString());
+    }
+
+    private byte[] sign(byte[] payload) {
+        Mac mac = macs.get();
+        mac.reset();
+        return mac.doFinal(payload);
+    }
+
+    public static class Verified {
+
+        private final Tenant tenant;
+        private final long issuedAt;
+        private final long expiresAt;
+
+        Verified(Tenant tenant, long issuedAt, long expiresAt) {
+            this.tenant = tenant;
+            this.issuedAt = issuedAt;
+            this.expiresAt = expiresAt;
+        }
+
+        public Tenant getTenant() {
+            return tenant;
+        }
+
+        public long getIssuedAt() {
+            return issuedAt;
+        }
+
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.amazon.aws.partners.saasfactory.pgrls.configuration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.Properties;
+import java.util.UUID;
+
+/**
+ * Moves tenant_user to a table hash partitioned by tenant_id while the application keeps running. The new
+ * table and the triggers that keep it in step with the old one are in db/tenant_user_partitioned.sql. Existing
+ * rows are copied in small transactions and the tables are then swapped by renaming them. The old table is
+ * kept as tenant_user_unpartitioned to be dropped once you're happy with the result. Only one instance works
+ * on it at a time and an interrupted run starts again from the beginning on the next launch.
+ *
+ * Schema migrations that change tenant_user while a run is in progress only change the old table.
+ */
+class TenantUserPartitioner implements Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TenantUserPartitioner.class);
+    private static final String SCRIPT = "db/tenant_user_partitioned.sql";
+    // Arbitrary application wide key for pg_try_advisory_lock, different from the migration lock
+    private static final long PARTITION_LOCK = 0x7067726c7370L;
+    private static final String LOCK_NOT_AVAILABLE = "55P03";
+    private static final int SWAP_ATTEMPTS = 10;
+
+    private final String jdbcUrl;
+    private final Properties connectionProperties;
+    private final int partitions;
+    private final int batchSize;
+
+    TenantUserPartitioner(String jdbcUrl, Properties connectionProperties, int partitions, int batchSize) {
+        this.jdbcUrl = jdbcUrl;
+        this.connectionProperties = connectionProperties;
+        this.partitions = partitions;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void run() {
+        try (Connection connection = DriverManager.getConnection(jdbcUrl, connectionProperties)) {
+            try (Statement sql = connection.createStatement(); ResultSet rs = sql.executeQuery("SELECT pg_try_advisory_lock(" + PARTITION_LOCK + ")")) {
+                rs.next();
+                if (!rs.getBoolean(1)) {
+                    LOGGER.info("Another instance is partitioning tenant_user");
+                    return;
+                }
+            }
+            Integer current = partitionCount(connection);
+            if (current != null) {
+                if (current != partitions) {
+                    LOGGER.warn("tenant_user already has {} partitions. Ignoring tenant.users.partitions = {}", current, partitions);
+                }
+                return;
+            }
+            // Don't queue behind long running transactions holding everybody else up while we wait for a lock
+            try (Statement sql = connection.createStatement()) {
+                sql.execute("SET lock_timeout = '5s'");
+            }
+            LOGGER.info("Partitioning tenant_user into {} partitions", partitions);
+            setUp(connection);
+            long copied = backfill(connection);
+            swap(connection);
+            LOGGER.info("tenant_user is now partitioned. Copied {} rows. The old table is tenant_user_unpartitioned", copied);
+        } catch (SQLException e) {
+            LOGGER.error("Partitioning tenant_user failed. It will start again on the next launch", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Number of partitions, or null if tenant_user isn't partitioned yet
+    private static Integer partitionCount(Connection connection) throws SQLException {
+        try (Statement sql = connection.createStatement(); ResultSet rs = sql.executeQuery("SELECT c.relkind = 'p', " +
+                "(SELECT count(*) FROM pg_inherits WHERE inhparent = c.oid) FROM pg_class c WHERE c.oid = 'tenant_user'::regclass")) {
+            rs.next();
+            return rs.getBoolean(1) ? rs.getInt(2) : null;
+        }
+    }
+
+    private void setUp(Connection connection) throws SQLException {
+        String script;
+        try (InputStream is = new ClassPathResource(SCRIPT).getInputStream()) {
+            script = StreamUtils.copyToString(is, StandardCharsets.UTF_8).replace("\r\n", "\n");
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+        connection.setAutoCommit(false);
+        try (Statement sql = connection.createStatement()) {
+            for (String stmt : DatabaseInit.statements(script)) {
+                sql.addBatch(stmt.replace("{{PARTITIONS}}", String.valueOf(partitions)));
+            }
+            sql.executeBatch();
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        }
+    }
+
+    // Copies tenant_user across in user_id order, one transaction per batch. FOR SHARE makes a concurrent
+    // update or delete of a row wait until its copy is committed so the mirror trigger applies it on top.
+    private long backfill(Connection connection) throws SQLException {
+        connection.setAutoCommit(true);
+        UUID after = new UUID(0L, 0L);
+        long copied = 0;
+        try (PreparedStatement sql = connection.prepareStatement("WITH batch AS (" +
+                "SELECT user_id, tenant_id, email, given_name, family_name FROM tenant_user WHERE user_id > ? ORDER BY user_id LIMIT ? FOR SHARE), " +
+                "copied AS (INSERT INTO tenant_user_partitioned (user_id, tenant_id, email, given_name, family_name) " +
+                "SELECT user_id, tenant_id, email, given_name, family_name FROM batch ON CONFLICT (tenant_id, user_id) DO NOTHING) " +
+                "SELECT user_id, count(*) OVER () FROM batch ORDER BY user_id DESC LIMIT 1")) {
+            while (true) {
+                sql.setObject(1, after);
+                sql.setInt(2, batchSize);
+                try (ResultSet rs = sql.executeQuery()) {
+                    if (!rs.next()) {
+                        return copied;
+                    }
+                    after = rs.getObject(1, UUID.class);
+                    copied += rs.getLong(2);
+                }
+                if (copied % (batchSize * 100L) < batchSize) {
+                    LOGGER.info("Copied {} rows to tenant_user_partitioned", copied);
+                }
+            }
+        }
+    }
+
+    // Renames the tables once nothing else is using them. The mirror trigger has kept the new table current
+    // up to this point so there's nothing left to copy.
+    private void swap(Connection connection) throws SQLException, InterruptedException {
+        connection.setAutoCommit(false);
+        for (int attempt = 1; ; attempt++) {
+            try (Statement sql = connection.createStatement()) {
+                sql.execute("LOCK TABLE tenant_user, tenant_user_partitioned IN ACCESS EXCLUSIVE MODE");
+                sql.execute("DROP TRIGGER tenant_user_mirror ON tenant_user");
+                sql.execute("ALTER TABLE tenant_user RENAME TO tenant_user_unpartitioned");
+                sql.execute("ALTER TABLE tenant_user_partitioned RENAME TO tenant_user");
+                // Otherwise the rows left behind would stop tenants from being deleted
+                sql.execute("ALTER TABLE tenant_user_unpartitioned DROP CONSTRAINT IF EXISTS tenant_user_tenant_id_fkey");
+                connection.commit();
+                return;
+            } catch (SQLException e) {
+                connection.rollback();
+                if (!LOCK_NOT_AVAILABLE.equals(e.getSQLState()) || attempt == SWAP_ATTEMPTS) {
+                    throw e;
+                }
+                LOGGER.info("Waiting for transactions using tenant_user to finish before swapping tables");
+                Thread.sleep(1000L * attempt);
+            }
+        }
+    }
+}
@@ -32,6 +32,7 @@ import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.ModelAttribute;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.servlet.mvc.support.RedirectAttributes;
 
 import java.util.List;
@@ -51,7 +52,10 @@ public class AdminController {
     }
 
     @GetMapping("/admin")
-    public String index(Model model) {
+    public String index(Model model, WebRequest request) {
+        if (ETags.notModified(request, model, adminService.getTenantsVersion())) {
+            return null;
+        }
         // Load the list of tenants at the top of the view as the SaaS administrator (no RLS policies
         // applied because the database admin user is the table owner)
         List<Tenant> tenants = adminService.getTenants();
@@ -0,0 +1,65 @@
+/**
+ * Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.amazon.aws.partners.saasfactory.pgrls.controller;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.security.web.csrf.CsrfToken;
+import org.springframework.ui.Model;
+import org.springframework.util.DigestUtils;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.context.request.WebRequest;
+
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Conditional GETs for pages built from data that has a cheap version. The ETag covers the version
+ * plus everything else that ends up in the page (the CSRF token in its forms for one), so we only
+ * answer 304 when rendering would have produced the same page.
+ */
+final class ETags {
+
+    private ETags() {
+    }
+
+    /**
+     * Call before loading anything for the page. When this returns true the response is a 304 and the
+     * handler should return null so nothing gets rendered.
+     * @param version everything the page depends on, or null if it can't be versioned
+     */
+    static boolean notModified(WebRequest request, Model model, String version) {
+        // Flash messages are only shown once, a page carrying one mustn't be reused
+        if (version == null || model.containsAttribute("msg")) {
+            return false;
+        }
+        StringBuilder content = new StringBuilder(version);
+        CsrfToken csrf = (CsrfToken) request.getAttribute(CsrfToken.class.getName(), RequestAttributes.SCOPE_REQUEST);
+        if (csrf != null) {
+            content.append('|').append(csrf.getToken());
+        }
+        if (request instanceof ServletWebRequest) {
+            // Tenant data has no business in shared caches, and browsers should check back every time
+            HttpServletResponse response = ((ServletWebRequest) request).getResponse();
+            if (response != null) {
+                response.setHeader(HttpHeaders.CACHE_CONTROL, "private, no-cache");
+            }
+        }
+        String etag = "\"" + DigestUtils.md5DigestAsHex(content.toString().getBytes(StandardCharsets.UTF_8)) + "\"";
+        return request.checkNotModified(etag);
+    }
+}
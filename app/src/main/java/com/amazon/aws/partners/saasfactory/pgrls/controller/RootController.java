@@ -16,16 +16,24 @@
  */
 package com.amazon.aws.partners.saasfactory.pgrls.controller;
 
+import com.amazon.aws.partners.saasfactory.pgrls.configuration.TenantPoolWarmer;
+import com.amazon.aws.partners.saasfactory.pgrls.repository.DataSourceRepository;
+import com.amazon.aws.partners.saasfactory.pgrls.repository.InvalidationBus;
 import com.amazon.aws.partners.saasfactory.pgrls.service.AdminService;
+import com.amazon.aws.partners.saasfactory.pgrls.service.TenantService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 @Controller
 public class RootController {
 
@@ -34,20 +42,54 @@ public class RootController {
     @Autowired
     private AdminService adminService;
 
+    @Autowired
+    private TenantService tenantService;
+
+    @Autowired
+    private DataSourceRepository dataSourceRepository;
+
+    @Autowired
+    private TenantPoolWarmer tenantPoolWarmer;
+
+    @Autowired
+    private InvalidationBus invalidationBus;
+
     @GetMapping({"/", "/index.html"})
     public String index(Model model) {
         return "index";
     }
 
     /**
-     * Endpoint for the ALB to call. Simply returns an HTTP 200.
+     * Endpoint for the ALB to call. Returns an HTTP 503 until the busiest tenants'
+     * connection pools have been built and then simply returns an HTTP 200.
      * @return
      */
     @GetMapping("/health")
     public ResponseEntity health() {
+        if (!tenantPoolWarmer.isWarm()) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
         return ResponseEntity.ok().build();
     }
 
+    /**
+     * Counters for sizing the tenant connection pools checking on tenant context binding and
+     * how often tenants hit their concurrency limits.
+     * @return
+     */
+    @GetMapping("/metrics")
+    public ResponseEntity<Map<String, Object>> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("tenantDataSourceCache", dataSourceRepository.getDataSourceTargets().getStats());
+        metrics.put("tenantBinding", dataSourceRepository.getBindingStats());
+        metrics.put("tenantBulkhead", dataSourceRepository.getBulkheadStats());
+        metrics.put("tenantReadRouting", dataSourceRepository.getReadRoutingStats());
+        metrics.put("tenantCache", adminService.getTenantCacheStats());
+        metrics.put("tenantUserCache", tenantService.getUserCacheStats());
+        metrics.put("invalidationBus", invalidationBus.getStats());
+        return ResponseEntity.ok(metrics);
+    }
+
     @RequestMapping("/login")
     public String login(Model model) {
         model.addAttribute("tenants", adminService.getTenants());
@@ -16,15 +16,25 @@
  */
 package com.amazon.aws.partners.saasfactory.pgrls.controller;
 
+import com.amazon.aws.partners.saasfactory.pgrls.TenantThrottledException;
 import com.amazon.aws.partners.saasfactory.pgrls.UnauthorizedException;
 import com.amazon.aws.partners.saasfactory.pgrls.domain.Tenant;
 import com.amazon.aws.partners.saasfactory.pgrls.domain.User;
+import com.amazon.aws.partners.saasfactory.pgrls.domain.UserBatchError;
+import com.amazon.aws.partners.saasfactory.pgrls.domain.UserBatchResult;
+import com.amazon.aws.partners.saasfactory.pgrls.domain.UserPage;
 import com.amazon.aws.partners.saasfactory.pgrls.repository.UniqueRecordException;
 import com.amazon.aws.partners.saasfactory.pgrls.service.AdminService;
+import com.amazon.aws.partners.saasfactory.pgrls.service.CsvReader;
 import com.amazon.aws.partners.saasfactory.pgrls.service.TenantService;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.http.HttpHeaders;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Controller;
@@ -34,15 +44,27 @@ import org.springframework.validation.FieldError;
 import org.springframework.web.bind.WebDataBinder;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.servlet.mvc.support.RedirectAttributes;
 
+import javax.servlet.http.HttpServletResponse;
 import java.beans.PropertyEditorSupport;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.UUID;
+import java.util.stream.Collectors;
 
 @Controller
 public class TenantController {
 
     private final static Logger LOGGER = LoggerFactory.getLogger(TenantController.class);
+    private final static JsonFactory JSON = new JsonFactory().setRootValueSeparator(null);
 
     @Autowired
     private TenantService tenantService;
@@ -50,6 +72,9 @@ public class TenantController {
     @Autowired
     private AdminService adminService;
 
+    @Value("${tenant.users.page-size:50}")
+    private int pageSize;
+
     @InitBinder
     public void initBinder(WebDataBinder binder) {
         binder.registerCustomEditor(Tenant.class, new TenantEditor());
@@ -61,8 +86,15 @@ public class TenantController {
     }
 
     @GetMapping("/tenant")
-    public String index(Authentication authentication, Model model) {
+    public String index(Authentication authentication, @RequestParam(required = false) String tenantId, @RequestParam(required = false) String after, Model model, WebRequest request) {
         LOGGER.info("Authenticated tenant {}", ((Tenant) authentication.getPrincipal()).getId());
+        if (tenantId != null && !tenantId.isEmpty()) {
+            // Paging through the users of the selected tenant
+            if (notModified(request, model, authentication, tenantId, null, after)) {
+                return null;
+            }
+            return listUsers(authentication, tenantId, null, after, model);
+        }
         Tenant tenant = new Tenant();
         if (model.containsAttribute("selectedTenant")) {
             String selectedTenantId = String.valueOf(model.getAttribute("selectedTenant"));
@@ -77,23 +109,67 @@ public class TenantController {
 
     @PostMapping("/tenant")
     public String listUsers(Authentication authentication, @RequestParam String tenantId, Model model) {
+        return listUsers(authentication, tenantId, null, null, model);
+    }
+
+    @GetMapping("/tenant/search")
+    public String searchUsers(Authentication authentication, @RequestParam String tenantId, @RequestParam(required = false) String q, @RequestParam(required = false) String after, Model model, WebRequest request) {
+        String query = (q == null || q.trim().isEmpty()) ? null : q.trim();
+        if (notModified(request, model, authentication, tenantId, query, after)) {
+            return null;
+        }
+        if (query == null) {
+            return listUsers(authentication, tenantId, null, after, model);
+        }
+        model.addAttribute("q", query);
+        return listUsers(authentication, tenantId, query, after, model);
+    }
+
+    // Checks the tenant's version before we load a page of its users. The page also shows who is logged
+    // in and the list of tenants to pick from, so those go into the ETag as well.
+    private boolean notModified(WebRequest request, Model model, Authentication authentication, String tenantId, String query, String after) {
+        Tenant authenticatedTenant = (Tenant) authentication.getPrincipal();
+        Long version;
+        try {
+            // Null when RLS hides the tenant, that page gets rendered with its error every time
+            version = tenantService.getTenantVersion(UUID.fromString(tenantId));
+        } catch (IllegalArgumentException | DataAccessException e) {
+            return false;
+        }
+        String tenantsVersion = adminService.getTenantsVersion();
+        if (version == null || tenantsVersion == null) {
+            return false;
+        }
+        return ETags.notModified(request, model, String.join("|", "tenant", authenticatedTenant.getIdAsString(),
+                authenticatedTenant.getName(), tenantId, query, after, String.valueOf(version), tenantsVersion));
+    }
+
+    private String listUsers(Authentication authentication, String tenantId, String query, String after, Model model) {
         Tenant authenticatedTenant = (Tenant) authentication.getPrincipal();
         Tenant tenant = new Tenant();
         try {
             tenant.setId(UUID.fromString(tenantId));
+            UUID cursor = (after != null && !after.isEmpty()) ? UUID.fromString(after) : null;
             try {
-                // Load the list of tenant users as the currently logged in tenant.
+                // Load a page of tenant users as the currently logged in tenant.
                 // But, ask for the users for a specific tenant id. If the 2 ids don't match,
                 // RLS will prevent cross tenant access to the other tenant's resources without
                 // having to specify ...WHERE tenant_id = ? in the SQL queries.
-                Tenant tenantForEdit = tenantService.getTenant(tenant.getId());
-                if (tenantForEdit == null) {
+                UserPage page = query != null
+                        ? tenantService.searchUsers(tenant.getId(), query, cursor, pageSize)
+                        : tenantService.getUserPage(tenant.getId(), cursor, pageSize);
+                if (page == null) {
                     LOGGER.info("Database security policies prevented cross tenant access");
                     model.addAttribute("css", "danger");
                     model.addAttribute("msg", "Row Level Security policies prevented " + authenticatedTenant.getId().toString() + " from accessing data for " + tenantId);
                 } else {
-                    tenant = tenantForEdit;
+                    tenant = page.getTenant();
+                    model.addAttribute("userPage", page);
+                    model.addAttribute("firstPage", cursor == null);
                 }
+            } catch (TenantThrottledException e) {
+                // Let Spring turn this into a 429 rather than rendering a page
+                throw e;
             } catch (Exception e) {
                 model.addAttribute("css", "danger");
                 model.addAttribute("msg", e.getMessage());
@@ -108,6 +184,100 @@ public class TenantController {
         return "tenant";
     }
 
+    /**
+     * Streams all of a tenant's users as CSV or newline delimited JSON. Rows are written to the response
+     * as they come off the database cursor so memory use doesn't grow with the number of users. The price is
+     * that a pooled connection, and one of the tenant's bulkhead permits, are held until the last row has been
+     * written, so a slow client downloading a big tenant ties them up for the whole download.
+     * @param tenantId
+     * @param format csv or ndjson
+     * @param response
+     * @throws IOException
+     */
+    @GetMapping("/tenant/export")
+    public void exportUsers(@RequestParam String tenantId, @RequestParam(defaultValue = "csv") String format, HttpServletResponse response) throws IOException {
+        boolean csv = "csv".equalsIgnoreCase(format);
+        if (!csv && !"ndjson".equalsIgnoreCase(format)) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unsupported export format " + format);
+            return;
+        }
+        UUID id;
+        try {
+            id = UUID.fromString(tenantId);
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid tenant id");
+            return;
+        }
+        // RLS would just give us an empty export for someone else's tenant
+        if (tenantService.getTenant(id, false) == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.setContentType(csv ? "text/csv" : "application/x-ndjson");
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"users-" + id + (csv ? ".csv" : ".ndjson") + "\"");
+        Writer out = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8));
+        if (csv) {
+            out.write("user_id,tenant_id,email,given_name,family_name\n");
+            tenantService.exportUsers(id, user -> {
+                try {
+                    out.write(user.getId() + "," + user.getTenant().getId() + "," + CsvReader.escape(user.getEmail()) + ","
+                            + CsvReader.escape(user.getGivenName()) + "," + CsvReader.escape(user.getFamilyName()) + "\n");
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } else {
+            JsonGenerator json = JSON.createGenerator(out);
+            tenantService.exportUsers(id, user -> {
+                try {
+                    json.writeStartObject();
+                    json.writeStringField("user_id", user.getId().toString());
+                    json.writeStringField("tenant_id", user.getTenant().getId().toString());
+                    json.writeStringField("email", user.getEmail());
+                    json.writeStringField("given_name", user.getGivenName());
+                    json.writeStringField("family_name", user.getFamilyName());
+                    json.writeEndObject();
+                    json.writeRaw('\n');
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            json.flush();
+        }
+        out.flush();
+    }
+
+    @PostMapping("/tenant/import")
+    public String importUsers(Authentication authentication, @RequestParam String tenantId, @RequestParam("file") MultipartFile file, final RedirectAttributes redirectAttributes) {
+        Tenant authenticatedTenant = (Tenant) authentication.getPrincipal();
+        try (InputStream csv = file.getInputStream()) {
+            UserBatchResult result = tenantService.importUsers(UUID.fromString(tenantId), csv);
+            LOGGER.info("Imported {} users, rejected {}", result.getInserted(), result.getRejected());
+            redirectAttributes.addFlashAttribute("css", result.getRejected() == 0 ? "success" : "warning");
+            redirectAttributes.addFlashAttribute("msg", "Imported " + result.getInserted() + " users" + (result.getRejected() > 0 ? ", rejected " + result.getRejected() : ""));
+            // Just enough to show the user what went wrong, as plain strings so they survive a cookie backed flash map
+            redirectAttributes.addFlashAttribute("importErrors", result.getErrors().stream().limit(20).map(UserBatchError::toString).collect(Collectors.toList()));
+        } catch (UnauthorizedException e) {
+            LOGGER.warn("Authenticated tenant is not authorized to import users for tenant {}", tenantId);
+            redirectAttributes.addFlashAttribute("css", "danger");
+            redirectAttributes.addFlashAttribute("msg", "Row Level Security policies prevented " + authenticatedTenant.getIdAsString() + " from importing users for tenant " + tenantId);
+        } catch (TenantThrottledException e) {
+            throw e;
+        } catch (IllegalArgumentException e) {
+            // The file's header or CSV format, shown like the per row errors
+            LOGGER.warn("Rejected user import for tenant {}: {}", tenantId, e.getMessage());
+            redirectAttributes.addFlashAttribute("css", "danger");
+            redirectAttributes.addFlashAttribute("msg", "Imported 0 users");
+            redirectAttributes.addFlashAttribute("importErrors", Collections.singletonList(e.getMessage()));
+        } catch (Exception e) {
+            LOGGER.error("Error importing users", e);
+            redirectAttributes.addFlashAttribute("css", "danger");
+            redirectAttributes.addFlashAttribute("msg", "Failed to import users: " + e.getMessage());
+        }
+        return "redirect:/tenant?tenantId=" + tenantId;
+    }
+
     @GetMapping("/tenant/newUser")
     public String newUser(@RequestParam String tenantId, Model model) {
         User user = new User();
@@ -221,9 +391,8 @@ public class TenantController {
         String view = null;
         try {
             Tenant authenticatedTenant = (Tenant) authentication.getPrincipal();
-            tenantService.deleteUser(user);
-            // For this demo, just to show RLS in action, see if the user exists
-            if (adminService.userExists(user.getId())) {
+            // RLS doesn't raise an error for a DELETE, it just doesn't see the other tenant's row
+            if (!tenantService.deleteUser(user)) {
                 LOGGER.warn("Row Level Security policies prevented " + authenticatedTenant.getIdAsString() + " from deleting user " + user.getId().toString());
                 redirectAttributes.addFlashAttribute("css", "danger");
                 redirectAttributes.addFlashAttribute("msg", "Row Level Security policies prevented " + authenticatedTenant.getIdAsString() + " from deleting user " + user.getId().toString());
@@ -236,6 +405,8 @@ public class TenantController {
                 redirectAttributes.addFlashAttribute("selectedTenant", authenticatedTenant.getId());
                 view = "redirect:/tenant";
             }
+        } catch (TenantThrottledException e) {
+            throw e;
         } catch (Exception e) {
             LOGGER.error("Error deleting user", e);
             model.addAttribute("css", "danger");
@@ -256,7 +427,10 @@ public class TenantController {
         public void setAsText(String text) throws IllegalArgumentException {
             Tenant tenant = null;
             try {
-                tenant = tenantService.getTenant(UUID.fromString(text));
+                // Binding a form field only needs the tenant, not its users
+                tenant = tenantService.getTenant(UUID.fromString(text), false);
+            } catch (TenantThrottledException e) {
+                throw e;
             } catch (Exception e) {
                 LOGGER.error("Can't look up tenant by id {}", text, e);
             }
@@ -0,0 +1,58 @@
+/**
+ * Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.amazon.aws.partners.saasfactory.pgrls.domain;
+
+/**
+ * Why one row of a bulk user load was rejected. SQL state is the PostgreSQL error
+ * code when the database refused the row (23505 for a duplicate email) and null
+ * when the row failed validation before it was sent.
+ */
+public class UserBatchError {
+
+	private long row;
+	private String email;
+	private String sqlState;
+	private String message;
+
+	public UserBatchError(long row, String email, String sqlState, String message) {
+		this.row = row;
+		this.email = email;
+		this.sqlState = sqlState;
+		this.message = message;
+	}
+
+	public long getRow() {
+		return row;
+	}
+
+	public String getEmail() {
+		return email;
+	}
+
+	public String getSqlState() {
+		return sqlState;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	@Override
+	public String toString() {
+		return "Row " + row + (email != null ? " (" + email + ")" : "") + ": " + message;
+	}
+}
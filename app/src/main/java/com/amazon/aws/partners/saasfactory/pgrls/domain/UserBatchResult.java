@@ -0,0 +1,65 @@
+/**
+ * Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.amazon.aws.partners.saasfactory.pgrls.domain;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Outcome of a bulk user load. Every rejected row is counted but only the first
+ * MAX_ERRORS are kept so a bad file can't run us out of memory.
+ */
+public class UserBatchResult {
+
+	public static final int MAX_ERRORS = 1000;
+
+	private long inserted;
+	private long updated;
+	private long rejected;
+	private List<UserBatchError> errors = new ArrayList<>();
+
+	public long getInserted() {
+		return inserted;
+	}
+
+	public void setInserted(long inserted) {
+		this.inserted = inserted;
+	}
+
+	public long getUpdated() {
+		return updated;
+	}
+
+	public void setUpdated(long updated) {
+		this.updated = updated;
+	}
+
+	public long getRejected() {
+		return rejected;
+	}
+
+	public List<UserBatchError> getErrors() {
+		return errors;
+	}
+
+	public void reject(UserBatchError error) {
+		rejected++;
+		if (errors.size() < MAX_ERRORS) {
+			errors.add(error);
+		}
+	}
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.amazon.aws.partners.saasfactory.pgrls.domain;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * One page of a tenant's users in user id order. The cursor is the last user id on the
+ * page so the next page starts after it no matter what was inserted in the meantime.
+ */
+public class UserPage {
+
+	private Tenant tenant;
+	private List<User> users = new ArrayList<>();
+	private UUID nextCursor;
+
+	public UserPage(Tenant tenant, List<User> users, UUID nextCursor) {
+		this.tenant = tenant;
+		this.users = users != null ? users : new ArrayList<>();
+		this.nextCursor = nextCursor;
+	}
+
+	public Tenant getTenant() {
+		return tenant;
+	}
+
+	public List<User> getUsers() {
+		return users;
+	}
+
+	/**
+	 * @return the user id to pass as the cursor for the next page or null on the last page
+	 */
+	public UUID getNextCursor() {
+		return nextCursor;
+	}
+
+	public boolean isHasMore() {
+		return nextCursor != null;
+	}
+}
@@ -17,10 +17,12 @@
 package com.amazon.aws.partners.saasfactory.pgrls.repository;
 
 import com.amazon.aws.partners.saasfactory.pgrls.domain.Tenant;
+import com.amazon.aws.partners.saasfactory.pgrls.domain.Tier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.security.authentication.AnonymousAuthenticationToken;
@@ -28,13 +30,30 @@ import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Repository;
 
+import com.zaxxer.hikari.HikariDataSource;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.sql.SQLException;
+import java.util.Collections;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Generates a JDBC connection pool per authenticated tenant. These connections will be constrained by
  * RLS policies to prevent cross tenant data access.
  *
  * Most systems have multiple users per tenant. These connection pools are per tenant, not user.
+ *
+ * With tenant.datasource.isolation = Shared there is a single bounded connection pool for all tenants
+ * instead. RLS still applies because the tenant context is bound to each connection as it is checked
+ * out and cleared again when it's returned. With Tier, Gold tenants get their own pool and Silver and
+ * Bronze tenants use the shared pool.
  * @author mibeard
  */
 @Repository
@@ -50,45 +69,293 @@ public class DataSourceRepository {
 	
 	// See DataSourceCacheConfiguration
 	@Autowired
-	private Map<Object, Object> dataSourceTargets;
+	private TenantDataSourceCache dataSourceTargets;
+
+	@Value("${tenant.datasource.isolation:Pool}")
+	private Isolation isolation;
+
+	@Value("${tenant.datasource.binding:Session}")
+	private Binding binding;
+
+	@Value("${tenant.datasource.verify-sample-rate:0}")
+	private double verifySampleRate;
+
+	@Value("${tenant.datasource.shared.maximum-pool-size:10}")
+	private int sharedPoolSize;
+
+	@Value("${tenant.datasource.dedicated.maximum-pool-size:10}")
+	private int dedicatedPoolSize;
+
+	@Value("${tenant.datasource.bulkhead.enabled:false}")
+	private boolean bulkheadEnabled;
+
+	@Value("${tenant.datasource.bulkhead.gold:10}")
+	private int goldConcurrency;
+
+	@Value("${tenant.datasource.bulkhead.silver:5}")
+	private int silverConcurrency;
+
+	@Value("${tenant.datasource.bulkhead.bronze:3}")
+	private int bronzeConcurrency;
+
+	@Value("${tenant.datasource.bulkhead.max-wait-millis:250}")
+	private long bulkheadMaxWait;
+
+	private TenantBulkhead bulkhead;
+
+	@Value("${tenant.datasource.replica.url:}")
+	private String replicaUrl;
+
+	@Value("${tenant.datasource.replica.maximum-pool-size:10}")
+	private int replicaPoolSize;
+
+	@Value("${tenant.datasource.replica.read-your-writes-millis:5000}")
+	private long readYourWritesMillis;
+
+	private HikariDataSource replicaPool;
+
+	private ReplicaRouter replicaRouter;
+
+	// Last known tier of each tenant. Seeded from the login principal and kept current
+	// by the services that change a tenant's tier so Tier isolation can move tenants live.
+	private final Map<Object, Tier> tenantTiers = new ConcurrentHashMap<>();
 
 	private final TenantAwareDataSource dataSource = new TenantAwareDataSource();
 
+	private HikariDataSource sharedDataSource;
+
+	private final ExecutorService warmer = Executors.newFixedThreadPool(2, runnable -> {
+		Thread thread = new Thread(runnable, "tenant-pool-warmer");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	// Wire up the data source router once. It resolves each tenant's pool straight
+	// from the cache when a connection is requested, so tenants coming and going
+	// never requires rebuilding the routing table.
+	@PostConstruct
+	public void init() {
+		if (isolation == Isolation.Shared || isolation == Isolation.Tier) {
+			LOGGER.info("Creating shared connection pool with {} connections for {} tenants", sharedPoolSize, isolation == Isolation.Shared ? "all" : "Silver and Bronze");
+			sharedDataSource = dataSourceProperties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+			sharedDataSource.setPoolName("tenant-shared");
+			sharedDataSource.setMaximumPoolSize(sharedPoolSize);
+		}
+		if (isolation == Isolation.Shared) {
+			// All tenants route to the one pool and the data source resets the tenant
+			// context on every connection as it goes back to the pool
+			dataSource.setTargetResolver(tenant -> sharedDataSource);
+			dataSource.setClearOnClose(true);
+		} else if (isolation == Isolation.Tier) {
+			// Gold tenants get a dedicated pool from the cache. Only connections from
+			// the shared pool need their tenant context reset when they are returned.
+			dataSource.setTargetResolver(tenant -> tierOf(tenant) == Tier.Gold ? dataSourceTargets.get(tenant, this::createTenantDataSource) : sharedDataSource);
+			dataSource.setClearOnClose(target -> target == sharedDataSource);
+		} else {
+			// Each tenant gets its own Hikari connection pool
+			dataSource.setTargetResolver(tenant -> dataSourceTargets.get(tenant, this::createTenantDataSource));
+		}
+		// Always there so tier changes and metrics don't have to care, but only enforced when enabled
+		bulkhead = new TenantBulkhead(this::concurrencyLimit, bulkheadMaxWait);
+		if (bulkheadEnabled) {
+			dataSource.setBulkhead(bulkhead);
+		}
+		dataSource.setBinding(binding);
+		dataSource.setVerifySampleRate(verifySampleRate);
+		dataSource.setTargetDataSources(Collections.emptyMap());
+		dataSource.afterPropertiesSet();
+
+		TenantAwareDataSource replicaDataSource = null;
+		if (replicaUrl != null && !replicaUrl.isEmpty()) {
+			// Replica connections are shared by every tenant regardless of isolation mode, so
+			// they get the same tenant binding as the primary and are reset on return
+			LOGGER.info("Creating read replica connection pool with {} connections", replicaPoolSize);
+			replicaPool = dataSourceProperties.initializeDataSourceBuilder().type(HikariDataSource.class).url(replicaUrl).build();
+			replicaPool.setPoolName("tenant-replica");
+			replicaPool.setMaximumPoolSize(replicaPoolSize);
+			replicaPool.setReadOnly(true);
+			replicaDataSource = new TenantAwareDataSource();
+			replicaDataSource.setTargetResolver(tenant -> replicaPool);
+			replicaDataSource.setClearOnClose(true);
+			if (bulkheadEnabled) {
+				replicaDataSource.setBulkhead(bulkhead);
+			}
+			replicaDataSource.setBinding(binding);
+			replicaDataSource.setVerifySampleRate(verifySampleRate);
+			replicaDataSource.setTargetDataSources(Collections.emptyMap());
+			replicaDataSource.afterPropertiesSet();
+		}
+		replicaRouter = new ReplicaRouter(dataSource, replicaDataSource, readYourWritesMillis);
+	}
+
+	@PreDestroy
+	public void close() {
+		warmer.shutdownNow();
+		if (sharedDataSource != null) {
+			sharedDataSource.close();
+		}
+		if (replicaPool != null) {
+			replicaPool.close();
+		}
+	}
+
 	public javax.sql.DataSource dataSource() {
-		Object currentTenant = null;
-		Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-		if (authentication !=  null && !(authentication instanceof AnonymousAuthenticationToken)) {
-			currentTenant = ((Tenant) authentication.getPrincipal()).getId();
+		if (currentTenant() == null) {
+			throw new RuntimeException("Can't return data source. No authenticated tenant.");
 		}
+		return dataSource;
+	}
+
+	/**
+	 * The data source to read from. This is the read replica when one is configured, unless the
+	 * current tenant has written to the primary recently enough that the replica might not have
+	 * caught up.
+	 * @return
+	 */
+	public javax.sql.DataSource readDataSource() {
+		Tenant currentTenant = currentTenant();
 		if (currentTenant == null) {
 			throw new RuntimeException("Can't return data source. No authenticated tenant.");
 		}
+		return replicaRouter.forRead(currentTenant.getId());
+	}
 
-		// Each tenant gets its own Hikari connection pool
-		if (!dataSourceTargets.containsKey(currentTenant) || dataSourceTargets.get(currentTenant) == null) {
-			LOGGER.info("Creating new connection pool for tenant {}", currentTenant);
-			dataSourceTargets.put(currentTenant, dataSourceProperties.initializeDataSourceBuilder().build());
+	/**
+	 * Call after writing as the current tenant so its reads stay on the primary for a while.
+	 */
+	public void markWrite() {
+		Tenant currentTenant = currentTenant();
+		if (currentTenant != null) {
+			replicaRouter.written(currentTenant.getId());
 		}
+	}
 
-		// Tell our data source router where to find all the keys we want it to map pools to
-		dataSource.setTargetDataSources(dataSourceTargets);
+	public boolean isReplica(javax.sql.DataSource dataSource) {
+		return replicaRouter.isReplica(dataSource);
+	}
 
-		// Tell Spring we're done configuring the data source so it can initialize the routing
-		// functionality. We must call this each time, because internally AbstractRoutingDataSource
-		// is keeping a map of resolved data sources per key and we may have just added a new
-		// tenant to our list of targets or we may have removed (logged out) a tenant and want
-		// to cleanup.
-		dataSource.afterPropertiesSet();
+	/**
+	 * @return the id of the authenticated tenant whose context connections are bound to, or null
+	 */
+	public UUID getCurrentTenantId() {
+		Tenant currentTenant = currentTenant();
+		return currentTenant != null ? currentTenant.getId() : null;
+	}
 
-		LOGGER.info("Returning dataSource with targets:");
-		dataSourceTargets.keySet().forEach((key) -> {
-			LOGGER.info(String.valueOf(key));
-		});
-		
-		return dataSource;
+	private Tenant currentTenant() {
+		Tenant currentTenant = null;
+		Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+		if (authentication !=  null && !(authentication instanceof AnonymousAuthenticationToken)) {
+			currentTenant = (Tenant) authentication.getPrincipal();
+		}
+		return currentTenant;
+	}
+
+	private Tier tierOf(Object tenant) {
+		Tier tier = tenantTiers.get(tenant);
+		if (tier == null) {
+			// First request for this tenant since we started. The tier the tenant logged in
+			// with is good enough until someone changes it.
+			Tenant principal = currentTenant();
+			if (principal != null && tenant.equals(principal.getId()) && principal.getTier() != null) {
+				tier = principal.getTier();
+				tenantTiers.putIfAbsent(tenant, tier);
+			}
+		}
+		return tier;
+	}
+
+	// Tenants we don't know the tier of aren't limited beyond the pool itself. Guessing the strictest
+	// tier would throttle a tenant for something it may well have paid for.
+	private int concurrencyLimit(Object tenant) {
+		Tier tier = tierOf(tenant);
+		if (tier == Tier.Gold) {
+			return goldConcurrency;
+		} else if (tier == Tier.Silver) {
+			return silverConcurrency;
+		} else if (tier == Tier.Bronze) {
+			return bronzeConcurrency;
+		}
+		return 0;
+	}
+
+	/**
+	 * Records a tenant's new tier. With Tier isolation a tenant leaving Gold has its dedicated pool
+	 * evicted (closed once in-flight connections are returned) and its next checkout comes from the
+	 * shared pool. A tenant moving up to Gold gets a dedicated pool on its next checkout. Either way
+	 * the tenant's concurrency limit follows its new tier.
+	 * @param tenantId
+	 * @param tier
+	 */
+	public void setTenantTier(UUID tenantId, Tier tier) {
+		if (tier == null) {
+			tenantTiers.remove(tenantId);
+		} else {
+			tenantTiers.put(tenantId, tier);
+		}
+		bulkhead.reset(tenantId);
+		if (isolation == Isolation.Tier && tier != Tier.Gold) {
+			dataSourceTargets.evict(tenantId);
+		}
+	}
+
+	/**
+	 * Creates the tenant's connection pool in the background and opens its first connection so the
+	 * tenant's first request doesn't pay for it. Doesn't need an authenticated tenant because it never
+	 * hands out a connection. Tenants using the shared pool have no pool of their own to warm.
+	 * @param tenant
+	 * @return completes when the pool is ready, or exceptionally if it couldn't open a connection
+	 */
+	public CompletableFuture<Void> warm(Tenant tenant) {
+		UUID tenantId = tenant.getId();
+		if (tenant.getTier() != null) {
+			tenantTiers.put(tenantId, tenant.getTier());
+		}
+		if (isolation == Isolation.Shared || (isolation == Isolation.Tier && tenant.getTier() != Tier.Gold)) {
+			return CompletableFuture.completedFuture(null);
+		}
+		return CompletableFuture.runAsync(() -> {
+			javax.sql.DataSource pool = dataSourceTargets.get(tenantId, this::createTenantDataSource);
+			try {
+				pool.getConnection().close();
+				LOGGER.info("Warmed connection pool for tenant {}", tenantId);
+			} catch (SQLException e) {
+				LOGGER.warn("Error warming connection pool for tenant {}", tenantId, e);
+				throw new CompletionException(e);
+			}
+		}, warmer);
+	}
+
+	private javax.sql.DataSource createTenantDataSource(Object tenant) {
+		LOGGER.info("Creating new connection pool for tenant {}", tenant);
+		HikariDataSource pool = dataSourceProperties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+		pool.setMaximumPoolSize(dedicatedPoolSize);
+		return pool;
+	}
+
+	public Isolation getIsolation() {
+		return isolation;
+	}
+
+	public Binding getBinding() {
+		return binding;
+	}
+
+	public Map<String, Object> getBindingStats() {
+		return dataSource.getStats();
+	}
+
+	public Map<String, Object> getBulkheadStats() {
+		Map<String, Object> stats = bulkhead.getStats();
+		stats.put("enabled", bulkheadEnabled);
+		return stats;
+	}
+
+	public Map<String, Object> getReadRoutingStats() {
+		return replicaRouter.getStats();
 	}
 
-	public Map<Object, Object> getDataSourceTargets() {
+	public TenantDataSourceCache getDataSourceTargets() {
 		return dataSourceTargets;
 	}
 }
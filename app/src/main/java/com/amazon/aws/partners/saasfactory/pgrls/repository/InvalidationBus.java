@@ -0,0 +1,268 @@
+/**
+ * Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.amazon.aws.partners.saasfactory.pgrls.repository;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Tells the other application instances when cached data changes, using PostgreSQL LISTEN/NOTIFY. Writers
+ * publish a topic and key through their own JDBC connection, so inside a transaction the notification is only
+ * sent if the transaction commits. Each instance keeps one connection listening on the channel. Notifications
+ * that arrive close together are handed to the subscribers as one batch of keys per topic. An instance gets
+ * its own notifications too, so a change made outside a service that keeps a cache still reaches that cache.
+ *
+ * PostgreSQL doesn't keep notifications for listeners that aren't connected. When the listener connection
+ * is lost it reconnects with a growing delay, and then runs the resync callbacks so that caches can reload
+ * whatever they might have missed.
+ */
+@Repository
+public class InvalidationBus {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(InvalidationBus.class);
+	public static final String CHANNEL = "cache_invalidation";
+	public static final String TENANTS = "tenant";
+	public static final String USERS = "user";
+	private static final long POLL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+	private static final long MAX_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+	@Autowired
+	@Qualifier("adminDataSourceProperties")
+	private DataSourceProperties adminDataSourceProperties;
+
+	@Value("${invalidation.enabled:true}")
+	private boolean enabled = true;
+
+	@Value("${invalidation.batch-millis:50}")
+	private long batchMillis = 50;
+
+	private final Map<String, List<Consumer<Set<String>>>> subscribers = new HashMap<>();
+	private final List<Runnable> resyncs = new CopyOnWriteArrayList<>();
+	private final LongAdder published = new LongAdder();
+	private final LongAdder received = new LongAdder();
+	private final LongAdder batches = new LongAdder();
+	private final LongAdder reconnects = new LongAdder();
+	private volatile boolean running;
+	private volatile Connection listener;
+	private Thread thread;
+
+	@PostConstruct
+	public void init() {
+		if (enabled) {
+			start(adminDataSourceProperties.determineUrl(), adminDataSourceProperties.determineUsername(), adminDataSourceProperties.determinePassword());
+		}
+	}
+
+	public void start(String url, String username, String password) {
+		running = true;
+		thread = new Thread(() -> listen(url, username, password), "invalidation-listener");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@PreDestroy
+	public void close() {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+		}
+		closeQuietly(listener);
+	}
+
+	public void setBatchMillis(long batchMillis) {
+		this.batchMillis = batchMillis;
+	}
+
+	/**
+	 * Calls the listener with the keys published to the topic by any instance, including this one
+	 */
+	public synchronized void subscribe(String topic, Consumer<Set<String>> listener) {
+		subscribers.computeIfAbsent(topic, t -> new CopyOnWriteArrayList<>()).add(listener);
+	}
+
+	/**
+	 * Calls the callback after the listener connection has been re-established, when notifications may
+	 * have been missed
+	 */
+	public void onResync(Runnable resync) {
+		resyncs.add(resync);
+	}
+
+	/**
+	 * Sends the notification on the template's connection. Inside a transaction on the template's data source
+	 * it goes out on commit, and a failure is thrown: PostgreSQL has already aborted the transaction, so
+	 * carrying on would quietly turn the commit into a rollback of the change. Outside a transaction the
+	 * change has already committed and not being able to publish is only logged.
+	 */
+	public void publish(JdbcTemplate jdbc, String topic, Object key) {
+		if (!enabled) {
+			return;
+		}
+		if (TransactionSynchronizationManager.hasResource(jdbc.getDataSource())) {
+			jdbc.query("SELECT pg_notify(?, ?)", rs -> null, CHANNEL, topic + " " + key);
+			published.increment();
+			return;
+		}
+		try {
+			jdbc.query("SELECT pg_notify(?, ?)", rs -> null, CHANNEL, topic + " " + key);
+			published.increment();
+		} catch (Exception e) {
+			LOGGER.error("Error publishing {} {} invalidation", topic, key, e);
+		}
+	}
+
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("connected", listener != null);
+		stats.put("published", published.sum());
+		stats.put("received", received.sum());
+		stats.put("batches", batches.sum());
+		stats.put("reconnects", reconnects.sum());
+		return stats;
+	}
+
+	private void listen(String url, String username, String password) {
+		Properties properties = new Properties();
+		properties.put("user", username);
+		properties.put("password", password);
+		// Makes the listener easy to find in pg_stat_activity
+		properties.put("ApplicationName", "invalidation-listener");
+		long backoff = 0;
+		boolean connected = false;
+		while (running) {
+			try {
+				if (backoff > 0) {
+					Thread.sleep(backoff);
+				}
+				try (Connection connection = DriverManager.getConnection(url, properties)) {
+					try (Statement sql = connection.createStatement()) {
+						sql.execute("LISTEN " + CHANNEL);
+					}
+					listener = connection;
+					backoff = 0;
+					if (connected) {
+						reconnects.increment();
+						LOGGER.info("Invalidation listener reconnected, resynchronizing caches");
+						resync();
+					}
+					connected = true;
+					receive(connection.unwrap(PGConnection.class), connection);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (Exception e) {
+				if (running) {
+					backoff = Math.min(MAX_BACKOFF_MILLIS, Math.max(1000, backoff * 2));
+					LOGGER.warn("Invalidation listener connection failed, retrying in {} ms", backoff, e);
+				}
+			} finally {
+				listener = null;
+			}
+		}
+	}
+
+	private void receive(PGConnection pg, Connection connection) throws SQLException, InterruptedException {
+		while (running) {
+			PGNotification[] notifications = pg.getNotifications((int) POLL_MILLIS);
+			if (notifications == null || notifications.length == 0) {
+				// Nothing for a while. Make sure the connection is still there rather than waiting on a dead socket.
+				try (Statement sql = connection.createStatement()) {
+					sql.execute("SELECT 1");
+				}
+				continue;
+			}
+			List<PGNotification> batch = new ArrayList<>(Arrays.asList(notifications));
+			if (batchMillis > 0) {
+				Thread.sleep(batchMillis);
+				PGNotification[] more = pg.getNotifications(-1);
+				if (more != null) {
+					batch.addAll(Arrays.asList(more));
+				}
+			}
+			dispatch(batch);
+		}
+	}
+
+	void dispatch(List<PGNotification> notifications) {
+		Map<String, Set<String>> keys = new LinkedHashMap<>();
+		for (PGNotification notification : notifications) {
+			received.increment();
+			String[] message = notification.getParameter().split(" ", 2);
+			if (message.length == 2) {
+				keys.computeIfAbsent(message[0], topic -> new LinkedHashSet<>()).add(message[1]);
+			}
+		}
+		if (keys.isEmpty()) {
+			return;
+		}
+		batches.increment();
+		keys.forEach((topic, changed) -> {
+			List<Consumer<Set<String>>> listeners;
+			synchronized (this) {
+				listeners = subscribers.getOrDefault(topic, Collections.emptyList());
+			}
+			for (Consumer<Set<String>> listener : listeners) {
+				try {
+					listener.accept(Collections.unmodifiableSet(changed));
+				} catch (Exception e) {
+					LOGGER.error("Error applying {} invalidations", topic, e);
+				}
+			}
+		});
+	}
+
+	private void resync() {
+		for (Runnable resync : resyncs) {
+			try {
+				resync.run();
+			} catch (Exception e) {
+				LOGGER.error("Error resynchronizing cache", e);
+			}
+		}
+	}
+
+	private static void closeQuietly(Connection connection) {
+		if (connection != null) {
+			try {
+				connection.close();
+			} catch (SQLException ignored) {
+			}
+		}
+	}
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.amazon.aws.partners.saasfactory.pgrls.repository;
+
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Picks the data source for a tenant's reads. Reads go to the replica unless the tenant wrote something
+ * within the read-your-writes window, in which case they stay on the primary so the tenant sees its own
+ * changes even if the replica is lagging. The window is tracked per application instance.
+ */
+public class ReplicaRouter {
+
+	private final DataSource primary;
+	private final DataSource replica;
+	private final long readYourWritesNanos;
+	private final Map<Object, Long> lastWrites = new ConcurrentHashMap<>();
+	private final LongAdder replicaReads = new LongAdder();
+	private final LongAdder primaryReads = new LongAdder();
+
+	/**
+	 * @param primary
+	 * @param replica null when there is no replica and all reads go to the primary
+	 * @param readYourWritesMillis how long after a write the tenant's reads stay on the primary
+	 */
+	public ReplicaRouter(DataSource primary, DataSource replica, long readYourWritesMillis) {
+		this.primary = primary;
+		this.replica = replica;
+		this.readYourWritesNanos = TimeUnit.MILLISECONDS.toNanos(readYourWritesMillis);
+	}
+
+	public DataSource forRead(Object tenant) {
+		if (replica == null) {
+			return primary;
+		}
+		// A read inside a transaction has to use the transaction's connection
+		if (TransactionSynchronizationManager.isActualTransactionActive()) {
+			return TransactionSynchronizationManager.hasResource(replica) ? replica : primary;
+		}
+		Long written = lastWrites.get(tenant);
+		if (written != null) {
+			if (System.nanoTime() - written < readYourWritesNanos) {
+				primaryReads.increment();
+				return primary;
+			}
+			lastWrites.remove(tenant, written);
+		}
+		replicaReads.increment();
+		return replica;
+	}
+
+	public void written(Object tenant) {
+		if (replica != null) {
+			lastWrites.put(tenant, System.nanoTime());
+		}
+	}
+
+	public boolean isReplica(DataSource dataSource) {
+		return replica != null && replica == dataSource;
+	}
+
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("replicaReads", replicaReads.sum());
+		stats.put("primaryReadsAfterWrite", primaryReads.sum());
+		return stats;
+	}
+}
@@ -16,13 +16,33 @@
  */
 package com.amazon.aws.partners.saasfactory.pgrls.repository;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import javax.sql.DataSource;
 
 import com.amazon.aws.partners.saasfactory.pgrls.domain.Tenant;
+import com.zaxxer.hikari.HikariDataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.ConnectionProxy;
 import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
 import org.springframework.security.authentication.AnonymousAuthenticationToken;
 import org.springframework.security.core.Authentication;
@@ -34,6 +54,21 @@ import org.springframework.security.core.context.SecurityContextHolder;
  * Connections are not shared and session variables are private so this is thread safe. If we did not use
  * a session variable, you'd have to create a Postgres login ROLE for each tenant and then maintain a lookup
  * mechanism to get the proper connection credentials for each tenant.
+ *
+ * When every tenant shares the same connection pool (see {@link Isolation#Shared}) a physical connection
+ * will serve many tenants over its lifetime. In that case the session variable is only valid for the
+ * duration of a checkout and it is reset when the application closes (returns) the connection. A reset
+ * connection has an empty app.current_tenant which fails the ::UUID cast in the RLS policies, so a
+ * connection that somehow escaped without being bound can't see any tenant's rows.
+ *
+ * Each physical connection remembers which tenant its session is bound to so checking out a connection
+ * that is already bound to the current tenant (the normal case with a pool per tenant) doesn't cost a
+ * round-trip to the database.
+ *
+ * Session variables don't work behind a transaction pooler (like PgBouncer in transaction mode) which can give
+ * the next transaction on our connection a different server connection. With {@link Binding#Transaction} the
+ * tenant is bound with set_config(..., true) at the start of every transaction instead and statements outside
+ * of a transaction are refused.
  * @author mibeard
  */
 public class TenantAwareDataSource extends AbstractRoutingDataSource {
@@ -59,23 +94,415 @@ public class TenantAwareDataSource extends AbstractRoutingDataSource {
 		return key;
 	}
 	
+	// The tenant each physical connection's session is bound to. Read on every checkout so it
+	// mustn't lock, and weakly keyed so the entry goes away when the pool closes the connection.
+	private static final SessionBindings BINDINGS = new SessionBindings();
+
+	private Function<Object, DataSource> targetResolver;
+	private Predicate<DataSource> clearOnClose = target -> false;
+	private Binding binding = Binding.Session;
+	private double verifySampleRate = 0;
+	private TenantBulkhead bulkhead;
+	private final LongAdder binds = new LongAdder();
+	private final LongAdder reusedBindings = new LongAdder();
+	private final LongAdder verifications = new LongAdder();
+	private final LongAdder mismatches = new LongAdder();
+
+	/**
+	 * @param targetResolver finds (or creates) the connection pool for a tenant. Resolving a tenant
+	 *                       must not depend on any other tenant so lookups stay constant time and
+	 *                       lock free no matter how many tenants are active.
+	 */
+	public void setTargetResolver(Function<Object, DataSource> targetResolver) {
+		this.targetResolver = targetResolver;
+	}
+
+	/**
+	 * @param clearOnClose reset the tenant context when the connection is returned to the pool.
+	 *                     Required when connections are shared across tenants.
+	 */
+	public void setClearOnClose(boolean clearOnClose) {
+		this.clearOnClose = target -> clearOnClose;
+	}
+
+	/**
+	 * @param clearOnClose decides per connection pool whether connections are reset when they are returned.
+	 *                     Lets dedicated tenant pools and a shared pool sit behind the same data source.
+	 */
+	public void setClearOnClose(Predicate<DataSource> clearOnClose) {
+		this.clearOnClose = clearOnClose;
+	}
+
+	/**
+	 * @param binding whether the tenant is bound to the connection's session or to each transaction
+	 */
+	public void setBinding(Binding binding) {
+		this.binding = binding;
+	}
+
+	public Binding getBinding() {
+		return binding;
+	}
+
+	/**
+	 * @param verifySampleRate fraction (0 to 1) of checkouts that reuse an existing session binding where we
+	 *                         read app.current_tenant back from the database to make sure it is what we expect.
+	 *                         0, the default, never costs an extra round-trip.
+	 */
+	public void setVerifySampleRate(double verifySampleRate) {
+		this.verifySampleRate = verifySampleRate;
+	}
+
+	/**
+	 * @param bulkhead limits each tenant's concurrent checkouts. A permit is held until the connection is closed.
+	 */
+	public void setBulkhead(TenantBulkhead bulkhead) {
+		this.bulkhead = bulkhead;
+	}
+
 	@Override
 	public Connection getConnection() throws SQLException {
 		// Every time the app asks the data source for a connection
 		// set the PostgreSQL session variable to the current tenant
 		// to enforce data isolation.
-		Connection connection = super.getConnection();
-		try (Statement sql = connection.createStatement()) {
-			LOGGER.info("Setting PostgreSQL session variable app.current_tenant = '{}' on {}", determineCurrentLookupKey().toString(), this);
-			sql.execute("SET SESSION app.current_tenant = '" + determineCurrentLookupKey().toString() + "'");
-		} catch (Exception e) {
-			LOGGER.error("Failed to execute: SET SESSION app.current_tenant = '{}'", determineCurrentLookupKey().toString(), e);
+		Object tenant = determineCurrentLookupKey();
+		if (tenant == null) {
+			throw new SQLException("Can't bind connection. No authenticated tenant.");
+		}
+		// Take the tenant's permit before waiting on the pool so a tenant at its
+		// limit is turned away without holding up a pooled connection
+		Semaphore permit = bulkhead != null ? bulkhead.acquire(tenant) : null;
+		DataSource target;
+		Connection connection;
+		try {
+			target = determineTargetDataSource(tenant);
+			connection = target.getConnection();
+		} catch (SQLException | RuntimeException e) {
+			if (permit != null) {
+				permit.release();
+			}
+			throw e;
+		}
+		Connection physical;
+		try {
+			physical = connection.unwrap(Connection.class);
+			if (binding == Binding.Session) {
+				bind(connection, physical, tenant.toString());
+			}
+		} catch (SQLException e) {
+			LOGGER.error("Failed to set PostgreSQL session variable app.current_tenant = '{}'", tenant, e);
+			// Don't hand out a connection we couldn't bind
+			connection.close();
+			if (permit != null) {
+				permit.release();
+			}
+			throw e;
+		}
+		// Transaction scoped bindings never outlive the transaction so there is nothing to clear
+		boolean clear = clearOnClose.test(target) && binding == Binding.Session;
+		if (clear || binding == Binding.Transaction || permit != null) {
+			connection = (Connection) Proxy.newProxyInstance(ConnectionProxy.class.getClassLoader(),
+					new Class<?>[] {ConnectionProxy.class},
+					new TenantConnectionHandler(connection, physical, target, tenant.toString(), binding, clear, permit));
 		}
 		return connection;
 	}
 
+	// Pooled connections come back to the same tenant over and over, so only go to the
+	// database when the physical connection is bound to some other tenant (or nothing).
+	private void bind(Connection connection, Connection physical, String tenant) throws SQLException {
+		if (tenant.equals(BINDINGS.get(physical)) && (!sampled() || verify(connection, tenant))) {
+			reusedBindings.increment();
+			return;
+		}
+		LOGGER.debug("Setting PostgreSQL session variable app.current_tenant = '{}' on {}", tenant, connection);
+		BINDINGS.remove(physical);
+		try (PreparedStatement sql = connection.prepareStatement("SELECT set_config('app.current_tenant', ?, false)")) {
+			sql.setString(1, tenant);
+			sql.execute();
+		}
+		binds.increment();
+		// Settings changed inside a transaction are undone if it rolls back
+		// so we can only trust the binding once it's committed
+		if (connection.getAutoCommit()) {
+			BINDINGS.put(physical, tenant);
+		}
+	}
+
+	private boolean sampled() {
+		return verifySampleRate > 0 && ThreadLocalRandom.current().nextDouble() < verifySampleRate;
+	}
+
+	// Double check that the session really is bound to the tenant we think it is. This costs a round-trip
+	// so it only happens for the sampled fraction of checkouts. A mismatch means the binding gets sent again.
+	private boolean verify(Connection connection, String tenant) throws SQLException {
+		verifications.increment();
+		String bound = null;
+		try (Statement sql = connection.createStatement(); ResultSet rs = sql.executeQuery("SELECT current_setting('app.current_tenant', true)")) {
+			if (rs.next()) {
+				bound = rs.getString(1);
+			}
+		}
+		if (!tenant.equals(bound)) {
+			mismatches.increment();
+			LOGGER.warn("Connection {} expected app.current_tenant = '{}' but found '{}'", connection, tenant, bound);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return counts of bindings sent to the database, bindings skipped because the connection was already
+	 * bound to the tenant and sampled verifications of skipped bindings
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("binds", binds.sum());
+		stats.put("reusedBindings", reusedBindings.sum());
+		stats.put("verifications", verifications.sum());
+		stats.put("verificationMismatches", mismatches.sum());
+		return stats;
+	}
+
+	@Override
+	protected DataSource determineTargetDataSource() {
+		return determineTargetDataSource(determineCurrentLookupKey());
+	}
+
+	private DataSource determineTargetDataSource(Object tenant) {
+		if (targetResolver == null) {
+			// Plain AbstractRoutingDataSource behaviour with a static target map
+			return super.determineTargetDataSource();
+		}
+		DataSource target = tenant != null ? targetResolver.apply(tenant) : null;
+		if (target == null) {
+			throw new IllegalStateException("Cannot determine target DataSource for lookup key [" + tenant + "]");
+		}
+		return target;
+	}
+
 	@Override
 	public String toString() {
 		return determineTargetDataSource().toString();
 	}
+
+	/**
+	 * Wraps the pooled connection for the duration of a checkout. With {@link Binding#Transaction} it binds the
+	 * tenant as the first statement of every transaction. With clearOnClose it resets app.current_tenant before
+	 * the connection goes back to the pool. If the reset fails we can't trust the connection anymore and we ask
+	 * the pool to evict it instead of reusing it.
+	 */
+	private static class TenantConnectionHandler implements InvocationHandler {
+
+		private final Connection target;
+		private final Connection physical;
+		private final Object pool;
+		private final String tenant;
+		private final Binding binding;
+		private final boolean clearOnClose;
+		private final Semaphore permit;
+		private boolean boundInTransaction = false;
+		private boolean closed = false;
+
+		TenantConnectionHandler(Connection target, Connection physical, Object pool, String tenant, Binding binding, boolean clearOnClose, Semaphore permit) {
+			this.target = target;
+			this.physical = physical;
+			this.pool = pool;
+			this.tenant = tenant;
+			this.binding = binding;
+			this.clearOnClose = clearOnClose;
+			this.permit = permit;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			switch (method.getName()) {
+				case "equals":
+					return proxy == args[0];
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "getTargetConnection":
+					return target;
+				case "isClosed":
+					return closed || target.isClosed();
+				case "close":
+					if (!closed) {
+						closed = true;
+						try {
+							if (clearOnClose) {
+								clear();
+							}
+							target.close();
+						} finally {
+							if (permit != null) {
+								permit.release();
+							}
+						}
+					}
+					return null;
+				case "toString":
+					return target.toString();
+				default:
+					if (closed) {
+						throw new SQLException("Connection is closed");
+					}
+					break;
+			}
+			switch (method.getName()) {
+				case "createStatement":
+				case "prepareStatement":
+				case "prepareCall":
+					if (binding == Binding.Transaction) {
+						bindTransaction();
+					}
+					break;
+				case "commit":
+				case "rollback":
+				case "setAutoCommit":
+					// The transaction (or the savepoint the binding may have come after) is gone
+					boundInTransaction = false;
+					break;
+				default:
+					break;
+			}
+			try {
+				return method.invoke(target, args);
+			} catch (InvocationTargetException e) {
+				throw e.getTargetException();
+			}
+		}
+
+		// set_config with is_local = true only lasts until the end of the current transaction. That is
+		// what makes it safe behind a transaction pooler that hands the server connection to someone
+		// else as soon as we commit. The driver sends it in the same round-trip as the BEGIN.
+		private void bindTransaction() throws SQLException {
+			if (boundInTransaction) {
+				return;
+			}
+			if (target.getAutoCommit()) {
+				throw new SQLException("Tenant context is bound per transaction. Statements must run inside a transaction.");
+			}
+			LOGGER.debug("Setting PostgreSQL transaction variable app.current_tenant = '{}' on {}", tenant, target);
+			try (PreparedStatement sql = target.prepareStatement("SELECT set_config('app.current_tenant', ?, true)")) {
+				sql.setString(1, tenant);
+				sql.execute();
+			}
+			boundInTransaction = true;
+		}
+
+		// Tenant pools come wrapped by the cache
+		private void evict() {
+			try {
+				if (pool instanceof DataSource && ((DataSource) pool).isWrapperFor(HikariDataSource.class)) {
+					((DataSource) pool).unwrap(HikariDataSource.class).evictConnection(target);
+				}
+			} catch (SQLException e) {
+				LOGGER.error("Failed to evict connection {}", target, e);
+			}
+		}
+
+		private void clear() {
+			BINDINGS.remove(physical);
+			try (Statement sql = target.createStatement()) {
+				// RESET is transactional. Anything left uncommitted by the caller gets rolled back
+				// and the RESET itself has to be committed or the pool's own rollback would undo it.
+				boolean autoCommit = target.getAutoCommit();
+				if (!autoCommit) {
+					target.rollback();
+				}
+				sql.execute("RESET app.current_tenant");
+				if (!autoCommit) {
+					target.commit();
+				}
+			} catch (SQLException e) {
+				LOGGER.error("Failed to execute: RESET app.current_tenant. Evicting connection.", e);
+				evict();
+			}
+		}
+	}
+
+	/**
+	 * A concurrent map from physical connection to tenant that holds the connections weakly and compares
+	 * them by identity, like a WeakHashMap would for PgConnection, without a lock around every call.
+	 * Entries for connections that have been garbage collected are dropped on the next put.
+	 */
+	private static class SessionBindings {
+
+		private final Map<Object, String> bindings = new ConcurrentHashMap<>();
+		private final ReferenceQueue<Connection> collected = new ReferenceQueue<>();
+
+		String get(Connection connection) {
+			return bindings.get(new Lookup(connection));
+		}
+
+		void put(Connection connection, String tenant) {
+			Reference<? extends Connection> gone;
+			while ((gone = collected.poll()) != null) {
+				bindings.remove(gone);
+			}
+			bindings.put(new Key(connection, collected), tenant);
+		}
+
+		void remove(Connection connection) {
+			bindings.remove(new Lookup(connection));
+		}
+
+		private interface Keyed {
+			Connection connection();
+		}
+
+		private static boolean same(Keyed key, Object other) {
+			Connection connection = key.connection();
+			return connection != null && other instanceof Keyed && ((Keyed) other).connection() == connection;
+		}
+
+		private static class Key extends WeakReference<Connection> implements Keyed {
+			private final int hash;
+
+			Key(Connection connection, ReferenceQueue<Connection> queue) {
+				super(connection, queue);
+				hash = System.identityHashCode(connection);
+			}
+
+			@Override
+			public Connection connection() {
+				return get();
+			}
+
+			@Override
+			public boolean equals(Object other) {
+				// A collected key only matches itself, which is how put drops it
+				return this == other || same(this, other);
+			}
+
+			@Override
+			public int hashCode() {
+				return hash;
+			}
+		}
+
+		// Only lives for the duration of a lookup so it doesn't need to be weak
+		private static class Lookup implements Keyed {
+			private final Connection connection;
+
+			Lookup(Connection connection) {
+				this.connection = connection;
+			}
+
+			@Override
+			public Connection connection() {
+				return connection;
+			}
+
+			@Override
+			public boolean equals(Object other) {
+				return same(this, other);
+			}
+
+			@Override
+			public int hashCode() {
+				return System.identityHashCode(connection);
+			}
+		}
+	}
 }
@@ -0,0 +1,108 @@
+/**
+ * Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.amazon.aws.partners.saasfactory.pgrls.repository;
+
+import com.amazon.aws.partners.saasfactory.pgrls.TenantThrottledException;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToIntFunction;
+
+/**
+ * Limits how many connections each tenant can have checked out at once so one busy tenant can't
+ * tie up every request thread waiting on the database. A tenant at its limit waits a short, bounded
+ * time for a permit and is then turned away with a {@link TenantThrottledException}.
+ */
+public class TenantBulkhead {
+
+	private final Map<Object, Semaphore> permits = new ConcurrentHashMap<>();
+	private final ToIntFunction<Object> limits;
+	private final long maxWaitNanos;
+	private final LongAdder admitted = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder queued = new LongAdder();
+	private final LongAdder queuedNanos = new LongAdder();
+	private final AtomicLong maxQueuedNanos = new AtomicLong();
+
+	/**
+	 * @param limits concurrent checkouts allowed for a tenant. 0 or less means no limit.
+	 * @param maxWaitMillis how long a tenant at its limit waits for a permit before being rejected
+	 */
+	public TenantBulkhead(ToIntFunction<Object> limits, long maxWaitMillis) {
+		this.limits = limits;
+		this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+	}
+
+	/**
+	 * @param tenant
+	 * @return the permit to release when the tenant's connection is returned, or null if the tenant isn't limited
+	 * @throws TenantThrottledException if no permit came free in time
+	 */
+	public Semaphore acquire(Object tenant) {
+		int limit = limits.applyAsInt(tenant);
+		if (limit < 1) {
+			return null;
+		}
+		Semaphore semaphore = permits.computeIfAbsent(tenant, key -> new Semaphore(limit));
+		if (semaphore.tryAcquire()) {
+			admitted.increment();
+			return semaphore;
+		}
+		long start = System.nanoTime();
+		boolean acquired = false;
+		try {
+			acquired = semaphore.tryAcquire(maxWaitNanos, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		long waited = System.nanoTime() - start;
+		queued.increment();
+		queuedNanos.add(waited);
+		maxQueuedNanos.accumulateAndGet(waited, Math::max);
+		if (!acquired) {
+			rejected.increment();
+			throw new TenantThrottledException("Too many concurrent requests for tenant " + tenant);
+		}
+		admitted.increment();
+		return semaphore;
+	}
+
+	/**
+	 * Forget the tenant's permits so its next checkout picks up a new limit (after a tier change).
+	 * Connections already checked out still release to the permits they took.
+	 * @param tenant
+	 */
+	public void reset(Object tenant) {
+		permits.remove(tenant);
+	}
+
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new LinkedHashMap<>();
+		long waits = queued.sum();
+		stats.put("admitted", admitted.sum());
+		stats.put("rejected", rejected.sum());
+		stats.put("queued", waits);
+		stats.put("averageQueueMillis", waits == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(queuedNanos.sum() / waits));
+		stats.put("maxQueueMillis", TimeUnit.NANOSECONDS.toMillis(maxQueuedNanos.get()));
+		return stats;
+	}
+}
@@ -0,0 +1,303 @@
+/**
+ * Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.amazon.aws.partners.saasfactory.pgrls.repository;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Bounded cache of tenant connection pools. A pool is evicted when it has not been used for the idle
+ * timeout, or when a new tenant needs a pool and the cache is full, in which case the least recently
+ * used tenant gives up its pool. Evicted pools are closed in the background once their in-flight
+ * connections have been returned (or the close grace period runs out) so a slow query isn't cut off.
+ *
+ * The data sources handed out wrap the tenant's pool and count the checkouts in progress through them.
+ * An evicted pool isn't closed while a checkout is under way, and a checkout through a pool that was
+ * evicted after it was looked up goes to the tenant's new pool instead of failing on a closed one.
+ *
+ * Lookups don't lock. Finding the least recently used tenant is a scan, but that only happens when
+ * a new pool is created on a full cache.
+ */
+public class TenantDataSourceCache {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(TenantDataSourceCache.class);
+	private static final long CLOSE_GRACE_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+	private final ConcurrentHashMap<Object, Entry> pools = new ConcurrentHashMap<>();
+	private final int maximumSize;
+	private final long idleTimeoutMillis;
+	private final ScheduledExecutorService sweeper;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	public TenantDataSourceCache(int maximumSize, long idleTimeoutMillis) {
+		if (maximumSize < 1) {
+			throw new IllegalArgumentException("maximumSize must be at least 1");
+		}
+		this.maximumSize = maximumSize;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "tenant-pool-sweeper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		if (idleTimeoutMillis > 0) {
+			long period = Math.max(1000, Math.min(idleTimeoutMillis / 4, 60000));
+			sweeper.scheduleWithFixedDelay(this::expireIdle, period, period, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * @return the tenant's pool or null if the tenant doesn't have one
+	 */
+	public DataSource get(Object tenant) {
+		Entry entry = pools.get(tenant);
+		if (entry == null) {
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		entry.touch();
+		return entry;
+	}
+
+	/**
+	 * Returns the tenant's pool, creating it with the factory if the tenant doesn't have one.
+	 * Adding a pool to a full cache evicts the least recently used tenant.
+	 */
+	public DataSource get(Object tenant, Function<Object, DataSource> factory) {
+		DataSource dataSource = get(tenant);
+		if (dataSource == null) {
+			Entry entry = pools.computeIfAbsent(tenant, key -> new Entry(key, factory));
+			entry.touch();
+			dataSource = entry;
+			while (pools.size() > maximumSize) {
+				evictLeastRecentlyUsed(tenant);
+			}
+		}
+		return dataSource;
+	}
+
+	/**
+	 * Removes the tenant's pool and closes it once it's no longer in use.
+	 */
+	public void evict(Object tenant) {
+		Entry entry = pools.remove(tenant);
+		if (entry != null) {
+			evictions.increment();
+			LOGGER.info("Evicted connection pool for tenant {}", tenant);
+			sweeper.execute(() -> close(entry, System.currentTimeMillis()));
+		}
+	}
+
+	/**
+	 * @return a point in time copy of the tenant to pool mappings
+	 */
+	public Map<Object, Object> asMap() {
+		Map<Object, Object> targets = new HashMap<>();
+		pools.forEach((tenant, entry) -> targets.put(tenant, entry));
+		return targets;
+	}
+
+	public int size() {
+		return pools.size();
+	}
+
+	public int getMaximumSize() {
+		return maximumSize;
+	}
+
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("size", pools.size());
+		stats.put("maximumSize", maximumSize);
+		stats.put("hits", hits.sum());
+		stats.put("misses", misses.sum());
+		stats.put("evictions", evictions.sum());
+		return stats;
+	}
+
+	/**
+	 * Closes every pool. Called by Spring when the application shuts down.
+	 */
+	public void close() {
+		sweeper.shutdownNow();
+		pools.keySet().forEach(tenant -> {
+			Entry entry = pools.remove(tenant);
+			if (entry != null) {
+				closeQuietly(entry.pool);
+			}
+		});
+	}
+
+	private void evictLeastRecentlyUsed(Object keep) {
+		Object eldest = null;
+		long eldestAccess = Long.MAX_VALUE;
+		for (Map.Entry<Object, Entry> candidate : pools.entrySet()) {
+			long lastAccess = candidate.getValue().lastAccess;
+			if (!candidate.getKey().equals(keep) && lastAccess < eldestAccess) {
+				eldest = candidate.getKey();
+				eldestAccess = lastAccess;
+			}
+		}
+		if (eldest == null) {
+			return;
+		}
+		LOGGER.info("Tenant connection pool cache is full ({}), evicting least recently used tenant {}", maximumSize, eldest);
+		evict(eldest);
+	}
+
+	private void expireIdle() {
+		long cutoff = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+		try {
+			pools.forEach((tenant, entry) -> {
+				if (entry.lastAccess < cutoff && activeConnections(entry.pool) == 0) {
+					LOGGER.info("Connection pool for tenant {} idle for more than {} ms", tenant, idleTimeoutMillis);
+					evict(tenant);
+				}
+			});
+			if (LOGGER.isDebugEnabled()) {
+				LOGGER.debug("Tenant connection pool cache {}", getStats());
+			}
+		} catch (Exception e) {
+			// Don't let one bad pool kill the scheduled sweep
+			LOGGER.error("Error expiring idle tenant connection pools", e);
+		}
+	}
+
+	// Wait for borrowed connections to come back before shutting the pool down. Hikari
+	// would otherwise abort them in the middle of whatever they're doing. A checkout that is
+	// still waiting on the pool always gets to finish, it's bounded by the pool's own timeout.
+	private void close(Entry entry, long evictedAt) {
+		int active = activeConnections(entry.pool);
+		if ((active > 0 && System.currentTimeMillis() - evictedAt < CLOSE_GRACE_MILLIS) || !entry.retire()) {
+			sweeper.schedule(() -> close(entry, evictedAt), 1, TimeUnit.SECONDS);
+			return;
+		}
+		if (active > 0) {
+			LOGGER.warn("Closing evicted connection pool {} with {} connections still in use", entry.pool, active);
+		}
+		closeQuietly(entry.pool);
+	}
+
+	private static int activeConnections(DataSource dataSource) {
+		if (dataSource instanceof HikariDataSource) {
+			HikariPoolMXBean pool = ((HikariDataSource) dataSource).getHikariPoolMXBean();
+			if (pool != null) {
+				return pool.getActiveConnections();
+			}
+		}
+		return 0;
+	}
+
+	private static void closeQuietly(DataSource dataSource) {
+		try {
+			if (dataSource instanceof AutoCloseable) {
+				((AutoCloseable) dataSource).close();
+			}
+		} catch (Exception e) {
+			LOGGER.error("Error closing connection pool {}", dataSource, e);
+		}
+	}
+
+	private final class Entry extends DelegatingDataSource {
+
+		private final Object tenant;
+		private final Function<Object, DataSource> factory;
+		private final DataSource pool;
+		// Checkouts in progress, or -1 once the pool is being closed
+		private final AtomicInteger checkouts = new AtomicInteger();
+		private volatile long lastAccess;
+
+		private Entry(Object tenant, Function<Object, DataSource> factory) {
+			super(factory.apply(tenant));
+			this.tenant = tenant;
+			this.factory = factory;
+			this.pool = getTargetDataSource();
+			this.lastAccess = System.nanoTime();
+		}
+
+		private void touch() {
+			lastAccess = System.nanoTime();
+		}
+
+		@Override
+		public Connection getConnection() throws SQLException {
+			if (!pin()) {
+				// Evicted since it was looked up
+				return get(tenant, factory).getConnection();
+			}
+			try {
+				return pool.getConnection();
+			} finally {
+				checkouts.decrementAndGet();
+			}
+		}
+
+		@Override
+		public Connection getConnection(String username, String password) throws SQLException {
+			if (!pin()) {
+				return get(tenant, factory).getConnection(username, password);
+			}
+			try {
+				return pool.getConnection(username, password);
+			} finally {
+				checkouts.decrementAndGet();
+			}
+		}
+
+		private boolean pin() {
+			while (true) {
+				int current = checkouts.get();
+				if (current < 0) {
+					return false;
+				}
+				if (checkouts.compareAndSet(current, current + 1)) {
+					return true;
+				}
+			}
+		}
+
+		// Only succeeds when no checkout is in progress, after which none can start
+		private boolean retire() {
+			return checkouts.compareAndSet(0, -1);
+		}
+
+		@Override
+		public String toString() {
+			return pool.toString();
+		}
+	}
+}
@@ -19,6 +19,7 @@ package com.amazon.aws.partners.saasfactory.pgrls.service;
 import com.amazon.aws.partners.saasfactory.pgrls.domain.Tenant;
 
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -39,4 +40,12 @@ public interface AdminService {
 
 	public boolean userExists(UUID userId);
 
+	public void recordLogin(UUID tenantId);
+
+	public List<Tenant> getHotTenants(int limit);
+
+	public String getTenantsVersion();
+
+	public Map<String, Object> getTenantCacheStats();
+
 }
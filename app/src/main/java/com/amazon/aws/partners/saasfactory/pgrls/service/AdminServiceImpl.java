@@ -17,11 +17,15 @@
 package com.amazon.aws.partners.saasfactory.pgrls.service;
 
 import com.amazon.aws.partners.saasfactory.pgrls.domain.Tenant;
+import com.amazon.aws.partners.saasfactory.pgrls.domain.Tier;
 import com.amazon.aws.partners.saasfactory.pgrls.repository.AdminDataSourceRepository;
+import com.amazon.aws.partners.saasfactory.pgrls.repository.DataSourceRepository;
+import com.amazon.aws.partners.saasfactory.pgrls.repository.InvalidationBus;
 import com.amazon.aws.partners.saasfactory.pgrls.repository.UniqueRecordException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.DataAccessException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
@@ -30,11 +34,16 @@ import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.jdbc.support.GeneratedKeyHolder;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.sql.SQLException;
 import java.sql.Types;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * In a more complete solution, you'd break up your business logic
@@ -48,10 +57,40 @@ public class AdminServiceImpl implements AdminService {
     private static final Logger LOGGER = LoggerFactory.getLogger(AdminServiceImpl.class);
 
     private JdbcTemplate admin;
+    private TenantCache tenantCache;
+
+    @Autowired
+    private DataSourceRepository tenantRepo;
+
+    @Autowired
+    private InvalidationBus invalidationBus;
+
+    @Value("${admin.tenant-cache.refresh-seconds:30}")
+    private long tenantCacheRefreshSeconds;
 
     @Autowired
     public AdminServiceImpl(AdminDataSourceRepository adminRepo) {
         admin = new JdbcTemplate(adminRepo.dataSource());
+        tenantCache = new TenantCache(admin);
+    }
+
+    @PostConstruct
+    public void init() {
+        // A tier change made on another instance moves the tenant between connection pools here as well
+        tenantCache.setListener((tenantId, before, after) -> {
+            Tier tier = after != null ? after.getTier() : null;
+            if (before == null || before.getTier() != tier) {
+                tenantRepo.setTenantTier(tenantId, tier);
+            }
+        });
+        invalidationBus.subscribe(InvalidationBus.TENANTS, ids -> tenantCache.reload(ids.stream().map(UUID::fromString).collect(Collectors.toList())));
+        invalidationBus.onResync(tenantCache::reloadAll);
+        tenantCache.start(TimeUnit.SECONDS.toMillis(tenantCacheRefreshSeconds));
+    }
+
+    @PreDestroy
+    public void close() {
+        tenantCache.close();
     }
 
     private JdbcTemplate admin() {
@@ -105,6 +144,8 @@ public class AdminServiceImpl implements AdminService {
             if (update == 1) {
                 UUID tenantId = (UUID) generated.getKeys().get("tenant_id");
                 tenant.setId(tenantId);
+                tenantCache.put(tenant);
+                invalidationBus.publish(admin(), InvalidationBus.TENANTS, tenantId);
             } else {
                 // todo throw error here?
             }
@@ -125,9 +166,14 @@ public class AdminServiceImpl implements AdminService {
 
     protected Tenant updateTenant(Tenant tenant) {
         Tenant updated = null;
-        int rowsEffected = admin().update("UPDATE tenant SET name = ?, status = ?, tier = ? WHERE tenant_id = ?", tenant.getName(), tenant.getStatusAsString(), tenant.getTierAsString(), tenant.getId());
-        if (rowsEffected == 1) {
-            updated = getTenant(tenant.getId());
+        List<Tenant> rows = admin().query("UPDATE tenant SET name = ?, status = ?, tier = ? WHERE tenant_id = ? RETURNING tenant_id, name, status, tier",
+                new TenantRowMapper(), tenant.getName(), tenant.getStatusAsString(), tenant.getTierAsString(), tenant.getId());
+        if (!rows.isEmpty()) {
+            updated = rows.get(0);
+            tenantCache.put(updated);
+            invalidationBus.publish(admin(), InvalidationBus.TENANTS, updated.getId());
+            // Moves the tenant between a dedicated and the shared connection pool if its tier changed
+            tenantRepo.setTenantTier(updated.getId(), updated.getTier());
         }
         return updated;
     }
@@ -136,13 +182,18 @@ public class AdminServiceImpl implements AdminService {
      * Listing all tenants is an admin function. This SQL will run
      * properly under RLS and you'll only get 1 row in the result
      * set -- the one that matches the current tenant context.
-     * @return
+     * Served from the tenant cache once it has loaded.
+     * @return tenants sorted by name
      */
     @Override
     public List<Tenant> getTenants() {
-        List<Tenant> tenants = new ArrayList<>();
+        List<Tenant> tenants = tenantCache.getAll();
+        if (tenants != null) {
+            return tenants;
+        }
+        tenants = new ArrayList<>();
         try {
-            tenants = admin().query("SELECT tenant_id, name, status, tier FROM tenant", new TenantRowMapper());
+            tenants = admin().query("SELECT tenant_id, name, status, tier FROM tenant ORDER BY name", new TenantRowMapper());
         } catch (EmptyResultDataAccessException e) {
             // If row level security policies aren't met, it's not
             // an exception from the database, it's just as if the
@@ -152,9 +203,14 @@ public class AdminServiceImpl implements AdminService {
     }
 
     public Tenant getTenant(UUID tenantId) {
-        Tenant tenant = null;
+        Tenant tenant = tenantCache.get(tenantId);
+        if (tenant != null) {
+            return tenant;
+        }
         try {
+            // Possibly created by another instance since the cache last refreshed
             tenant = admin().queryForObject("SELECT tenant_id, name, status, tier FROM tenant WHERE tenant_id = ?", new TenantRowMapper(), tenantId);
+            tenantCache.put(tenant);
         } catch (EmptyResultDataAccessException e) {
         }
         return tenant;
@@ -163,14 +219,20 @@ public class AdminServiceImpl implements AdminService {
     @Override
     public void deleteTenant(Tenant tenant) {
         admin().update("DELETE FROM tenant WHERE tenant_id = ?", tenant.getId());
+        tenantCache.remove(tenant.getId());
+        invalidationBus.publish(admin(), InvalidationBus.TENANTS, tenant.getId());
     }
 
     public void deleteTenantUsers(Tenant tenant) {
         admin().update("DELETE FROM tenant_user WHERE tenant_id = ?", tenant.getId());
+        invalidationBus.publish(admin(), InvalidationBus.USERS, tenant.getId());
     }
 
     @Override
     public boolean tenantExists(UUID tenantId) {
+        if (tenantCache.get(tenantId) != null) {
+            return true;
+        }
         boolean exists = false;
         try {
             exists = admin().queryForObject("SELECT EXISTS(SELECT * FROM tenant WHERE tenant_id = ?)", Boolean.class, tenantId);
@@ -190,4 +252,51 @@ public class AdminServiceImpl implements AdminService {
         }
         return exists;
     }
+
+    /**
+     * Keeps a running login count per tenant so a freshly started task knows which
+     * tenants' connection pools are worth building before it takes traffic.
+     * @param tenantId
+     */
+    @Override
+    public void recordLogin(UUID tenantId) {
+        try {
+            admin().update("INSERT INTO tenant_activity (tenant_id) VALUES (?) " +
+                    "ON CONFLICT (tenant_id) DO UPDATE SET logins = tenant_activity.logins + 1, last_login = now()", tenantId);
+        } catch (Exception e) {
+            LOGGER.error("Error recording login for tenant {}", tenantId, e);
+        }
+    }
+
+    /**
+     * The most active tenants which have logged in recently, busiest first.
+     * @param limit
+     * @return
+     */
+    @Override
+    public List<Tenant> getHotTenants(int limit) {
+        List<Tenant> tenants = new ArrayList<>();
+        try {
+            tenants = admin().query("SELECT t.tenant_id, t.name, t.status, t.tier FROM tenant_activity a JOIN tenant t ON t.tenant_id = a.tenant_id " +
+                    "WHERE t.status = 'Active' AND a.last_login > now() - INTERVAL '7 days' " +
+                    "ORDER BY a.logins DESC, a.last_login DESC LIMIT ?", new TenantRowMapper(), limit);
+        } catch (Exception e) {
+            LOGGER.error("Error selecting hot tenants", e);
+        }
+        return tenants;
+    }
+
+    /**
+     * Changes whenever the list of tenants getTenants returns changes
+     * @return null while the tenant cache hasn't loaded
+     */
+    @Override
+    public String getTenantsVersion() {
+        return tenantCache.getVersion();
+    }
+
+    @Override
+    public Map<String, Object> getTenantCacheStats() {
+        return tenantCache.getStats();
+    }
 }
@@ -0,0 +1,346 @@
+/**
+ * Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.amazon.aws.partners.saasfactory.pgrls.service;
+
+import com.amazon.aws.partners.saasfactory.pgrls.domain.Tenant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.util.DigestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process copy of the tenant table for the admin lookups that run on every login and page view. Readers
+ * get an immutable snapshot (by id and sorted by name) without locking. Writers swap in a new snapshot, so
+ * a refresh never holds up a read.
+ *
+ * A background refresh only reads the tenants whose updated_at is newer than the last refresh (with some
+ * overlap for transactions that were still in flight). Deletes made by other instances show up as a change
+ * in the row count, which triggers a full reload. Changes made through this instance are written through
+ * straight away, and changes announced by other instances are reloaded by id as they arrive.
+ */
+public class TenantCache {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(TenantCache.class);
+	private static final long OVERLAP_MILLIS = TimeUnit.MINUTES.toMillis(1);
+	private static final Comparator<Tenant> BY_NAME = Comparator.comparing((Tenant tenant) -> String.valueOf(tenant.getName()), String.CASE_INSENSITIVE_ORDER)
+			.thenComparing(Tenant::getId);
+
+	private final JdbcTemplate admin;
+	private final ScheduledExecutorService refresher;
+	// Bumped by every write through. A refresh that overlaps one is thrown away rather than risk undoing it.
+	private final AtomicLong writes = new AtomicLong();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder refreshes = new LongAdder();
+	private final LongAdder reloads = new LongAdder();
+	private volatile Snapshot snapshot;
+	private volatile Listener listener;
+
+	public TenantCache(JdbcTemplate admin) {
+		this.admin = admin;
+		this.refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "tenant-cache-refresh");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Loads every tenant and then keeps the cache fresh in the background. If the first load fails the
+	 * cache stays empty and callers go to the database until a later refresh succeeds.
+	 */
+	public void start(long refreshMillis) {
+		try {
+			refresh();
+		} catch (Exception e) {
+			LOGGER.error("Error loading tenant cache", e);
+		}
+		refresher.scheduleWithFixedDelay(() -> {
+			try {
+				refresh();
+			} catch (Exception e) {
+				LOGGER.error("Error refreshing tenant cache", e);
+			}
+		}, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public void close() {
+		refresher.shutdownNow();
+	}
+
+	/**
+	 * Called for tenants that a refresh or reload found changed, added or removed. Not called for the
+	 * tenants passed to put or remove.
+	 */
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * @return copies of all tenants sorted by name, or null if the cache hasn't loaded
+	 */
+	public List<Tenant> getAll() {
+		Snapshot current = snapshot;
+		if (current == null) {
+			return null;
+		}
+		List<Tenant> tenants = new ArrayList<>(current.byName.size());
+		for (Tenant tenant : current.byName) {
+			tenants.add(copy(tenant));
+		}
+		return tenants;
+	}
+
+	/**
+	 * @return a copy of the tenant or null if it isn't cached
+	 */
+	public Tenant get(UUID tenantId) {
+		Snapshot current = snapshot;
+		Tenant tenant = current != null ? current.byId.get(tenantId) : null;
+		if (tenant == null) {
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		return copy(tenant);
+	}
+
+	public synchronized void put(Tenant tenant) {
+		writes.incrementAndGet();
+		if (snapshot != null && tenant.getId() != null) {
+			snapshot = snapshot.merge(Collections.singletonList(copy(tenant)), null, snapshot.refreshedAt);
+		}
+	}
+
+	public synchronized void remove(UUID tenantId) {
+		writes.incrementAndGet();
+		if (snapshot != null) {
+			snapshot = snapshot.merge(Collections.emptyList(), tenantId, snapshot.refreshedAt);
+		}
+	}
+
+	/**
+	 * Re-reads the given tenants now, removing any that no longer exist
+	 */
+	public void reload(Collection<UUID> tenantIds) {
+		if (tenantIds.isEmpty()) {
+			return;
+		}
+		List<Tenant> found = admin.query(connection -> {
+			PreparedStatement sql = connection.prepareStatement("SELECT tenant_id, name, status, tier FROM tenant WHERE tenant_id = ANY(?)");
+			sql.setArray(1, connection.createArrayOf("uuid", tenantIds.toArray()));
+			return sql;
+		}, new TenantRowMapper());
+		Snapshot before;
+		Snapshot after;
+		synchronized (this) {
+			writes.incrementAndGet();
+			before = snapshot;
+			if (before == null) {
+				return;
+			}
+			Map<UUID, Tenant> merged = new HashMap<>(before.byId);
+			tenantIds.forEach(merged::remove);
+			found.forEach(tenant -> merged.put(tenant.getId(), tenant));
+			after = new Snapshot(merged, before.refreshedAt);
+			snapshot = after;
+		}
+		notifyChanges(before, after, tenantIds);
+	}
+
+	/**
+	 * Re-reads every tenant now
+	 */
+	public void reloadAll() {
+		Map<String, Object> now = admin.queryForMap("SELECT now() AS refreshed_at");
+		Snapshot loaded = load((Timestamp) now.get("refreshed_at"));
+		Snapshot before;
+		synchronized (this) {
+			writes.incrementAndGet();
+			before = snapshot;
+			snapshot = loaded;
+		}
+		notifyChanges(before, loaded, null);
+	}
+
+	/**
+	 * @return a hash of the cached tenants, the same on every instance caching the same tenants, or null if
+	 * the cache hasn't loaded
+	 */
+	public String getVersion() {
+		Snapshot current = snapshot;
+		return current != null ? current.version : null;
+	}
+
+	public Map<String, Object> getStats() {
+		Snapshot current = snapshot;
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("size", current != null ? current.byId.size() : 0);
+		stats.put("hits", hits.sum());
+		stats.put("misses", misses.sum());
+		stats.put("refreshes", refreshes.sum());
+		stats.put("reloads", reloads.sum());
+		stats.put("refreshedAt", current != null ? current.refreshedAt.toInstant().toString() : null);
+		return stats;
+	}
+
+	/**
+	 * Reads the tenants changed since the last refresh, or all of them if some were deleted. Runs in the
+	 * background once started, and is thrown away if a write through overlaps it.
+	 */
+	public void refresh() {
+		long writesBefore = writes.get();
+		Snapshot current = snapshot;
+		Map<String, Object> now = admin.queryForMap("SELECT now() AS refreshed_at, count(*) AS tenants FROM tenant");
+		Timestamp refreshedAt = (Timestamp) now.get("refreshed_at");
+		long count = ((Number) now.get("tenants")).longValue();
+		Snapshot next;
+		if (current == null) {
+			next = load(refreshedAt);
+		} else {
+			List<Tenant> changed = admin.query("SELECT tenant_id, name, status, tier FROM tenant WHERE updated_at > ?",
+					new TenantRowMapper(), new Timestamp(current.refreshedAt.getTime() - OVERLAP_MILLIS));
+			next = current.merge(changed, null, refreshedAt);
+			if (next.byId.size() != count) {
+				// Something was deleted that we didn't hear about
+				next = load(refreshedAt);
+			}
+		}
+		synchronized (this) {
+			if (writes.get() != writesBefore) {
+				return;
+			}
+			snapshot = next;
+			refreshes.increment();
+		}
+		notifyChanges(current, next, null);
+	}
+
+	// Compares the candidate tenants, or all of them if candidates is null
+	private void notifyChanges(Snapshot before, Snapshot after, Collection<UUID> candidates) {
+		Listener listener = this.listener;
+		if (listener == null || before == null || before == after) {
+			return;
+		}
+		Set<UUID> ids;
+		if (candidates != null) {
+			ids = new HashSet<>(candidates);
+		} else {
+			ids = new HashSet<>(before.byId.keySet());
+			ids.addAll(after.byId.keySet());
+		}
+		for (UUID id : ids) {
+			Tenant was = before.byId.get(id);
+			Tenant is = after.byId.get(id);
+			if (!same(was, is)) {
+				try {
+					listener.changed(id, was != null ? copy(was) : null, is != null ? copy(is) : null);
+				} catch (Exception e) {
+					LOGGER.error("Error handling change to tenant {}", id, e);
+				}
+			}
+		}
+	}
+
+	private static boolean same(Tenant a, Tenant b) {
+		if (a == null || b == null) {
+			return a == b;
+		}
+		return Objects.equals(a.getName(), b.getName()) && a.getStatus() == b.getStatus() && a.getTier() == b.getTier();
+	}
+
+	private Snapshot load(Timestamp refreshedAt) {
+		reloads.increment();
+		Map<UUID, Tenant> byId = new HashMap<>();
+		for (Tenant tenant : admin.query("SELECT tenant_id, name, status, tier FROM tenant", new TenantRowMapper())) {
+			byId.put(tenant.getId(), tenant);
+		}
+		return new Snapshot(byId, refreshedAt);
+	}
+
+	private static Tenant copy(Tenant tenant) {
+		Tenant copy = new Tenant(tenant.getId());
+		copy.setName(tenant.getName());
+		copy.setStatus(tenant.getStatus());
+		copy.setTier(tenant.getTier());
+		return copy;
+	}
+
+	public interface Listener {
+		/**
+		 * @param before null if the tenant is new
+		 * @param after null if the tenant was deleted
+		 */
+		void changed(UUID tenantId, Tenant before, Tenant after);
+	}
+
+	private static final class Snapshot {
+		final Map<UUID, Tenant> byId;
+		final List<Tenant> byName;
+		final Timestamp refreshedAt;
+		final String version;
+
+		Snapshot(Map<UUID, Tenant> byId, Timestamp refreshedAt) {
+			List<Tenant> byName = new ArrayList<>(byId.values());
+			byName.sort(BY_NAME);
+			this.byId = Collections.unmodifiableMap(byId);
+			this.byName = Collections.unmodifiableList(byName);
+			this.refreshedAt = refreshedAt;
+			this.version = version(byName);
+		}
+
+		private Snapshot(Snapshot unchanged, Timestamp refreshedAt) {
+			this.byId = unchanged.byId;
+			this.byName = unchanged.byName;
+			this.refreshedAt = refreshedAt;
+			this.version = unchanged.version;
+		}
+
+		Snapshot merge(List<Tenant> changed, UUID removed, Timestamp refreshedAt) {
+			if (changed.isEmpty() && removed == null) {
+				return new Snapshot(this, refreshedAt);
+			}
+			Map<UUID, Tenant> merged = new HashMap<>(byId);
+			for (Tenant tenant : changed) {
+				merged.put(tenant.getId(), tenant);
+			}
+			if (removed != null) {
+				merged.remove(removed);
+			}
+			return new Snapshot(merged, refreshedAt);
+		}
+
+		private static String version(List<Tenant> tenants) {
+			StringBuilder content = new StringBuilder();
+			for (Tenant tenant : tenants) {
+				content.append(tenant.getId()).append('|').append(tenant.getName()).append('|')
+						.append(tenant.getStatus()).append('|').append(tenant.getTier()).append('\n');
+			}
+			return DigestUtils.md5DigestAsHex(content.toString().getBytes(StandardCharsets.UTF_8));
+		}
+	}
+}
@@ -18,9 +18,15 @@ package com.amazon.aws.partners.saasfactory.pgrls.service;
 
 import com.amazon.aws.partners.saasfactory.pgrls.domain.Tenant;
 import com.amazon.aws.partners.saasfactory.pgrls.domain.User;
+import com.amazon.aws.partners.saasfactory.pgrls.domain.UserBatchResult;
+import com.amazon.aws.partners.saasfactory.pgrls.domain.UserPage;
 
+import java.io.InputStream;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.function.Consumer;
 
 /**
  * Simplistic CRUD API
@@ -30,13 +36,29 @@ public interface TenantService {
 
 	public Tenant getTenant(UUID tenantId);
 
+	public Tenant getTenant(UUID tenantId, boolean includeUsers);
+
 	public Tenant saveTenant(Tenant tenant);
 
 	public List<User> getUsers(Tenant tenant);
 
+	public Long getTenantVersion(UUID tenantId);
+
+	public UserPage getUserPage(UUID tenantId, UUID after, int limit);
+
+	public UserPage searchUsers(UUID tenantId, String query, UUID after, int limit);
+
+	public void exportUsers(UUID tenantId, Consumer<User> consumer);
+
+	public UserBatchResult importUsers(UUID tenantId, InputStream csv);
+
 	public User saveUser(User user);
 
+	public UserBatchResult saveUsers(Collection<User> users);
+
 	public User getUser(UUID userId);
 
-	public void deleteUser(User user);
+	public boolean deleteUser(User user);
+
+	public Map<String, Object> getUserCacheStats();
 }
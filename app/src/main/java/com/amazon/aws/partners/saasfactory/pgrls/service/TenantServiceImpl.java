@@ -19,30 +19,64 @@ package com.amazon.aws.partners.saasfactory.pgrls.service;
 import com.amazon.aws.partners.saasfactory.pgrls.domain.Tenant;
 import com.amazon.aws.partners.saasfactory.pgrls.UnauthorizedException;
 import com.amazon.aws.partners.saasfactory.pgrls.domain.User;
+import com.amazon.aws.partners.saasfactory.pgrls.domain.UserBatchError;
+import com.amazon.aws.partners.saasfactory.pgrls.domain.UserBatchResult;
+import com.amazon.aws.partners.saasfactory.pgrls.domain.UserPage;
+import com.amazon.aws.partners.saasfactory.pgrls.repository.Binding;
 import com.amazon.aws.partners.saasfactory.pgrls.repository.DataSourceRepository;
+import com.amazon.aws.partners.saasfactory.pgrls.repository.InvalidationBus;
 import com.amazon.aws.partners.saasfactory.pgrls.repository.UniqueRecordException;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.DataAccessException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.BadSqlGrammarException;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
 import org.springframework.jdbc.support.GeneratedKeyHolder;
-import org.springframework.security.authentication.AnonymousAuthenticationToken;
-import org.springframework.security.core.Authentication;
-import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
-import java.sql.Connection;
+import javax.annotation.PostConstruct;
+
+import javax.sql.DataSource;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.BatchUpdateException;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
  * In a more complete solution, you'd break up your business logic and error handling here and move
@@ -53,74 +87,431 @@ import java.util.UUID;
 public class TenantServiceImpl implements TenantService {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(TenantServiceImpl.class);
+	// Must match the expression of the trigram index in V004__tenant_user_search.sql for searches to use it
+	private static final String USER_SEARCH_TEXT = "(email || ' ' || given_name || ' ' || family_name)";
+	// Trigrams are three characters, anything shorter can't be looked up in the index
+	private static final int MIN_SEARCH_LENGTH = 3;
+	// When tenant_user is hash partitioned, email uniqueness is enforced by a trigger that ON CONFLICT can't see.
+	// Setting this for the transaction has the trigger skip rows whose email is taken, like ON CONFLICT DO NOTHING.
+	private static final String SKIP_DUPLICATE_EMAILS = "SELECT set_config('app.duplicate_email', 'skip', true)";
 
 	@Autowired
 	private DataSourceRepository repo;
 
+	@Autowired
+	private InvalidationBus invalidationBus;
+
+	@Value("${tenant.users.export.fetch-size:1000}")
+	private int exportFetchSize;
+
+	@Value("${tenant.users.import.chunk-size:10000}")
+	private int importChunkSize;
+
+	@Value("${tenant.users.batch-size:500}")
+	private int batchSize;
+
+	@Value("${tenant.users.cache.max-tenants:1000}")
+	private int userCacheMaxTenants;
+
+	@Value("${tenant.users.cache.max-users-per-tenant:1000}")
+	private int userCacheMaxUsersPerTenant;
+
+	private TenantUserCache userCache;
+
+	@PostConstruct
+	public void init() {
+		userCache = new TenantUserCache(userCacheMaxTenants, userCacheMaxUsersPerTenant);
+		// Other instances (and the admin pages) announce user changes by tenant id
+		invalidationBus.subscribe(InvalidationBus.USERS, ids -> ids.forEach(id -> userCache.invalidate(UUID.fromString(id))));
+		invalidationBus.onResync(userCache::clear);
+	}
+
+	private final Map<DataSource, TransactionTemplate> transactions = new ConcurrentHashMap<>();
+
+	// Templates are thread safe and don't hold on to a connection, so we keep one per data source rather than
+	// paying for a new exception translator on every call. The data source is the tenant aware router which
+	// resolves the current tenant's pool and binds the tenant context each time a connection is requested,
+	// so a reused template is still scoped to whichever tenant is authenticated when it runs a query.
+	private final Map<DataSource, NamedParameterJdbcTemplate> templates = new ConcurrentHashMap<>();
+
 	// We have to "lazy load" the JDBC Template at runtime because there won't be an authenticated tenant
-	// to map the connection pool to. Because we have a connection pool per-tenant, we have to ask the
-	// repository for the data source each time to ensure that we get a connection back from the pool that
-	// reflects the current tenant context. If you auto wired the JDBC Template, Spring would want to
-	// inject a singleton data source.
-	//
-	// We could choose to reuse a JDBC Template instance. We'd still need to set the data source each time.
-	// The savings would be in the JdbcTemplate not loading the exception translator (which it does when
-	// it's instantiated). This would also expose a class member that could be mistakenly used below.
+	// to map the connection pool to. Asking the repository for the data source each time also makes sure
+	// there is an authenticated tenant before we run any SQL.
 	private JdbcTemplate jdbc() {
-		JdbcTemplate jdbc = new JdbcTemplate(repo.dataSource());
+		return jdbc(repo.dataSource());
+	}
+
+	private JdbcTemplate jdbc(DataSource dataSource) {
+		return named(dataSource).getJdbcTemplate();
+	}
+
+	private NamedParameterJdbcTemplate named() {
+		return named(repo.dataSource());
+	}
+
+	private NamedParameterJdbcTemplate named(DataSource dataSource) {
+		return templates.computeIfAbsent(dataSource, NamedParameterJdbcTemplate::new);
+	}
+
+	private <T> T inTransaction(Supplier<T> work) {
+		return inTransaction(repo.dataSource(), work);
+	}
 
-		Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-		if (authentication != null && !(authentication instanceof AnonymousAuthenticationToken)) {
-			LOGGER.info("Spring current tenant = '{}'", ((Tenant) authentication.getPrincipal()).getId());
+	// With transaction scoped tenant binding (tenant.datasource.binding = Transaction) the tenant context only
+	// exists inside a transaction so each operation runs in one. Nested calls join the outer transaction. With
+	// session binding the connection is already bound and we skip the extra BEGIN/COMMIT round-trips.
+	private <T> T inTransaction(DataSource dataSource, Supplier<T> work) {
+		if (repo.getBinding() != Binding.Transaction) {
+			return work.get();
 		}
-		try (Connection conn = jdbc.getDataSource().getConnection(); Statement stmt = conn.createStatement()) {
-			ResultSet rs = stmt.executeQuery("SHOW app.current_tenant");
-			rs.next();
-			String connectionCurrentTenant = rs.getString(1);
-			rs.close();
-			LOGGER.info("PostgreSQL current tenant = '{}' on {}", connectionCurrentTenant, jdbc.getDataSource().toString());
-		} catch (SQLException e) {
-			LOGGER.error("Error fetching PostgreSQL session variable app.current_tenant", e);
+		return transaction(dataSource).execute(status -> work.get());
+	}
+
+	// Changes that publish an invalidation always run in a transaction, whatever the binding mode, so the
+	// notification goes out on the connection that made the change and commits (or fails) along with it
+	private <T> T inWriteTransaction(Supplier<T> work) {
+		return transaction(repo.dataSource()).execute(status -> work.get());
+	}
+
+	// Drop our cached copies straight away and tell the other instances once the change commits
+	private void usersChanged(UUID tenantId) {
+		userCache.invalidate(tenantId);
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			// Another request could read the uncommitted change's old rows back into the cache before we commit
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCommit() {
+					userCache.invalidate(tenantId);
+				}
+			});
 		}
+		invalidationBus.publish(jdbc(), InvalidationBus.USERS, tenantId);
+	}
 
-		return jdbc;
+	private TransactionTemplate transaction(DataSource dataSource) {
+		return transactions.computeIfAbsent(dataSource, key -> {
+			TransactionTemplate transaction = new TenantTransactionTemplate(new DataSourceTransactionManager(key));
+			transaction.setReadOnly(repo.isReplica(key));
+			return transaction;
+		});
 	}
 
 	@Override
 	public Tenant getTenant(UUID tenantId) {
-		Tenant tenant = null;
-		try {
-			tenant = jdbc().queryForObject("SELECT tenant_id, name, status, tier FROM tenant WHERE tenant_id = ?", new TenantRowMapper(), tenantId);
-			tenant.setUsers(getUsers(tenant));
-		} catch (EmptyResultDataAccessException e) {
-			// If row level security policies aren't met, it's not
-			// an exception from the database, it's just as if the
-			// data didn't exist in the table.
-		}
-		return tenant;
+		return getTenant(tenantId, true);
+	}
+
+	/**
+	 * Loads the tenant and its users with a single statement on a single connection.
+	 * @param tenantId
+	 * @param includeUsers false when the caller only needs the tenant itself
+	 * @return the tenant or null if it doesn't exist or RLS hides it
+	 */
+	@Override
+	public Tenant getTenant(UUID tenantId, boolean includeUsers) {
+		// Reads go to the replica (if there is one) with the same tenant binding as the primary
+		DataSource reader = repo.readDataSource();
+		return inTransaction(reader, () -> {
+			Tenant tenant = null;
+			if (includeUsers) {
+				// If row level security policies aren't met there won't be a tenant row to join to
+				// and we get no rows back. RLS applies to tenant_user as well, so the join can only
+				// ever pick up the current tenant's users.
+				tenant = jdbc(reader).query("SELECT t.tenant_id, t.name, t.status, t.tier, u.user_id, u.email, u.given_name, u.family_name " +
+						"FROM tenant t LEFT JOIN tenant_user u ON u.tenant_id = t.tenant_id WHERE t.tenant_id = ?", new TenantUsersExtractor(), tenantId);
+			} else {
+				try {
+					tenant = jdbc(reader).queryForObject("SELECT tenant_id, name, status, tier FROM tenant WHERE tenant_id = ?", new TenantRowMapper(), tenantId);
+				} catch (EmptyResultDataAccessException e) {
+					// If row level security policies aren't met, it's not
+					// an exception from the database, it's just as if the
+					// data didn't exist in the table.
+				}
+			}
+			return tenant;
+		});
 	}
 
 	@Override
 	public Tenant saveTenant(Tenant tenant) {
-		Tenant saved = null;
-		int updated = jdbc().update("UPDATE tenant SET name = ?, status = ?, tier = ? WHERE tenant_id = ?", tenant.getName(), tenant.getStatus(), tenant.getTier(), tenant.getId());
-		if (updated == 1) {
-			saved = getTenant(tenant.getId());
-		}
-		return saved;
+		return inWriteTransaction(() -> {
+			// The UPDATE hands back the new row and we join the users to it in the same statement. If RLS
+			// hides the tenant nothing is updated, nothing is returned and we return null.
+			Tenant saved = jdbc().query("WITH updated AS (UPDATE tenant SET name = ?, status = ?, tier = ? WHERE tenant_id = ? RETURNING tenant_id, name, status, tier) " +
+					"SELECT t.tenant_id, t.name, t.status, t.tier, u.user_id, u.email, u.given_name, u.family_name FROM updated t LEFT JOIN tenant_user u ON u.tenant_id = t.tenant_id",
+					new TenantUsersExtractor(), tenant.getName(), tenant.getStatusAsString(), tenant.getTierAsString(), tenant.getId());
+			if (saved != null) {
+				repo.markWrite();
+				repo.setTenantTier(saved.getId(), saved.getTier());
+				invalidationBus.publish(jdbc(), InvalidationBus.TENANTS, saved.getId());
+			}
+			return saved;
+		});
 	}
 
 	@Override
 	public List<User> getUsers(Tenant tenant) {
-		List<User> users = new ArrayList<>();
+		UUID currentTenant = repo.getCurrentTenantId();
+		if (!Objects.equals(currentTenant, tenant.getId())) {
+			// RLS will hide them anyway, nothing worth caching
+			return loadUsers(tenant, repo.readDataSource());
+		}
+		// Cache fills come from the primary. A replica that hasn't caught up with the change behind an
+		// invalidation would put the stale rows right back in the cache until the next one.
+		return userCache.getUsers(currentTenant, () -> loadUsers(tenant, repo.dataSource()));
+	}
+
+	private List<User> loadUsers(Tenant tenant, DataSource reader) {
+		return inTransaction(reader, () -> {
+			List<User> users = new ArrayList<>();
+			try {
+				users = jdbc(reader).query("SELECT tenant_id, user_id, email, given_name, family_name FROM tenant_user WHERE tenant_id = ?", new UserRowMapper(), tenant.getId());
+			} catch (EmptyResultDataAccessException e) {
+				// If row level security policies aren't met, it's not
+				// an exception from the database, it's just as if the
+				// data didn't exist in the table.
+			}
+			return users;
+		});
+	}
+
+	/**
+	 * A counter the database bumps whenever the tenant or any of its users change (see V006__tenant_version.sql).
+	 * Read from the same place as the user pages so it's never newer than the page it's used to validate.
+	 * @param tenantId
+	 * @return the version, or null if the tenant doesn't exist or RLS hides it
+	 */
+	@Override
+	public Long getTenantVersion(UUID tenantId) {
+		DataSource reader = repo.readDataSource();
+		return inTransaction(reader, () -> {
+			// The counter is striped across a few rows per tenant, no rows means no tenant
+			return jdbc(reader).queryForObject("SELECT sum(version)::BIGINT FROM tenant_version WHERE tenant_id = ?", Long.class, tenantId);
+		});
+	}
+
+	/**
+	 * Keyset pagination over the tenant's users ordered by user id. Loads the tenant and one page of its users
+	 * in a single statement. We ask for one more user than the page holds to find out if there is another page.
+	 * @param tenantId
+	 * @param after the last user id of the previous page or null for the first page
+	 * @param limit page size
+	 * @return the page, or null if the tenant doesn't exist or RLS hides it
+	 */
+	@Override
+	public UserPage getUserPage(UUID tenantId, UUID after, int limit) {
+		return userPage(tenantId, "", new ArrayList<>(), after, limit);
+	}
+
+	/**
+	 * Finds the tenant's users whose email or name contains the query text, or has a word close enough to it to
+	 * catch a typo. Both are answered from the trigram index on tenant_user. Pages the same way as getUserPage,
+	 * in user id order rather than by relevance, so a cursor stays valid while users are added.
+	 * @param tenantId
+	 * @param query at least 3 characters
+	 * @param after the last user id of the previous page or null for the first page
+	 * @param limit page size
+	 * @return the page, or null if the tenant doesn't exist or RLS hides it
+	 */
+	@Override
+	public UserPage searchUsers(UUID tenantId, String query, UUID after, int limit) {
+		String text = query != null ? query.trim() : "";
+		if (text.length() < MIN_SEARCH_LENGTH) {
+			throw new IllegalArgumentException("Search for at least " + MIN_SEARCH_LENGTH + " characters");
+		}
+		String contains = "%" + text.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+		List<Object> params = new ArrayList<>();
+		params.add(contains);
+		params.add(text);
+		return userPage(tenantId, " AND (" + USER_SEARCH_TEXT + " ILIKE ? OR ? <% " + USER_SEARCH_TEXT + ")", params, after, limit);
+	}
+
+	// Loads the tenant and one page of its users matching the filter in a single statement
+	private UserPage userPage(UUID tenantId, String filter, List<Object> params, UUID after, int limit) {
+		if (limit < 1) {
+			throw new IllegalArgumentException("Page size must be at least 1");
+		}
+		DataSource reader = repo.readDataSource();
+		return inTransaction(reader, () -> {
+			String sql = "SELECT t.tenant_id, t.name, t.status, t.tier, u.user_id, u.email, u.given_name, u.family_name FROM tenant t " +
+					"LEFT JOIN LATERAL (SELECT user_id, email, given_name, family_name FROM tenant_user " +
+					"WHERE tenant_id = t.tenant_id" + filter + (after != null ? " AND user_id > ?" : "") + " ORDER BY user_id LIMIT ?) u ON true " +
+					"WHERE t.tenant_id = ? ORDER BY u.user_id";
+			if (after != null) {
+				params.add(after);
+			}
+			params.add(limit + 1);
+			params.add(tenantId);
+			Tenant tenant = jdbc(reader).query(sql, new TenantUsersExtractor(), params.toArray());
+			if (tenant == null) {
+				return null;
+			}
+			List<User> users = tenant.getUsers();
+			UUID nextCursor = null;
+			if (users.size() > limit) {
+				users = new ArrayList<>(users.subList(0, limit));
+				nextCursor = users.get(limit - 1).getId();
+			}
+			tenant.setUsers(null);
+			return new UserPage(tenant, users, nextCursor);
+		});
+	}
+
+	/**
+	 * Streams every user of the tenant to the consumer one row at a time. The PostgreSQL driver only uses a server
+	 * side cursor (fetching exportFetchSize rows per round-trip instead of the whole result) when the statement
+	 * runs inside a transaction, so this always opens one, whatever the tenant binding mode. RLS still decides
+	 * which rows come back. The connection and the tenant's bulkhead permit are held until the consumer has seen
+	 * the last row, so a consumer writing to a slow client keeps them for as long as the client takes.
+	 * @param tenantId
+	 * @param consumer called for each user, in user id order
+	 */
+	@Override
+	public void exportUsers(UUID tenantId, Consumer<User> consumer) {
+		DataSource reader = repo.readDataSource();
+		UserRowMapper mapper = new UserRowMapper();
+		transaction(reader).executeWithoutResult(status -> jdbc(reader).query(connection -> {
+			PreparedStatement sql = connection.prepareStatement("SELECT tenant_id, user_id, email, given_name, family_name FROM tenant_user WHERE tenant_id = ? ORDER BY user_id",
+					ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			sql.setFetchSize(exportFetchSize);
+			sql.setObject(1, tenantId);
+			return sql;
+		}, (RowCallbackHandler) result -> consumer.accept(mapper.mapRow(result, result.getRow()))));
+	}
+
+	/**
+	 * Bulk loads users from CSV (with an email, given_name, family_name header) using COPY. PostgreSQL doesn't
+	 * allow COPY FROM into a table with row level security, so rows are validated and copied in chunks into a
+	 * temporary staging table and then moved into tenant_user with one INSERT ... SELECT which RLS still checks.
+	 * Emails that already exist are skipped and reported per row instead of failing the whole load. A missing
+	 * header column or malformed CSV loads nothing and throws an IllegalArgumentException saying where.
+	 * @param tenantId
+	 * @param csv
+	 * @return counts and per-row errors
+	 */
+	@Override
+	public UserBatchResult importUsers(UUID tenantId, InputStream csv) {
+		UserBatchResult result = new UserBatchResult();
+		try {
+			transaction(repo.dataSource()).executeWithoutResult(status -> {
+				jdbc().execute((ConnectionCallback<Void>) connection -> {
+					// Going through the tenant connection first makes sure it's bound before we drop down to the COPY API
+					try (Statement sql = connection.createStatement()) {
+						sql.execute("CREATE TEMP TABLE tenant_user_import (line BIGINT, email VARCHAR(255), given_name VARCHAR(255), family_name VARCHAR(255)) ON COMMIT DROP");
+						sql.execute(SKIP_DUPLICATE_EMAILS);
+					}
+					long staged;
+					try {
+						staged = stage(connection.unwrap(PGConnection.class).getCopyAPI(), csv, result);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+					if (staged > 0) {
+						try (PreparedStatement sql = connection.prepareStatement("WITH inserted AS (" +
+								"INSERT INTO tenant_user (tenant_id, email, given_name, family_name) SELECT ?, email, given_name, family_name FROM tenant_user_import ORDER BY line " +
+								"ON CONFLICT DO NOTHING RETURNING email) " +
+								"SELECT i.line, i.email FROM tenant_user_import i WHERE NOT EXISTS (SELECT 1 FROM inserted WHERE inserted.email = i.email) ORDER BY i.line")) {
+							sql.setObject(1, tenantId);
+							long conflicts = 0;
+							try (ResultSet skipped = sql.executeQuery()) {
+								while (skipped.next()) {
+									conflicts++;
+									result.reject(new UserBatchError(skipped.getLong(1), skipped.getString(2), "23505", skipped.getString(2) + " already exists"));
+								}
+							}
+							result.setInserted(staged - conflicts);
+						}
+					}
+					return null;
+				});
+				if (result.getInserted() > 0) {
+					// Inside the transaction so the notification goes out with the commit (or not at all)
+					usersChanged(tenantId);
+				}
+			});
+		} catch (DataAccessException e) {
+			// Same as a single insert, loading users into a tenant other than the current one fails the RLS policy
+			if (e.getRootCause() instanceof SQLException && "42501".equals(((SQLException) e.getRootCause()).getSQLState())) {
+				throw new UnauthorizedException();
+			}
+			throw e;
+		}
+		if (result.getInserted() > 0) {
+			repo.markWrite();
+		}
+		return result;
+	}
+
+	// Validates the CSV rows and streams the good ones to COPY a chunk at a time. A file that can't be read as
+	// CSV at all fails the whole import with an IllegalArgumentException.
+	private long stage(CopyManager copy, InputStream csv, UserBatchResult result) throws SQLException, IOException {
+		CsvReader reader = new CsvReader(new BufferedReader(new InputStreamReader(csv, StandardCharsets.UTF_8)));
+		List<String> header = reader.next();
+		int email = header != null ? header.indexOf("email") : -1;
+		int givenName = header != null ? header.indexOf("given_name") : -1;
+		int familyName = header != null ? header.indexOf("family_name") : -1;
+		if (email < 0 || givenName < 0 || familyName < 0) {
+			throw new IllegalArgumentException("CSV header must include email, given_name and family_name");
+		}
+		int columns = Math.max(email, Math.max(givenName, familyName)) + 1;
+		Set<String> emails = new HashSet<>();
+		long line = 0;
+		long staged = 0;
+		int chunked = 0;
+		StringBuilder chunk = new StringBuilder();
+		CopyIn copyIn = copy.copyIn("COPY tenant_user_import (line, email, given_name, family_name) FROM STDIN WITH (FORMAT csv)");
+		try {
+			for (List<String> record = next(reader, line); record != null; record = next(reader, line)) {
+				line++;
+				if (record.size() == 1 && record.get(0).trim().isEmpty()) {
+					continue;
+				}
+				String error = null;
+				String userEmail = record.size() > email ? record.get(email).trim() : "";
+				if (record.size() < columns) {
+					error = "Expected at least " + columns + " columns";
+				} else if (userEmail.isEmpty() || userEmail.indexOf('@') < 1 || userEmail.length() > 255) {
+					error = "Invalid email";
+				} else if (record.get(givenName).trim().isEmpty() || record.get(givenName).length() > 255) {
+					error = "User first name is required";
+				} else if (record.get(familyName).trim().isEmpty() || record.get(familyName).length() > 255) {
+					error = "User last name is required";
+				} else if (!emails.add(userEmail)) {
+					error = userEmail + " appears more than once";
+				}
+				if (error != null) {
+					result.reject(new UserBatchError(line, userEmail.isEmpty() ? null : userEmail, null, error));
+					continue;
+				}
+				chunk.append(line).append(',')
+						.append(CsvReader.escape(userEmail)).append(',')
+						.append(CsvReader.escape(record.get(givenName).trim())).append(',')
+						.append(CsvReader.escape(record.get(familyName).trim())).append('\n');
+				staged++;
+				if (++chunked == importChunkSize) {
+					byte[] bytes = chunk.toString().getBytes(StandardCharsets.UTF_8);
+					copyIn.writeToCopy(bytes, 0, bytes.length);
+					chunk.setLength(0);
+					chunked = 0;
+				}
+			}
+			byte[] bytes = chunk.toString().getBytes(StandardCharsets.UTF_8);
+			copyIn.writeToCopy(bytes, 0, bytes.length);
+			copyIn.endCopy();
+		} finally {
+			if (copyIn.isActive()) {
+				copyIn.cancelCopy();
+			}
+		}
+		return staged;
+	}
+
+	private static List<String> next(CsvReader reader, long line) throws IOException {
 		try {
-			users = jdbc().query("SELECT tenant_id, user_id, email, given_name, family_name FROM tenant_user WHERE tenant_id = ?", new UserRowMapper(), tenant.getId());
-		} catch (EmptyResultDataAccessException e) {
-			// If row level security policies aren't met, it's not
-			// an exception from the database, it's just as if the
-			// data didn't exist in the table.
+			return reader.next();
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Row " + (line + 1) + ": " + e.getMessage(), e);
 		}
-		return users;
 	}
 
 	/**
@@ -131,30 +522,223 @@ public class TenantServiceImpl implements TenantService {
 	 */
 	@Override
 	public User getUser(UUID userId) {
-		User user = null;
-		try {
-			user = jdbc().queryForObject("SELECT tenant_id, user_id, email, given_name, family_name FROM tenant_user WHERE user_id = ?", new UserRowMapper(), userId);
-		} catch (EmptyResultDataAccessException e) {
-			// If row level security policies aren't met, it's not
-			// an exception from the database, it's just as if the
-			// data didn't exist in the table.
-		}
-		return user;
+		// Cached under the authenticated tenant, never the tenant the user row says it belongs to
+		// and loaded from the primary for the same reason as getUsers
+		return userCache.getUser(repo.getCurrentTenantId(), userId, () -> loadUser(userId, repo.dataSource()));
+	}
+
+	private User loadUser(UUID userId, DataSource reader) {
+		return inTransaction(reader, () -> {
+			User user = null;
+			try {
+				user = jdbc(reader).queryForObject("SELECT tenant_id, user_id, email, given_name, family_name FROM tenant_user WHERE user_id = ?", new UserRowMapper(), userId);
+			} catch (EmptyResultDataAccessException e) {
+				// If row level security policies aren't met, it's not
+				// an exception from the database, it's just as if the
+				// data didn't exist in the table.
+			}
+			return user;
+		});
 	}
 
 	@Override
 	public User saveUser(User user) {
-		User saved = null;
-		if (user.getId() == null) {
-			saved = insertUser(user);
-		} else {
-			saved = updateUser(user);
+		return inWriteTransaction(() -> {
+			User saved = null;
+			if (user.getId() == null) {
+				saved = insertUser(user);
+			} else {
+				saved = updateUser(user);
+			}
+			return saved;
+		});
+	}
+
+	/**
+	 * Saves many users with JDBC batches instead of a statement (and a tenant re-read) per user. New users are
+	 * inserted with client generated ids so the PostgreSQL driver can rewrite each batch into multi-row INSERTs
+	 * (reWriteBatchedInserts on the JDBC URL). It can't do that when asked for generated keys. One query at the
+	 * end finds the rows skipped because the email is taken. Users for a tenant other than the current one would
+	 * fail the RLS policy (42501) and abort the whole batch, so they're rejected up front row by row instead. So
+	 * are rows repeating an email from earlier in the batch and updates to an email another user already has.
+	 * @param users
+	 * @return counts and per-row errors. Saved users have their ids set.
+	 */
+	@Override
+	public UserBatchResult saveUsers(Collection<User> users) {
+		UUID currentTenant = repo.getCurrentTenantId();
+		UserBatchResult result = new UserBatchResult();
+		List<User> inserts = new ArrayList<>();
+		List<User> updates = new ArrayList<>();
+		Map<String, Long> emails = new HashMap<>();
+		Map<User, Long> rows = new IdentityHashMap<>();
+		long row = 0;
+		for (User user : users) {
+			row++;
+			rows.put(user, row);
+			if (user.getTenant() == null || !Objects.equals(currentTenant, user.getTenant().getId())) {
+				result.reject(new UserBatchError(row, user.getEmail(), "42501", "new row violates row-level security policy for table \"tenant_user\""));
+			} else if (user.getEmail() == null || user.getEmail().isEmpty()) {
+				result.reject(new UserBatchError(row, null, null, "User email is required"));
+			} else if (user.getGivenName() == null || user.getGivenName().isEmpty()) {
+				result.reject(new UserBatchError(row, user.getEmail(), null, "User first name is required"));
+			} else if (user.getFamilyName() == null || user.getFamilyName().isEmpty()) {
+				result.reject(new UserBatchError(row, user.getEmail(), null, "User last name is required"));
+			} else if (emails.putIfAbsent(user.getEmail(), row) != null) {
+				result.reject(new UserBatchError(row, user.getEmail(), null, user.getEmail() + " is already in row " + emails.get(user.getEmail()) + " of this batch"));
+			} else if (user.getId() == null) {
+				inserts.add(user);
+			} else {
+				updates.add(user);
+			}
 		}
-		return saved;
+		if (inserts.isEmpty() && updates.isEmpty()) {
+			return result;
+		}
+		try {
+			transaction(repo.dataSource()).executeWithoutResult(status -> {
+				JdbcTemplate jdbc = jdbc();
+				jdbc.execute(SKIP_DUPLICATE_EMAILS);
+				Map<UUID, User> inserted = new LinkedHashMap<>();
+				for (User user : inserts) {
+					inserted.put(UUID.randomUUID(), user);
+				}
+				jdbc.batchUpdate("INSERT INTO tenant_user (user_id, tenant_id, email, given_name, family_name) VALUES (?, ?, ?, ?, ?) ON CONFLICT DO NOTHING",
+						new ArrayList<>(inserted.entrySet()), batchSize, (sql, entry) -> {
+							sql.setObject(1, entry.getKey());
+							sql.setObject(2, entry.getValue().getTenant().getId());
+							sql.setString(3, entry.getValue().getEmail());
+							sql.setString(4, entry.getValue().getGivenName());
+							sql.setString(5, entry.getValue().getFamilyName());
+						});
+				// Rewritten batches don't report per-row counts, so ask which of our ids made it in
+				Set<UUID> landed = new HashSet<>();
+				if (!inserted.isEmpty()) {
+					jdbc.query(connection -> {
+						PreparedStatement sql = connection.prepareStatement("SELECT user_id FROM tenant_user WHERE user_id = ANY(?)");
+						sql.setArray(1, connection.createArrayOf("uuid", inserted.keySet().toArray()));
+						return sql;
+					}, (RowCallbackHandler) rs -> landed.add(rs.getObject(1, UUID.class)));
+				}
+				for (Map.Entry<UUID, User> entry : inserted.entrySet()) {
+					if (landed.contains(entry.getKey())) {
+						entry.getValue().setId(entry.getKey());
+						result.setInserted(result.getInserted() + 1);
+					} else {
+						result.reject(new UserBatchError(rows.get(entry.getValue()), entry.getValue().getEmail(), "23505", entry.getValue().getEmail() + " already exists"));
+					}
+				}
+				List<User> updating = rejectTakenEmails(jdbc, updates, rows, result);
+				for (Map.Entry<User, Integer> entry : updateUsers(jdbc, status, updating).entrySet()) {
+					User user = entry.getKey();
+					if (entry.getValue() == null) {
+						result.reject(new UserBatchError(rows.get(user), user.getEmail(), "23505", user.getEmail() + " already exists"));
+					} else if (entry.getValue() == 0) {
+						// RLS filters the UPDATE the same as it would a SELECT
+						result.reject(new UserBatchError(rows.get(user), user.getEmail(), null, "No user for id " + user.getId()));
+					} else {
+						result.setUpdated(result.getUpdated() + 1);
+					}
+				}
+				// Inside the transaction so the notification goes out with the commit (or not at all)
+				usersChanged(currentTenant);
+			});
+		} catch (DataAccessException e) {
+			String sqlState = sqlState(e);
+			if ("42501".equals(sqlState)) {
+				throw new UnauthorizedException();
+			} else if ("23505".equals(sqlState)) {
+				// Taken emails are skipped or rejected above, so something else is unique
+				throw new UniqueRecordException("User email already exists", e);
+			}
+			throw e;
+		}
+		repo.markWrite();
+		return result;
+	}
+
+	// An UPDATE to an email another user has would abort the whole batch. RLS only lets us see the current
+	// tenant's users, so this catches collisions within the tenant and updateUsers deals with the rest. The
+	// updates aren't reordered, so two users can't swap emails in one batch.
+	private List<User> rejectTakenEmails(JdbcTemplate jdbc, List<User> updates, Map<User, Long> rows, UserBatchResult result) {
+		if (updates.isEmpty()) {
+			return updates;
+		}
+		Map<String, UUID> holders = new HashMap<>();
+		jdbc.query(connection -> {
+			PreparedStatement sql = connection.prepareStatement("SELECT email, user_id FROM tenant_user WHERE email = ANY(?)");
+			sql.setArray(1, connection.createArrayOf("varchar", updates.stream().map(User::getEmail).toArray()));
+			return sql;
+		}, (RowCallbackHandler) rs -> holders.put(rs.getString(1), rs.getObject(2, UUID.class)));
+		List<User> free = new ArrayList<>();
+		for (User user : updates) {
+			UUID holder = holders.get(user.getEmail());
+			if (holder != null && !holder.equals(user.getId())) {
+				result.reject(new UserBatchError(rows.get(user), user.getEmail(), "23505", user.getEmail() + " already exists"));
+			} else {
+				free.add(user);
+			}
+		}
+		return free;
+	}
+
+	// Rows updated per user, or null when the email belongs to another tenant's user. That only shows up as a
+	// unique violation, so when the batch hits one it's rolled back and the updates are run one at a time.
+	private Map<User, Integer> updateUsers(JdbcTemplate jdbc, TransactionStatus status, List<User> updates) {
+		Map<User, Integer> updated = new LinkedHashMap<>();
+		if (updates.isEmpty()) {
+			return updated;
+		}
+		String sql = "UPDATE tenant_user SET email = ?, given_name = ?, family_name = ? WHERE user_id = ?";
+		Object beforeUpdates = status.createSavepoint();
+		try {
+			int[][] counts = jdbc.batchUpdate(sql, updates, batchSize, (statement, user) -> {
+				statement.setString(1, user.getEmail());
+				statement.setString(2, user.getGivenName());
+				statement.setString(3, user.getFamilyName());
+				statement.setObject(4, user.getId());
+			});
+			status.releaseSavepoint(beforeUpdates);
+			int index = 0;
+			for (int[] batch : counts) {
+				for (int count : batch) {
+					updated.put(updates.get(index++), count);
+				}
+			}
+			return updated;
+		} catch (DataAccessException e) {
+			if (!"23505".equals(sqlState(e))) {
+				throw e;
+			}
+			status.rollbackToSavepoint(beforeUpdates);
+		}
+		for (User user : updates) {
+			Object beforeUpdate = status.createSavepoint();
+			try {
+				updated.put(user, jdbc.update(sql, user.getEmail(), user.getGivenName(), user.getFamilyName(), user.getId()));
+				status.releaseSavepoint(beforeUpdate);
+			} catch (DataAccessException e) {
+				if (!"23505".equals(sqlState(e))) {
+					throw e;
+				}
+				status.rollbackToSavepoint(beforeUpdate);
+				updated.put(user, null);
+			}
+		}
+		return updated;
+	}
+
+	// The SQLSTATE behind a Spring exception, looking inside a failed JDBC batch
+	private static String sqlState(DataAccessException e) {
+		SQLException sqlError = e.getRootCause() instanceof SQLException ? (SQLException) e.getRootCause() : null;
+		if (sqlError instanceof BatchUpdateException && sqlError.getNextException() != null) {
+			sqlError = sqlError.getNextException();
+		}
+		return sqlError != null ? sqlError.getSQLState() : null;
 	}
 
 	protected User insertUser(User user) {
-		NamedParameterJdbcTemplate jdbc = new NamedParameterJdbcTemplate(jdbc());
+		NamedParameterJdbcTemplate jdbc = named();
 		GeneratedKeyHolder generated = new GeneratedKeyHolder();
 		StringBuilder sql = new StringBuilder("INSERT INTO tenant_user (tenant_id, email, given_name, family_name) VALUES (:tenant_id, :email, :given_name, :family_name)");
 		MapSqlParameterSource params = new MapSqlParameterSource()
@@ -167,7 +751,8 @@ public class TenantServiceImpl implements TenantService {
 			if (update == 1) {
 				UUID userId = (UUID) generated.getKeys().get("user_id");
 				user.setId(userId);
-				user.setTenant(getTenant(user.getTenant().getId()));
+				repo.markWrite();
+				usersChanged(user.getTenant().getId());
 			}
 		} catch (BadSqlGrammarException e) {
 			// Postgres will throw an Access Rule Violation error with condition
@@ -200,17 +785,33 @@ public class TenantServiceImpl implements TenantService {
 	 * @return the updated user
 	 */
 	protected User updateUser(User user) {
-		User updated = null;
-		int rowsEffected = jdbc().update("UPDATE tenant_user SET email = ?, given_name = ?, family_name = ? WHERE user_id = ?", user.getEmail(), user.getGivenName(), user.getFamilyName(), user.getId());
-		if (rowsEffected == 1) {
-			updated = getUser(user.getId());
+		// RLS hides other tenants' rows from the UPDATE so nothing comes back for them
+		List<User> updated = jdbc().query("UPDATE tenant_user SET email = ?, given_name = ?, family_name = ? WHERE user_id = ? RETURNING tenant_id, user_id, email, given_name, family_name",
+				new UserRowMapper(), user.getEmail(), user.getGivenName(), user.getFamilyName(), user.getId());
+		if (updated.isEmpty()) {
+			return null;
 		}
-		return updated;
+		repo.markWrite();
+		usersChanged(updated.get(0).getTenant().getId());
+		return updated.get(0);
+	}
+
+	@Override
+	public boolean deleteUser(User user) {
+		return inWriteTransaction(() -> {
+			// No rows effected means the user doesn't exist or RLS hid it from us
+			int rowsEffected = jdbc().update("DELETE FROM tenant_user WHERE user_id = ?", user.getId());
+			LOGGER.info("Delete from tenant_user returned {} effected rows", rowsEffected);
+			if (rowsEffected > 0) {
+				repo.markWrite();
+				usersChanged(repo.getCurrentTenantId());
+			}
+			return rowsEffected > 0;
+		});
 	}
 
 	@Override
-	public void deleteUser(User user) {
-		int rowsEffected = jdbc().update("DELETE FROM tenant_user WHERE user_id = ?", user.getId());
-		LOGGER.info("Delete from tenant_user returned {} effected rows", rowsEffected);
+	public Map<String, Object> getUserCacheStats() {
+		return userCache.getStats();
 	}
 }
@@ -0,0 +1,50 @@
+/**
+ * Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.amazon.aws.partners.saasfactory.pgrls.service;
+
+import com.amazon.aws.partners.saasfactory.pgrls.TenantThrottledException;
+import org.springframework.transaction.CannotCreateTransactionException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionException;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Transaction template for the tenant data source. The transaction manager wraps anything thrown while it
+ * gets the connection, including a tenant at its bulkhead limit. That one is unwrapped again so it still
+ * turns into an HTTP 429 instead of an error message on the page.
+ */
+public class TenantTransactionTemplate extends TransactionTemplate {
+
+	public TenantTransactionTemplate(PlatformTransactionManager transactionManager) {
+		super(transactionManager);
+	}
+
+	@Override
+	public <T> T execute(TransactionCallback<T> action) throws TransactionException {
+		try {
+			return super.execute(action);
+		} catch (CannotCreateTransactionException e) {
+			for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+				if (cause instanceof TenantThrottledException) {
+					throw (TenantThrottledException) cause;
+				}
+			}
+			throw e;
+		}
+	}
+}
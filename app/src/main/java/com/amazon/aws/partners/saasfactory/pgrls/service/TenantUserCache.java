@@ -0,0 +1,226 @@
+/**
+ * Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.amazon.aws.partners.saasfactory.pgrls.service;
+
+import com.amazon.aws.partners.saasfactory.pgrls.domain.Tenant;
+import com.amazon.aws.partners.saasfactory.pgrls.domain.User;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Read-through cache of users, partitioned by the authenticated tenant. Lookups only ever look in the
+ * partition of the tenant making the request and only rows belonging to that tenant are stored there, so
+ * a user cached for one tenant is never handed to another. A miss goes to the database where RLS decides
+ * what the tenant can see, and empty results aren't cached. Each partition holds at most maxUsersPerTenant
+ * users and the least recently used partition is dropped once more than maxTenants tenants are cached.
+ *
+ * A write drops the tenant's whole partition. A load that overlaps a write (or an eviction) is returned
+ * to the caller but not cached, so a slow read from before the write can't put stale rows back.
+ *
+ * Tenants never wait on each other. The partitions live in a concurrent map and each partition has its
+ * own lock, so only requests for the same tenant contend. Finding the least recently used tenant is a
+ * scan, but that only happens when a new tenant is added to a full cache.
+ */
+public class TenantUserCache {
+
+	private final int maxTenants;
+	private final int maxUsersPerTenant;
+	private final ConcurrentHashMap<UUID, Partition> partitions = new ConcurrentHashMap<>();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder invalidations = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * @param maxTenants 0 turns the cache off
+	 * @param maxUsersPerTenant 0 turns the cache off
+	 */
+	public TenantUserCache(int maxTenants, int maxUsersPerTenant) {
+		this.maxTenants = maxTenants;
+		this.maxUsersPerTenant = maxUsersPerTenant;
+	}
+
+	public boolean isEnabled() {
+		return maxTenants > 0 && maxUsersPerTenant > 0;
+	}
+
+	/**
+	 * @param tenantId the authenticated tenant, not whatever tenant the caller thinks the user belongs to
+	 * @param loader reads the user as the authenticated tenant
+	 * @return a copy of the cached user, or whatever the loader returns
+	 */
+	public User getUser(UUID tenantId, UUID userId, Supplier<User> loader) {
+		if (!isEnabled() || tenantId == null || userId == null) {
+			return loader.get();
+		}
+		Partition partition = partition(tenantId);
+		synchronized (partition) {
+			User cached = partition.users.get(userId);
+			if (cached != null) {
+				hits.increment();
+				return copy(cached);
+			}
+		}
+		misses.increment();
+		User loaded = loader.get();
+		if (loaded != null && belongsTo(loaded, tenantId) && userId.equals(loaded.getId())) {
+			synchronized (partition) {
+				// An invalidate or eviction while we were loading replaced or removed the partition
+				if (partitions.get(tenantId) == partition) {
+					partition.users.put(userId, copy(loaded));
+				}
+			}
+		}
+		return loaded;
+	}
+
+	/**
+	 * All of the authenticated tenant's users. Tenants with more than maxUsersPerTenant users aren't cached.
+	 * @param tenantId the authenticated tenant
+	 * @param loader reads the users as the authenticated tenant
+	 */
+	public List<User> getUsers(UUID tenantId, Supplier<List<User>> loader) {
+		if (!isEnabled() || tenantId == null) {
+			return loader.get();
+		}
+		Partition partition = partition(tenantId);
+		synchronized (partition) {
+			if (partition.all != null) {
+				hits.increment();
+				return copy(partition.all);
+			}
+		}
+		misses.increment();
+		List<User> loaded = loader.get();
+		if (loaded != null && !loaded.isEmpty() && loaded.size() <= maxUsersPerTenant
+				&& loaded.stream().allMatch(user -> belongsTo(user, tenantId))) {
+			synchronized (partition) {
+				if (partitions.get(tenantId) == partition) {
+					partition.all = copy(loaded);
+				}
+			}
+		}
+		return loaded;
+	}
+
+	/**
+	 * Forgets everything cached for the tenant
+	 */
+	public void invalidate(UUID tenantId) {
+		if (partitions.remove(tenantId) != null) {
+			invalidations.increment();
+		}
+	}
+
+	public void clear() {
+		for (UUID tenantId : partitions.keySet()) {
+			invalidate(tenantId);
+		}
+	}
+
+	public Map<String, Object> getStats() {
+		int users = 0;
+		for (Partition partition : partitions.values()) {
+			synchronized (partition) {
+				users += partition.users.size() + (partition.all != null ? partition.all.size() : 0);
+			}
+		}
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("enabled", isEnabled());
+		stats.put("tenants", partitions.size());
+		stats.put("users", users);
+		stats.put("hits", hits.sum());
+		stats.put("misses", misses.sum());
+		stats.put("invalidations", invalidations.sum());
+		stats.put("evictions", evictions.sum());
+		return stats;
+	}
+
+	private Partition partition(UUID tenantId) {
+		Partition partition = partitions.get(tenantId);
+		if (partition == null) {
+			partition = partitions.computeIfAbsent(tenantId, id -> new Partition(maxUsersPerTenant));
+			while (partitions.size() > maxTenants) {
+				evictLeastRecentlyUsed(tenantId);
+			}
+		}
+		partition.lastAccess = System.nanoTime();
+		return partition;
+	}
+
+	private void evictLeastRecentlyUsed(UUID keep) {
+		Map.Entry<UUID, Partition> eldest = null;
+		for (Map.Entry<UUID, Partition> candidate : partitions.entrySet()) {
+			if (!candidate.getKey().equals(keep) && (eldest == null || candidate.getValue().lastAccess < eldest.getValue().lastAccess)) {
+				eldest = candidate;
+			}
+		}
+		if (eldest == null) {
+			return;
+		}
+		if (partitions.remove(eldest.getKey(), eldest.getValue())) {
+			evictions.increment();
+		}
+	}
+
+	private static boolean belongsTo(User user, UUID tenantId) {
+		return user.getTenant() != null && tenantId.equals(user.getTenant().getId());
+	}
+
+	// Callers are free to change what we give them
+	private static User copy(User user) {
+		User copy = new User(user.getId());
+		copy.setTenant(new Tenant(user.getTenant().getId()));
+		copy.setEmail(user.getEmail());
+		copy.setGivenName(user.getGivenName());
+		copy.setFamilyName(user.getFamilyName());
+		return copy;
+	}
+
+	private static List<User> copy(List<User> users) {
+		List<User> copies = new ArrayList<>(users.size());
+		for (User user : users) {
+			copies.add(copy(user));
+		}
+		return copies;
+	}
+
+	// Guarded by its own monitor
+	private static class Partition {
+
+		// Access ordered so the least recently read user goes first
+		private final LinkedHashMap<UUID, User> users;
+		private List<User> all;
+		private volatile long lastAccess = System.nanoTime();
+
+		Partition(int maxUsers) {
+			users = new LinkedHashMap<UUID, User>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<UUID, User> eldest) {
+					return size() > maxUsers;
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,56 @@
+/**
+ * Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.amazon.aws.partners.saasfactory.pgrls.service;
+
+import com.amazon.aws.partners.saasfactory.pgrls.domain.Tenant;
+import com.amazon.aws.partners.saasfactory.pgrls.domain.User;
+import org.springframework.jdbc.core.ResultSetExtractor;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Maps a tenant row outer joined to its users (one row per user, or a single row
+ * with null user columns for a tenant without users) into a Tenant and its Users.
+ */
+public class TenantUsersExtractor implements ResultSetExtractor<Tenant> {
+
+	private final TenantRowMapper tenantMapper = new TenantRowMapper();
+	private final UserRowMapper userMapper = new UserRowMapper();
+
+	@Override
+	public Tenant extractData(ResultSet result) throws SQLException {
+		Tenant tenant = null;
+		List<User> users = new ArrayList<>();
+		int row = 0;
+		while (result.next()) {
+			if (tenant == null) {
+				tenant = tenantMapper.mapRow(result, row);
+			}
+			if (result.getObject("user_id") != null) {
+				users.add(userMapper.mapRow(result, row));
+			}
+			row++;
+		}
+		if (tenant != null) {
+			tenant.setUsers(users);
+		}
+		return tenant;
+	}
+}
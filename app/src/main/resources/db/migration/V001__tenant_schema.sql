@@ -48,7 +48,7 @@ DO $$
 BEGIN
     IF NOT EXISTS (SELECT * FROM pg_policies WHERE tablename = 'tenant' AND policyname = 'tenant_isolation_policy') THEN
         CREATE POLICY tenant_isolation_policy ON tenant
-        USING (tenant_id = current_setting('app.current_tenant')::UUID);
+        USING (tenant_id = (SELECT current_setting('app.current_tenant')::UUID));
     END IF;
 END
 $$
@@ -69,7 +69,7 @@ DO $$
 BEGIN
     IF NOT EXISTS(SELECT * FROM pg_policies WHERE tablename = 'tenant_user' AND policyname = 'tenant_user_isolation_policy') THEN
         CREATE POLICY tenant_user_isolation_policy ON tenant_user
-        USING (tenant_id = current_setting('app.current_tenant')::UUID);
+        USING (tenant_id = (SELECT current_setting('app.current_tenant')::UUID));
     END IF;
 END
 $$
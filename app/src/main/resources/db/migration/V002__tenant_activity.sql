@@ -0,0 +1,33 @@
+-- Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+--
+-- Permission is hereby granted, free of charge, to any person obtaining a copy of this
+-- software and associated documentation files (the "Software"), to deal in the Software
+-- without restriction, including without limitation the rights to use, copy, modify,
+-- merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+-- permit persons to whom the Software is furnished to do so.
+--
+-- THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+-- INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+-- PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+-- HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+-- OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+-- SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+-- Login activity per tenant so the application can pre-build connection pools
+-- for its busiest tenants when it starts. Only the admin connection uses it.
+CREATE TABLE IF NOT EXISTS tenant_activity (
+    tenant_id UUID PRIMARY KEY REFERENCES tenant (tenant_id) ON DELETE CASCADE,
+    logins BIGINT NOT NULL DEFAULT 1,
+    last_login TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT now()
+);
+
+ALTER TABLE tenant_activity ENABLE ROW LEVEL SECURITY;
+
+DO $$
+BEGIN
+    IF NOT EXISTS(SELECT * FROM pg_policies WHERE tablename = 'tenant_activity' AND policyname = 'tenant_activity_isolation_policy') THEN
+        CREATE POLICY tenant_activity_isolation_policy ON tenant_activity
+        USING (tenant_id = (SELECT current_setting('app.current_tenant')::UUID));
+    END IF;
+END
+$$
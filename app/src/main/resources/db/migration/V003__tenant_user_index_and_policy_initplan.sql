@@ -0,0 +1,29 @@
+-- Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+--
+-- Permission is hereby granted, free of charge, to any person obtaining a copy of this
+-- software and associated documentation files (the "Software"), to deal in the Software
+-- without restriction, including without limitation the rights to use, copy, modify,
+-- merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+-- permit persons to whom the Software is furnished to do so.
+--
+-- THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+-- INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+-- PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+-- HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+-- OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+-- SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+-- Index the column the RLS policy adds to every tenant_user query. Leading with tenant_id and
+-- then user_id also serves the user listing, which pages through a tenant's users by user_id.
+CREATE INDEX IF NOT EXISTS tenant_user_tenant_id_user_id_idx ON tenant_user (tenant_id, user_id);
+
+-- Bring policies created by earlier versions up to date. Wrapping current_setting in a sub-select
+-- turns it into an InitPlan that is evaluated once per query rather than potentially once per row.
+ALTER POLICY tenant_isolation_policy ON tenant
+USING (tenant_id = (SELECT current_setting('app.current_tenant')::UUID));
+
+ALTER POLICY tenant_user_isolation_policy ON tenant_user
+USING (tenant_id = (SELECT current_setting('app.current_tenant')::UUID));
+
+ALTER POLICY tenant_activity_isolation_policy ON tenant_activity
+USING (tenant_id = (SELECT current_setting('app.current_tenant')::UUID));
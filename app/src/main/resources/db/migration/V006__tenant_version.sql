@@ -0,0 +1,98 @@
+-- Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+--
+-- Permission is hereby granted, free of charge, to any person obtaining a copy of this
+-- software and associated documentation files (the "Software"), to deal in the Software
+-- without restriction, including without limitation the rights to use, copy, modify,
+-- merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+-- permit persons to whom the Software is furnished to do so.
+--
+-- THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+-- INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+-- PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+-- HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+-- OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+-- SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+-- A counter per tenant that goes up whenever the tenant or any of its users change, so a page
+-- built from them can be given an ETag without reading the rows themselves. The triggers run
+-- once per statement rather than once per row so a bulk import bumps the counter only once.
+--
+-- A single row per tenant would make every write to a tenant wait for the one before it to
+-- commit, since each bump holds that row's lock until then. The counter is striped instead:
+-- each backend bumps one of 16 slots picked by its process id, concurrent writers mostly land
+-- on different rows, and the version is the sum of the tenant's slots.
+CREATE TABLE IF NOT EXISTS tenant_version (
+    tenant_id UUID NOT NULL REFERENCES tenant (tenant_id) ON DELETE CASCADE,
+    slot SMALLINT NOT NULL,
+    version BIGINT NOT NULL DEFAULT 0,
+    PRIMARY KEY (tenant_id, slot)
+);
+
+-- The default privileges from V001 let the application user write every new table. It only
+-- needs to read this one, the triggers below keep it up to date.
+REVOKE INSERT, UPDATE, DELETE ON tenant_version FROM {{DB_APP_USER}};
+
+ALTER TABLE tenant_version ENABLE ROW LEVEL SECURITY;
+
+DO $$
+BEGIN
+    IF NOT EXISTS(SELECT * FROM pg_policies WHERE tablename = 'tenant_version' AND policyname = 'tenant_version_isolation_policy') THEN
+        CREATE POLICY tenant_version_isolation_policy ON tenant_version
+        USING (tenant_id = (SELECT current_setting('app.current_tenant')::UUID));
+    END IF;
+END
+$$
+
+INSERT INTO tenant_version (tenant_id, slot) SELECT tenant_id, 0 FROM tenant ON CONFLICT DO NOTHING;
+
+-- Owned by the admin user so the application user can bump versions without being able to write them.
+-- Transition tables can only be declared for a single event, hence a trigger per event. Slots are
+-- locked in tenant order so two statements touching the same tenants can't deadlock.
+CREATE OR REPLACE FUNCTION tenant_version_bump() RETURNS TRIGGER
+LANGUAGE plpgsql SECURITY DEFINER SET search_path = public AS $$
+DECLARE
+    changed UUID[];
+BEGIN
+    IF TG_OP = 'INSERT' THEN
+        changed := ARRAY(SELECT DISTINCT tenant_id FROM new_rows);
+    ELSIF TG_OP = 'UPDATE' THEN
+        changed := ARRAY(SELECT tenant_id FROM new_rows UNION SELECT tenant_id FROM old_rows);
+    ELSE
+        changed := ARRAY(SELECT DISTINCT tenant_id FROM old_rows);
+    END IF;
+    INSERT INTO tenant_version (tenant_id, slot, version)
+    SELECT tenant_id, pg_backend_pid() % 16, 1 FROM unnest(changed) AS tenant_id ORDER BY tenant_id
+    ON CONFLICT (tenant_id, slot) DO UPDATE SET version = tenant_version.version + 1;
+    RETURN NULL;
+END
+$$;
+
+DROP TRIGGER IF EXISTS tenant_version_insert ON tenant;
+
+CREATE TRIGGER tenant_version_insert AFTER INSERT ON tenant
+REFERENCING NEW TABLE AS new_rows
+FOR EACH STATEMENT EXECUTE FUNCTION tenant_version_bump();
+
+DROP TRIGGER IF EXISTS tenant_version_update ON tenant;
+
+CREATE TRIGGER tenant_version_update AFTER UPDATE ON tenant
+REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+FOR EACH STATEMENT EXECUTE FUNCTION tenant_version_bump();
+
+DROP TRIGGER IF EXISTS tenant_user_version_insert ON tenant_user;
+
+CREATE TRIGGER tenant_user_version_insert AFTER INSERT ON tenant_user
+REFERENCING NEW TABLE AS new_rows
+FOR EACH STATEMENT EXECUTE FUNCTION tenant_version_bump();
+
+DROP TRIGGER IF EXISTS tenant_user_version_update ON tenant_user;
+
+CREATE TRIGGER tenant_user_version_update AFTER UPDATE ON tenant_user
+REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+FOR EACH STATEMENT EXECUTE FUNCTION tenant_version_bump();
+
+DROP TRIGGER IF EXISTS tenant_user_version_delete ON tenant_user;
+
+CREATE TRIGGER tenant_user_version_delete AFTER DELETE ON tenant_user
+REFERENCING OLD TABLE AS old_rows
+FOR EACH STATEMENT EXECUTE FUNCTION tenant_version_bump();
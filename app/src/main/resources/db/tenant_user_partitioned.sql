@@ -0,0 +1,155 @@
+-- Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+--
+-- Permission is hereby granted, free of charge, to any person obtaining a copy of this
+-- software and associated documentation files (the "Software"), to deal in the Software
+-- without restriction, including without limitation the rights to use, copy, modify,
+-- merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+-- permit persons to whom the Software is furnished to do so.
+--
+-- THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+-- INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+-- PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+-- HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+-- OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+-- SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+
+-- Optional hash partitioned tenant_user, set up by TenantUserPartitioner when tenant.users.partitions
+-- is greater than zero. The new table is built next to the existing one as tenant_user_partitioned,
+-- kept in step with it by a trigger while existing rows are copied across, and then renamed into place.
+-- Every statement here can be run again if a previous attempt was interrupted.
+
+-- Email addresses are unique across all tenants, but a unique index on a partitioned table has to
+-- include the partition key. The addresses are claimed in this table instead by the triggers below.
+-- RLS with no policy keeps the application user out of it. Only the SECURITY DEFINER functions use it.
+CREATE TABLE IF NOT EXISTS tenant_user_email (
+    email VARCHAR(255) PRIMARY KEY,
+    tenant_id UUID NOT NULL,
+    user_id UUID NOT NULL
+);
+
+ALTER TABLE tenant_user_email ENABLE ROW LEVEL SECURITY;
+
+-- Same columns and constraints as tenant_user. The primary key has to include tenant_id.
+CREATE TABLE IF NOT EXISTS tenant_user_partitioned (
+    user_id UUID NOT NULL DEFAULT uuid_generate_v4(),
+    tenant_id UUID NOT NULL REFERENCES tenant (tenant_id) ON DELETE RESTRICT,
+    email VARCHAR(255) NOT NULL,
+    given_name VARCHAR(255) NOT NULL CHECK (given_name <> ''),
+    family_name VARCHAR(255) NOT NULL CHECK (family_name <> ''),
+    PRIMARY KEY (tenant_id, user_id)
+) PARTITION BY HASH (tenant_id);
+
+-- The admin connection looks users up by id alone, without a tenant to prune on
+CREATE INDEX IF NOT EXISTS tenant_user_partitioned_user_id_idx ON tenant_user_partitioned (user_id);
+
+-- Same trigram search index as V004
+CREATE INDEX IF NOT EXISTS tenant_user_partitioned_search_trgm_idx ON tenant_user_partitioned
+USING gin ((email || ' ' || given_name || ' ' || family_name) gin_trgm_ops);
+
+-- RLS on the partitions themselves has no policies, so they can't be queried directly. Queries through
+-- the parent table are only subject to the parent's policy.
+DO $$
+BEGIN
+    FOR i IN 0..{{PARTITIONS}} - 1 LOOP
+        EXECUTE format('CREATE TABLE IF NOT EXISTS tenant_user_p%s PARTITION OF tenant_user_partitioned FOR VALUES WITH (MODULUS %s, REMAINDER %s)', i, {{PARTITIONS}}, i);
+        EXECUTE format('ALTER TABLE tenant_user_p%s ENABLE ROW LEVEL SECURITY', i);
+    END LOOP;
+END
+$$
+
+ALTER TABLE tenant_user_partitioned ENABLE ROW LEVEL SECURITY;
+
+-- The policy compares tenant_id with an InitPlan, which PostgreSQL evaluates before scanning and then
+-- uses to prune every partition but one at execution time even when the query doesn't filter on tenant_id.
+DO $$
+BEGIN
+    IF NOT EXISTS(SELECT * FROM pg_policies WHERE tablename = 'tenant_user_partitioned' AND policyname = 'tenant_user_isolation_policy') THEN
+        CREATE POLICY tenant_user_isolation_policy ON tenant_user_partitioned
+        USING (tenant_id = (SELECT current_setting('app.current_tenant')::UUID));
+    END IF;
+END
+$$
+
+-- Claims the email of a new or changed user. Claiming an address the same user already holds is a no-op
+-- so the backfill and the mirror trigger can both write a row. An address held by another user raises
+-- the same error the unique constraint did, unless the transaction asked to skip those rows instead.
+CREATE OR REPLACE FUNCTION tenant_user_claim_email() RETURNS TRIGGER
+LANGUAGE plpgsql SECURITY DEFINER SET search_path = public AS $$
+BEGIN
+    IF TG_OP = 'UPDATE' AND NEW.email = OLD.email AND NEW.tenant_id = OLD.tenant_id AND NEW.user_id = OLD.user_id THEN
+        RETURN NEW;
+    END IF;
+    INSERT INTO tenant_user_email (email, tenant_id, user_id) VALUES (NEW.email, NEW.tenant_id, NEW.user_id)
+    ON CONFLICT (email) DO UPDATE SET tenant_id = EXCLUDED.tenant_id WHERE tenant_user_email.user_id = EXCLUDED.user_id;
+    IF NOT FOUND THEN
+        IF TG_OP = 'INSERT' AND current_setting('app.duplicate_email', true) = 'skip' THEN
+            RETURN NULL;
+        END IF;
+        RAISE unique_violation USING MESSAGE = 'duplicate key value violates unique constraint "tenant_user_email_pkey"';
+    END IF;
+    IF TG_OP = 'UPDATE' AND NEW.email <> OLD.email THEN
+        DELETE FROM tenant_user_email WHERE email = OLD.email AND user_id = OLD.user_id;
+    END IF;
+    RETURN NEW;
+END
+$$;
+
+CREATE OR REPLACE FUNCTION tenant_user_release_email() RETURNS TRIGGER
+LANGUAGE plpgsql SECURITY DEFINER SET search_path = public AS $$
+BEGIN
+    DELETE FROM tenant_user_email WHERE email = OLD.email AND user_id = OLD.user_id;
+    RETURN OLD;
+END
+$$;
+
+DROP TRIGGER IF EXISTS tenant_user_claim_email ON tenant_user_partitioned;
+
+CREATE TRIGGER tenant_user_claim_email BEFORE INSERT OR UPDATE OF email, tenant_id, user_id ON tenant_user_partitioned
+FOR EACH ROW EXECUTE FUNCTION tenant_user_claim_email();
+
+DROP TRIGGER IF EXISTS tenant_user_release_email ON tenant_user_partitioned;
+
+CREATE TRIGGER tenant_user_release_email AFTER DELETE ON tenant_user_partitioned
+FOR EACH ROW EXECUTE FUNCTION tenant_user_release_email();
+
+-- Keeps tenant_version counting user changes once this table replaces the existing one (see V006)
+DROP TRIGGER IF EXISTS tenant_user_version_insert ON tenant_user_partitioned;
+
+CREATE TRIGGER tenant_user_version_insert AFTER INSERT ON tenant_user_partitioned
+REFERENCING NEW TABLE AS new_rows
+FOR EACH STATEMENT EXECUTE FUNCTION tenant_version_bump();
+
+DROP TRIGGER IF EXISTS tenant_user_version_update ON tenant_user_partitioned;
+
+CREATE TRIGGER tenant_user_version_update AFTER UPDATE ON tenant_user_partitioned
+REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+FOR EACH STATEMENT EXECUTE FUNCTION tenant_version_bump();
+
+DROP TRIGGER IF EXISTS tenant_user_version_delete ON tenant_user_partitioned;
+
+CREATE TRIGGER tenant_user_version_delete AFTER DELETE ON tenant_user_partitioned
+REFERENCING OLD TABLE AS old_rows
+FOR EACH STATEMENT EXECUTE FUNCTION tenant_version_bump();
+
+-- Copies every change to the existing table across while the backfill runs. The backfill locks the rows it
+-- copies, so a change either lands before it reads a row or waits and is then applied on top of the copy.
+CREATE OR REPLACE FUNCTION tenant_user_mirror() RETURNS TRIGGER
+LANGUAGE plpgsql SECURITY DEFINER SET search_path = public AS $$
+BEGIN
+    IF TG_OP = 'DELETE' OR (TG_OP = 'UPDATE' AND (NEW.tenant_id <> OLD.tenant_id OR NEW.user_id <> OLD.user_id)) THEN
+        DELETE FROM tenant_user_partitioned WHERE tenant_id = OLD.tenant_id AND user_id = OLD.user_id;
+    END IF;
+    IF TG_OP = 'DELETE' THEN
+        RETURN OLD;
+    END IF;
+    INSERT INTO tenant_user_partitioned (user_id, tenant_id, email, given_name, family_name)
+    VALUES (NEW.user_id, NEW.tenant_id, NEW.email, NEW.given_name, NEW.family_name)
+    ON CONFLICT (tenant_id, user_id) DO UPDATE SET email = EXCLUDED.email, given_name = EXCLUDED.given_name, family_name = EXCLUDED.family_name;
+    RETURN NEW;
+END
+$$;
+
+DROP TRIGGER IF EXISTS tenant_user_mirror ON tenant_user;
+
+CREATE TRIGGER tenant_user_mirror AFTER INSERT OR UPDATE OR DELETE ON tenant_user
+FOR EACH ROW EXECUTE FUNCTION tenant_user_mirror();
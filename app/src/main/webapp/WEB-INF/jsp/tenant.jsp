@@ -18,6 +18,7 @@ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
 <%@ taglib prefix="spring" uri="http://www.springframework.org/tags"%>
 <%@ taglib prefix="security" uri="http://www.springframework.org/security/tags" %>
 <%@ taglib prefix="c" uri="http://java.sun.com/jsp/jstl/core"%>
+<%@ taglib prefix="fn" uri="http://java.sun.com/jsp/jstl/functions"%>
 <%@ taglib prefix="fmt" uri="http://java.sun.com/jsp/jstl/fmt"%>
 <html lang="en">
   <head>
@@ -43,7 +44,12 @@ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
         <div class="row">
           <div class="col-12">
             <div class="alert alert-${css} alert-dismissible fade show" role="alert">
-              <strong>${msg}</strong>
+              <strong><c:out value="${msg}"/></strong>
+              <c:if test="${not empty importErrors}">
+              <ul class="mb-0">
+                <c:forEach items="${importErrors}" var="importError"><li><c:out value="${importError}"/></li></c:forEach>
+              </ul>
+              </c:if>
               <button type="button" class="close" data-dismiss="alert" aria-label="Close"><span aria-hidden="true">&times;</span></button>
             </div>
           </div>
@@ -80,11 +86,34 @@ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
     </div>
     <c:if test="${not empty selectedTenant.id}">
     <div class="row">
-      <div class="col-10">
+      <div class="col-8">
         <h4>Users</h4>
       </div>
-      <div class="col-2 align-self-center">
+      <div class="col-4 align-self-center">
         <a role="button" class="btn btn-success float-right" href="/tenant/newUser?tenantId=${selectedTenant.id}">Add User</a>
+        <a role="button" class="btn btn-outline-secondary float-right mr-2" href="/tenant/export?tenantId=${selectedTenant.id}&format=csv">Export</a>
+      </div>
+    </div>
+    <div class="form-group row">
+      <div class="col-12">
+        <%-- Multipart bodies aren't parsed before the CSRF check so the token goes on the URL --%>
+        <form action="/tenant/import?${_csrf.parameterName}=${_csrf.token}" method="post" enctype="multipart/form-data" class="form-inline">
+          <input type="hidden" name="tenantId" value="${selectedTenant.id}"/>
+          <label class="mr-2" for="file">Import users from CSV (email, given_name, family_name)</label>
+          <input type="file" name="file" id="file" accept=".csv,text/csv" class="form-control-file w-auto mr-2" required/>
+          <button type="submit" class="btn btn-outline-primary">Import</button>
+        </form>
+      </div>
+    </div>
+    <div class="form-group row">
+      <div class="col-12">
+        <form action="/tenant/search" method="get" class="form-inline">
+          <input type="hidden" name="tenantId" value="${selectedTenant.id}"/>
+          <label class="mr-2" for="q">Search users by email or name</label>
+          <input type="search" name="q" id="q" value="${fn:escapeXml(q)}" minlength="3" class="form-control mr-2"/>
+          <button type="submit" class="btn btn-outline-primary mr-2">Search</button>
+          <c:if test="${not empty q}"><a role="button" class="btn btn-outline-secondary" href="/tenant?tenantId=${selectedTenant.id}">Clear</a></c:if>
+        </form>
       </div>
     </div>
     <div class="row">
@@ -97,7 +126,7 @@ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
             <th style="width: 15%" scope="col"></th>
           </tr>
         </thead>
-        <c:forEach items="${selectedTenant.users}" var="user">
+        <c:forEach items="${userPage.users}" var="user">
           <tr class="clickable-row" data-href="/tenant/updateUser?id=${user.id}">
             <th scope="row">${user.id}</td>
             <td>${user.email}</td>
@@ -107,6 +136,23 @@ SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
         </c:forEach>
       </table>
     </div>
+    <c:if test="${not empty userPage and (userPage.hasMore or not firstPage)}">
+    <div class="row">
+      <div class="col-12">
+        <c:url var="firstPageUrl" value="${empty q ? '/tenant' : '/tenant/search'}">
+          <c:param name="tenantId" value="${selectedTenant.id}"/>
+          <c:if test="${not empty q}"><c:param name="q" value="${q}"/></c:if>
+        </c:url>
+        <c:url var="nextPageUrl" value="${empty q ? '/tenant' : '/tenant/search'}">
+          <c:param name="tenantId" value="${selectedTenant.id}"/>
+          <c:if test="${not empty q}"><c:param name="q" value="${q}"/></c:if>
+          <c:param name="after" value="${userPage.nextCursor}"/>
+        </c:url>
+        <c:if test="${not firstPage}"><a role="button" class="btn btn-secondary" href="${firstPageUrl}">First Page</a></c:if>
+        <c:if test="${userPage.hasMore}"><a role="button" class="btn btn-secondary float-right" href="${nextPageUrl}">Next Page</a></c:if>
+      </div>
+    </div>
+    </c:if>
 </c:if>
 
   </div>
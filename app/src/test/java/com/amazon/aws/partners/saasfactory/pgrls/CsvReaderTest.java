@@ -0,0 +1,55 @@
+/**
+ * Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.amazon.aws.partners.saasfactory.pgrls;
+
+import com.amazon.aws.partners.saasfactory.pgrls.service.CsvReader;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class CsvReaderTest {
+
+	@Test
+	public void readsQuotedFieldsAndLineEndings() throws IOException {
+		CsvReader reader = new CsvReader(new StringReader("email,given_name,family_name\r\n"
+				+ "a@example.com,\"Smith, Jr.\",\"He said \"\"hi\"\"\"\n"
+				+ "b@example.com,Two\nLine,x\n"));
+		assertEquals(Arrays.asList("email", "given_name", "family_name"), reader.next());
+		assertEquals(Arrays.asList("a@example.com", "Smith, Jr.", "He said \"hi\""), reader.next());
+		assertEquals(Arrays.asList("b@example.com", "Two"), reader.next());
+		assertEquals(Arrays.asList("Line", "x"), reader.next());
+		assertNull(reader.next());
+	}
+
+	@Test
+	public void escapedValuesReadBack() throws IOException {
+		String value = "O\"Brien, \nPat";
+		CsvReader reader = new CsvReader(new StringReader(CsvReader.escape(value) + ",plain"));
+		assertEquals(Arrays.asList(value, "plain"), reader.next());
+		assertEquals("plain", CsvReader.escape("plain"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unterminatedQuoteIsAFormatError() throws IOException {
+		CsvReader reader = new CsvReader(new StringReader("a@example.com,\"Smith,x\n"));
+		reader.next();
+	}
+}
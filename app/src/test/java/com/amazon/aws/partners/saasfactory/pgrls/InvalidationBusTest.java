@@ -0,0 +1,133 @@
+/**
+ * Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.amazon.aws.partners.saasfactory.pgrls;
+
+import com.amazon.aws.partners.saasfactory.pgrls.repository.InvalidationBus;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the invalidation bus against a real database. Two buses on the same database stand in for two
+ * application instances. Skipped without one:
+ *
+ * TEST_DB_URL=jdbc:postgresql://localhost:5432/rls TEST_DB_USER=app TEST_DB_PASS=... mvn test
+ */
+public class InvalidationBusTest {
+
+	private String url;
+	private InvalidationBus publisher;
+	private InvalidationBus subscriber;
+	private JdbcTemplate jdbc;
+	private TransactionTemplate transactions;
+
+	@Before
+	public void setUp() {
+		url = System.getenv("TEST_DB_URL");
+		Assume.assumeTrue("TEST_DB_URL not set", url != null);
+		DriverManagerDataSource dataSource = new DriverManagerDataSource(url, System.getenv("TEST_DB_USER"), System.getenv("TEST_DB_PASS"));
+		jdbc = new JdbcTemplate(dataSource);
+		transactions = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+		publisher = new InvalidationBus();
+		subscriber = new InvalidationBus();
+	}
+
+	@After
+	public void tearDown() {
+		if (publisher != null) {
+			publisher.close();
+			subscriber.close();
+		}
+	}
+
+	@Test
+	public void otherInstancesReceiveCommittedChanges() throws Exception {
+		Set<String> received = ConcurrentHashMap.newKeySet();
+		CountDownLatch delivered = new CountDownLatch(2);
+		subscriber.subscribe(InvalidationBus.TENANTS, keys -> keys.forEach(key -> {
+			received.add(key);
+			delivered.countDown();
+		}));
+		start(subscriber);
+
+		transactions.executeWithoutResult(status -> {
+			publisher.publish(jdbc, InvalidationBus.TENANTS, "rolled-back");
+			status.setRollbackOnly();
+		});
+		publisher.publish(jdbc, InvalidationBus.TENANTS, "a");
+		publisher.publish(jdbc, InvalidationBus.USERS, "not-subscribed");
+		publisher.publish(jdbc, InvalidationBus.TENANTS, "b");
+
+		assertTrue("Notifications not delivered", delivered.await(10, TimeUnit.SECONDS));
+		assertEquals(Set.of("a", "b"), received);
+	}
+
+	@Test
+	public void lostListenerConnectionReconnectsAndResyncs() throws Exception {
+		CountDownLatch resynced = new CountDownLatch(1);
+		CountDownLatch delivered = new CountDownLatch(1);
+		subscriber.onResync(resynced::countDown);
+		subscriber.subscribe(InvalidationBus.TENANTS, keys -> delivered.countDown());
+		start(subscriber);
+
+		jdbc.queryForList("SELECT pg_terminate_backend(pid) FROM pg_stat_activity WHERE application_name = 'invalidation-listener'");
+		assertTrue("Listener did not reconnect", resynced.await(10, TimeUnit.SECONDS));
+
+		publisher.publish(jdbc, InvalidationBus.TENANTS, "after-reconnect");
+		assertTrue("Notification not delivered after reconnect", delivered.await(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void failedPublishInsideTransactionFailsTheChange() {
+		// pg_notify refuses payloads of 8000 bytes or more
+		StringBuilder tooLong = new StringBuilder();
+		while (tooLong.length() < 8000) {
+			tooLong.append("key");
+		}
+		try {
+			transactions.executeWithoutResult(status -> publisher.publish(jdbc, InvalidationBus.TENANTS, tooLong));
+			fail("Transaction committed after its notification failed");
+		} catch (DataAccessException e) {
+			// expected, the transaction was aborted
+		}
+		// Outside a transaction the change it describes has already happened
+		publisher.publish(jdbc, InvalidationBus.TENANTS, tooLong);
+	}
+
+	// Starts listening and waits until the LISTEN has gone through
+	private void start(InvalidationBus bus) throws InterruptedException {
+		bus.start(url, System.getenv("TEST_DB_USER"), System.getenv("TEST_DB_PASS"));
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+		while (!Boolean.TRUE.equals(bus.getStats().get("connected")) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		assertEquals(Boolean.TRUE, bus.getStats().get("connected"));
+	}
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.amazon.aws.partners.saasfactory.pgrls;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Guards the indexes and RLS policies in db/migration. Runs EXPLAIN on the hot tenant queries as the
+ * application user (so the RLS policies are part of the plan) with sequential scans switched off. If a
+ * query can't be answered from an index the planner falls back to a sequential scan anyway and the test
+ * fails. It also checks the policy evaluates the tenant setting once (as an InitPlan).
+ *
+ * Needs a database bootstrapped by the application and is skipped without one:
+ *
+ * TEST_DB_URL=jdbc:postgresql://localhost:5432/rls TEST_DB_USER=app TEST_DB_PASS=... mvn test
+ */
+public class QueryPlanTest {
+
+	private Connection connection;
+
+	@Before
+	public void setUp() throws SQLException {
+		String url = System.getenv("TEST_DB_URL");
+		Assume.assumeTrue("TEST_DB_URL not set", url != null);
+		connection = DriverManager.getConnection(url, System.getenv("TEST_DB_USER"), System.getenv("TEST_DB_PASS"));
+		connection.setAutoCommit(false);
+		try (Statement sql = connection.createStatement()) {
+			sql.execute("SET LOCAL enable_seqscan = off");
+			sql.execute("SELECT set_config('app.current_tenant', '" + UUID.randomUUID() + "', true)");
+		}
+	}
+
+	@After
+	public void tearDown() throws SQLException {
+		if (connection != null) {
+			connection.rollback();
+			connection.close();
+		}
+	}
+
+	@Test
+	public void userPageUsesTenantIndex() throws SQLException {
+		String plan = explain("SELECT t.tenant_id, t.name, t.status, t.tier, u.user_id, u.email, u.given_name, u.family_name FROM tenant t " +
+				"LEFT JOIN LATERAL (SELECT user_id, email, given_name, family_name FROM tenant_user " +
+				"WHERE tenant_id = t.tenant_id AND user_id > ? ORDER BY user_id LIMIT ?) u ON true " +
+				"WHERE t.tenant_id = ? ORDER BY u.user_id", UUID.randomUUID(), 51, UUID.randomUUID());
+		assertIndexed(plan);
+	}
+
+	@Test
+	public void tenantWithUsersUsesIndexes() throws SQLException {
+		String plan = explain("SELECT t.tenant_id, t.name, t.status, t.tier, u.user_id, u.email, u.given_name, u.family_name " +
+				"FROM tenant t LEFT JOIN tenant_user u ON u.tenant_id = t.tenant_id WHERE t.tenant_id = ?", UUID.randomUUID());
+		assertIndexed(plan);
+	}
+
+	@Test
+	public void exportUsesTenantIndex() throws SQLException {
+		String plan = explain("SELECT tenant_id, user_id, email, given_name, family_name FROM tenant_user WHERE tenant_id = ? ORDER BY user_id", UUID.randomUUID());
+		assertIndexed(plan);
+		assertFalse("Index order should satisfy ORDER BY user_id\n" + plan, plan.contains("Sort"));
+	}
+
+	@Test
+	public void userSearchUsesTrigramIndex() throws SQLException {
+		String plan = explain("SELECT user_id FROM tenant_user WHERE tenant_id = ? AND ((email || ' ' || given_name || ' ' || family_name) ILIKE ? " +
+				"OR ? <% (email || ' ' || given_name || ' ' || family_name)) ORDER BY user_id LIMIT ?", UUID.randomUUID(), "%smith%", "smith", 51);
+		assertIndexed(plan);
+	}
+
+	@Test
+	public void policyOnlyQueryUsesTenantIndex() throws SQLException {
+		// No tenant_id in the SQL at all, the policy alone has to be able to use the index
+		String plan = explain("SELECT user_id FROM tenant_user");
+		assertIndexed(plan);
+		assertTrue("Tenant setting should be evaluated once per query\n" + plan, plan.contains("InitPlan"));
+	}
+
+	@Test
+	public void tenantVersionUsesPrimaryKey() throws SQLException {
+		// Runs before every conditional GET of a tenant page so it has to stay cheap
+		String plan = explain("SELECT sum(version)::BIGINT FROM tenant_version WHERE tenant_id = ?", UUID.randomUUID());
+		assertFalse("Sequential scan on tenant_version\n" + plan, plan.contains("Seq Scan on tenant_version"));
+	}
+
+	@Test
+	public void policyPrunesPartitions() throws SQLException {
+		try (Statement sql = connection.createStatement(); ResultSet rs = sql.executeQuery("SELECT relkind = 'p' FROM pg_class WHERE oid = 'tenant_user'::regclass")) {
+			rs.next();
+			Assume.assumeTrue("tenant_user is not partitioned", rs.getBoolean(1));
+		}
+		// The policy's InitPlan is only known once the query runs, so pruned partitions show up as never executed
+		String plan = explain("(ANALYZE, COSTS OFF) SELECT user_id FROM tenant_user");
+		int executed = 0;
+		for (String line : plan.split("\n")) {
+			if (line.matches(".* on tenant_user_p\\d+.*") && !line.contains("(never executed)")) {
+				executed++;
+			}
+		}
+		assertTrue("Only the current tenant's partition should be scanned\n" + plan, executed <= 1);
+	}
+
+	private static void assertIndexed(String plan) {
+		assertFalse("Sequential scan on tenant_user\n" + plan, plan.contains("Seq Scan on tenant_user"));
+		assertFalse("Sequential scan on tenant\n" + plan, plan.contains("Seq Scan on tenant "));
+	}
+
+	private String explain(String query, Object... params) throws SQLException {
+		StringBuilder plan = new StringBuilder();
+		try (PreparedStatement sql = connection.prepareStatement("EXPLAIN " + query)) {
+			for (int i = 0; i < params.length; i++) {
+				sql.setObject(i + 1, params[i]);
+			}
+			try (ResultSet rs = sql.executeQuery()) {
+				while (rs.next()) {
+					plan.append(rs.getString(1)).append('\n');
+				}
+			}
+		}
+		return plan.toString();
+	}
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.amazon.aws.partners.saasfactory.pgrls;
+
+import com.amazon.aws.partners.saasfactory.pgrls.repository.ReplicaRouter;
+import org.junit.Test;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import javax.sql.DataSource;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class ReplicaRouterTest {
+
+	private final DataSource primary = new DriverManagerDataSource();
+	private final DataSource replica = new DriverManagerDataSource();
+
+	@Test
+	public void readsUsePrimaryWithoutReplica() {
+		ReplicaRouter router = new ReplicaRouter(primary, null, 1000);
+		UUID tenant = UUID.randomUUID();
+		assertSame(primary, router.forRead(tenant));
+		router.written(tenant);
+		assertSame(primary, router.forRead(tenant));
+	}
+
+	@Test
+	public void readsFollowWritesToPrimaryForTheWindow() throws InterruptedException {
+		ReplicaRouter router = new ReplicaRouter(primary, replica, 50);
+		UUID writer = UUID.randomUUID();
+		UUID other = UUID.randomUUID();
+		assertSame(replica, router.forRead(writer));
+
+		router.written(writer);
+		assertSame("Writer reads its own writes", primary, router.forRead(writer));
+		assertSame("Other tenants are unaffected", replica, router.forRead(other));
+
+		Thread.sleep(100);
+		assertSame("Back to the replica once the window has passed", replica, router.forRead(writer));
+		assertEquals(1L, router.getStats().get("primaryReadsAfterWrite"));
+	}
+}
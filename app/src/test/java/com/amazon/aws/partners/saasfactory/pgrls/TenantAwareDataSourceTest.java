@@ -0,0 +1,415 @@
+/**
+ * Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.amazon.aws.partners.saasfactory.pgrls;
+
+import com.amazon.aws.partners.saasfactory.pgrls.domain.Tenant;
+import com.amazon.aws.partners.saasfactory.pgrls.repository.Binding;
+import com.amazon.aws.partners.saasfactory.pgrls.repository.TenantAwareDataSource;
+import com.amazon.aws.partners.saasfactory.pgrls.repository.TenantBulkhead;
+import com.amazon.aws.partners.saasfactory.pgrls.service.TenantTransactionTemplate;
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import javax.sql.DataSource;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class TenantAwareDataSourceTest {
+
+	private FakeSession session;
+	private TenantAwareDataSource dataSource;
+
+	@Before
+	public void setUp() {
+		session = new FakeSession();
+		dataSource = new TenantAwareDataSource();
+		DataSource pool = session.dataSource();
+		dataSource.setTargetResolver(tenant -> pool);
+		dataSource.setTargetDataSources(Collections.emptyMap());
+		dataSource.setClearOnClose(true);
+		dataSource.afterPropertiesSet();
+	}
+
+	@After
+	public void tearDown() {
+		SecurityContextHolder.clearContext();
+	}
+
+	@Test
+	public void sharedConnectionDoesNotLeakTenantContext() throws SQLException {
+		UUID tenantA = UUID.randomUUID();
+		UUID tenantB = UUID.randomUUID();
+
+		authenticate(tenantA);
+		try (Connection connection = dataSource.getConnection()) {
+			assertEquals("Checkout binds the authenticated tenant", tenantA.toString(), session.currentTenant);
+		}
+		assertEquals("Returning the connection clears the tenant", "", session.currentTenant);
+
+		authenticate(tenantB);
+		try (Connection connection = dataSource.getConnection()) {
+			assertEquals("Same physical connection is bound to the next tenant", tenantB.toString(), session.currentTenant);
+		}
+		assertEquals("Returning the connection clears the tenant", "", session.currentTenant);
+		assertEquals("One physical connection served both checkouts", 2, session.checkouts);
+	}
+
+	@Test
+	public void alreadyBoundConnectionSkipsRoundTrip() throws SQLException {
+		dataSource.setClearOnClose(false);
+		UUID tenantA = UUID.randomUUID();
+
+		authenticate(tenantA);
+		dataSource.getConnection().close();
+		dataSource.getConnection().close();
+		assertEquals("Bound once for two checkouts by the same tenant", 1, session.binds);
+		assertEquals(tenantA.toString(), session.currentTenant);
+
+		authenticate(UUID.randomUUID());
+		dataSource.getConnection().close();
+		assertEquals("A different tenant rebinds the connection", 2, session.binds);
+
+		authenticate(tenantA);
+		dataSource.getConnection().close();
+		assertEquals(3, session.binds);
+		assertEquals(tenantA.toString(), session.currentTenant);
+	}
+
+	@Test
+	public void bindingInsideTransactionIsNotRemembered() throws SQLException {
+		dataSource.setClearOnClose(false);
+		authenticate(UUID.randomUUID());
+		session.autoCommit = false;
+		dataSource.getConnection();
+		dataSource.getConnection();
+		assertEquals("A rollback could undo the binding so it's always sent", 2, session.binds);
+	}
+
+	@Test
+	public void transactionBindingBindsEachTransaction() throws SQLException {
+		dataSource.setBinding(Binding.Transaction);
+		authenticate(UUID.randomUUID());
+		try (Connection connection = dataSource.getConnection()) {
+			assertEquals("Nothing is sent at checkout", 0, session.transactionBinds + session.binds);
+			try {
+				connection.createStatement();
+				fail("Statement allowed outside of a transaction");
+			} catch (SQLException e) {
+				// expected
+			}
+
+			connection.setAutoCommit(false);
+			connection.prepareStatement("SELECT 1");
+			connection.prepareStatement("SELECT 2");
+			assertEquals("Bound once at the start of the transaction", 1, session.transactionBinds);
+			connection.commit();
+
+			connection.prepareStatement("SELECT 3");
+			assertEquals("Bound again for the next transaction", 2, session.transactionBinds);
+			connection.rollback();
+		}
+		assertEquals("Session is never bound", 0, session.binds);
+		assertFalse("Nothing to reset", session.log.contains("RESET app.current_tenant"));
+	}
+
+	@Test
+	public void closeRollsBackAndClearsOpenTransaction() throws SQLException {
+		authenticate(UUID.randomUUID());
+		Connection connection = dataSource.getConnection();
+		connection.setAutoCommit(false);
+		connection.close();
+		assertTrue("Uncommitted work is rolled back before the reset", session.log.contains("ROLLBACK"));
+		assertEquals("Reset is committed so the pool can't undo it", "COMMIT", session.log.get(session.log.size() - 1));
+		assertEquals("", session.currentTenant);
+		assertTrue(connection.isClosed());
+	}
+
+	@Test
+	public void onlySharedPoolConnectionsAreCleared() throws SQLException {
+		FakeSession dedicated = new FakeSession();
+		DataSource dedicatedPool = dedicated.dataSource();
+		DataSource sharedPool = session.dataSource();
+		UUID gold = UUID.randomUUID();
+		dataSource.setTargetResolver(tenant -> gold.equals(tenant) ? dedicatedPool : sharedPool);
+		dataSource.setClearOnClose(target -> target == sharedPool);
+
+		authenticate(gold);
+		dataSource.getConnection().close();
+		assertEquals("Dedicated pool keeps its binding", gold.toString(), dedicated.currentTenant);
+
+		authenticate(UUID.randomUUID());
+		dataSource.getConnection().close();
+		assertEquals("Shared pool is reset", "", session.currentTenant);
+	}
+
+	@Test
+	public void tenantOverItsLimitIsThrottled() throws SQLException {
+		TenantBulkhead bulkhead = new TenantBulkhead(tenant -> 1, 10);
+		dataSource.setBulkhead(bulkhead);
+		authenticate(UUID.randomUUID());
+		Connection first = dataSource.getConnection();
+		try {
+			dataSource.getConnection();
+			fail("Second concurrent checkout should be rejected");
+		} catch (TenantThrottledException e) {
+			assertEquals("Rejected before touching the pool", 1, session.checkouts);
+		}
+		first.close();
+		dataSource.getConnection().close();
+		assertEquals(1L, bulkhead.getStats().get("rejected"));
+		assertEquals(2L, bulkhead.getStats().get("admitted"));
+	}
+
+	@Test
+	public void throttledTransactionIsStillThrottled() throws SQLException {
+		// The transaction manager takes the connection, and wraps whatever getConnection throws
+		dataSource.setBinding(Binding.Transaction);
+		dataSource.setBulkhead(new TenantBulkhead(tenant -> 1, 10));
+		authenticate(UUID.randomUUID());
+		TenantTransactionTemplate transaction = new TenantTransactionTemplate(new DataSourceTransactionManager(dataSource));
+		Connection first = dataSource.getConnection();
+		try {
+			transaction.executeWithoutResult(status -> fail("Transaction began over the tenant's limit"));
+			fail("Second concurrent checkout should be rejected");
+		} catch (TenantThrottledException e) {
+			// expected, and not a CannotCreateTransactionException
+		}
+		first.close();
+		transaction.executeWithoutResult(status -> { });
+		assertEquals("COMMIT", session.log.get(session.log.size() - 1));
+	}
+
+	@Test
+	public void sampledVerificationRebindsOnMismatch() throws SQLException {
+		dataSource.setClearOnClose(false);
+		dataSource.setVerifySampleRate(1);
+		UUID tenant = UUID.randomUUID();
+		authenticate(tenant);
+		dataSource.getConnection().close();
+		dataSource.getConnection().close();
+		assertEquals("Verified rather than bound again", 1, session.binds);
+		assertEquals(1L, dataSource.getStats().get("verifications"));
+		assertEquals(0L, dataSource.getStats().get("verificationMismatches"));
+
+		// Something reset the session behind our back
+		session.currentTenant = "";
+		try (Connection connection = dataSource.getConnection()) {
+			assertEquals("Mismatch is bound again before the connection is handed out", tenant.toString(), session.currentTenant);
+		}
+		assertEquals(2, session.binds);
+		assertEquals(2L, dataSource.getStats().get("verifications"));
+		assertEquals(1L, dataSource.getStats().get("verificationMismatches"));
+	}
+
+	@Test
+	public void failedClearEvictsConnection() throws SQLException {
+		List<Connection> evicted = new ArrayList<>();
+		DataSource sessionPool = session.dataSource();
+		HikariDataSource pool = new HikariDataSource() {
+			@Override
+			public Connection getConnection() throws SQLException {
+				return sessionPool.getConnection();
+			}
+
+			@Override
+			public void evictConnection(Connection connection) {
+				evicted.add(connection);
+			}
+		};
+		dataSource.setTargetResolver(tenant -> pool);
+		authenticate(UUID.randomUUID());
+		Connection physical;
+		try (Connection connection = dataSource.getConnection()) {
+			physical = connection.unwrap(Connection.class);
+			session.failReset = true;
+		}
+		assertEquals("Connection still bound to a tenant is evicted", Collections.singletonList(physical), evicted);
+
+		// Nothing remembers the failed connection as bound
+		dataSource.setClearOnClose(false);
+		session.failReset = false;
+		dataSource.getConnection().close();
+		assertEquals(2, session.binds);
+	}
+
+	@Test
+	public void anonymousCheckoutIsRefused() {
+		SecurityContextHolder.getContext().setAuthentication(new AnonymousAuthenticationToken("key", "anonymous", AuthorityUtils.createAuthorityList("ROLE_ANONYMOUS")));
+		try {
+			dataSource.getConnection();
+			fail("Connection handed out without a tenant");
+		} catch (SQLException e) {
+			// expected
+		}
+		assertEquals("No connection was taken from the pool", 0, session.checkouts);
+	}
+
+	private static void authenticate(UUID tenantId) {
+		Tenant tenant = new Tenant(tenantId);
+		SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken(tenant, tenantId, new ArrayList<>()));
+	}
+
+	/**
+	 * Stands in for a pool with one physical PostgreSQL connection and tracks the
+	 * value of app.current_tenant the way the server session would.
+	 */
+	static class FakeSession {
+
+		String currentTenant = "";
+		boolean autoCommit = true;
+		int checkouts = 0;
+		int binds = 0;
+		int transactionBinds = 0;
+		boolean failReset = false;
+		final List<String> log = new ArrayList<>();
+		private Connection physical;
+
+		DataSource dataSource() {
+			return (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {DataSource.class}, (proxy, method, args) -> {
+				if ("getConnection".equals(method.getName())) {
+					checkouts++;
+					if (physical == null) {
+						physical = connection();
+					}
+					return physical;
+				}
+				throw new UnsupportedOperationException(method.getName());
+			});
+		}
+
+		private Connection connection() {
+			return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Connection.class}, (proxy, method, args) -> {
+				switch (method.getName()) {
+					case "createStatement":
+						return statement();
+					case "prepareStatement":
+						return preparedStatement((String) args[0]);
+					case "unwrap":
+						return proxy;
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					case "equals":
+						return proxy == args[0];
+					case "getAutoCommit":
+						return autoCommit;
+					case "setAutoCommit":
+						autoCommit = (Boolean) args[0];
+						return null;
+					case "commit":
+						log.add("COMMIT");
+						return null;
+					case "rollback":
+						log.add("ROLLBACK");
+						return null;
+					case "close":
+						// Back to the pool, the session (and its variables) lives on
+						autoCommit = true;
+						return null;
+					case "isClosed":
+						return false;
+					default:
+						throw new UnsupportedOperationException(method.getName());
+				}
+			});
+		}
+
+		private Statement statement() {
+			return (Statement) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Statement.class}, (proxy, method, args) -> {
+				switch (method.getName()) {
+					case "execute":
+						String sql = (String) args[0];
+						if ("RESET app.current_tenant".equals(sql)) {
+							if (failReset) {
+								throw new SQLException("Connection reset");
+							}
+							currentTenant = "";
+						}
+						log.add(sql);
+						return false;
+					case "executeQuery":
+						if (!"SELECT current_setting('app.current_tenant', true)".equals(args[0])) {
+							throw new UnsupportedOperationException((String) args[0]);
+						}
+						return resultSet(currentTenant);
+					case "close":
+						return null;
+					default:
+						throw new UnsupportedOperationException(method.getName());
+				}
+			});
+		}
+
+		private ResultSet resultSet(String value) {
+			boolean[] read = new boolean[1];
+			return (ResultSet) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {ResultSet.class}, (proxy, method, args) -> {
+				switch (method.getName()) {
+					case "next":
+						boolean next = !read[0];
+						read[0] = true;
+						return next;
+					case "getString":
+						return value;
+					case "close":
+						return null;
+					default:
+						throw new UnsupportedOperationException(method.getName());
+				}
+			});
+		}
+
+		private PreparedStatement preparedStatement(String sql) {
+			String[] parameters = new String[1];
+			return (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {PreparedStatement.class}, (proxy, method, args) -> {
+				switch (method.getName()) {
+					case "setString":
+						parameters[(Integer) args[0] - 1] = (String) args[1];
+						return null;
+					case "execute":
+						log.add(sql);
+						if ("SELECT set_config('app.current_tenant', ?, false)".equals(sql)) {
+							binds++;
+							currentTenant = parameters[0];
+						} else if ("SELECT set_config('app.current_tenant', ?, true)".equals(sql)) {
+							transactionBinds++;
+						}
+						return true;
+					case "close":
+						return null;
+					default:
+						throw new UnsupportedOperationException(method.getName());
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.amazon.aws.partners.saasfactory.pgrls;
+
+import com.amazon.aws.partners.saasfactory.pgrls.domain.Tenant;
+import com.amazon.aws.partners.saasfactory.pgrls.repository.Binding;
+import com.amazon.aws.partners.saasfactory.pgrls.repository.TenantAwareDataSource;
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of session vs transaction scoped tenant binding against a real database, both direct and
+ * through a transaction pooler. Each operation is the getTenant + getUsers pair the tenant page runs
+ * against tenants seeded with users, so RLS has real rows to filter. Neither mode resets the session on
+ * close so only the binding itself is compared. With a tenant per thread session binding rebinds whenever
+ * a connection moves to another tenant, with one tenant it's the steady state of a pool per tenant.
+ * Session binding is not run through the pooler because it isn't safe there.
+ *
+ * Needs a database bootstrapped by the application and the admin user to seed it. Not part of the
+ * regular test run:
+ *
+ * BENCHMARK_DB_URL=jdbc:postgresql://localhost:5432/rls BENCHMARK_POOLER_URL=jdbc:postgresql://localhost:6432/rls
+ * BENCHMARK_DB_USER=app BENCHMARK_DB_PASS=... BENCHMARK_ADMIN_USER=postgres BENCHMARK_ADMIN_PASS=...
+ * mvn test -Dtest=TenantBindingBenchmark
+ */
+public class TenantBindingBenchmark {
+
+	private static final int THREADS = 16;
+	private static final int USERS_PER_TENANT = 50;
+	private static final long RUN_SECONDS = 10;
+
+	private final List<HikariDataSource> pools = new ArrayList<>();
+	private final List<UUID> tenants = new ArrayList<>();
+	private Connection admin;
+
+	@After
+	public void tearDown() throws SQLException {
+		pools.forEach(HikariDataSource::close);
+		if (admin != null) {
+			for (String table : new String[] {"tenant_user", "tenant"}) {
+				try (PreparedStatement sql = admin.prepareStatement("DELETE FROM " + table + " WHERE tenant_id = ANY(?)")) {
+					sql.setArray(1, admin.createArrayOf("uuid", tenants.toArray()));
+					sql.executeUpdate();
+				}
+			}
+			admin.close();
+		}
+	}
+
+	@Test
+	public void sessionVersusTransactionBinding() throws Exception {
+		String url = System.getenv("BENCHMARK_DB_URL");
+		Assume.assumeTrue("BENCHMARK_DB_URL not set", url != null);
+		Assume.assumeTrue("BENCHMARK_ADMIN_USER not set", System.getenv("BENCHMARK_ADMIN_USER") != null);
+		String poolerUrl = System.getenv("BENCHMARK_POOLER_URL");
+
+		admin = DriverManager.getConnection(url, System.getenv("BENCHMARK_ADMIN_USER"), System.getenv("BENCHMARK_ADMIN_PASS"));
+		seed();
+
+		System.out.println(String.format("%-40s %12s", "mode", "ops/sec"));
+		System.out.println(String.format("%-40s %12.0f", "session, direct, tenant per thread", run(url, Binding.Session, false)));
+		System.out.println(String.format("%-40s %12.0f", "session, direct, one tenant", run(url, Binding.Session, true)));
+		System.out.println(String.format("%-40s %12.0f", "transaction, direct, tenant per thread", run(url, Binding.Transaction, false)));
+		if (poolerUrl != null) {
+			System.out.println(String.format("%-40s %12.0f", "transaction, pooler, tenant per thread", run(poolerUrl, Binding.Transaction, false)));
+		}
+	}
+
+	private void seed() throws SQLException {
+		for (int t = 0; t < THREADS; t++) {
+			UUID tenantId = UUID.randomUUID();
+			try (PreparedStatement sql = admin.prepareStatement("INSERT INTO tenant (tenant_id, name, status, tier) VALUES (?, ?, 'Active', 'Gold')")) {
+				sql.setObject(1, tenantId);
+				sql.setString(2, "Binding Benchmark " + tenantId);
+				sql.executeUpdate();
+			}
+			tenants.add(tenantId);
+			try (PreparedStatement sql = admin.prepareStatement("INSERT INTO tenant_user (tenant_id, email, given_name, family_name) " +
+					"SELECT ?, 'user' || i || '@' || ? || '.example.com', 'Given' || i, 'Family' || i FROM generate_series(1, ?) i")) {
+				sql.setObject(1, tenantId);
+				sql.setString(2, tenantId.toString());
+				sql.setInt(3, USERS_PER_TENANT);
+				sql.executeUpdate();
+			}
+		}
+	}
+
+	private double run(String url, Binding binding, boolean oneTenant) throws Exception {
+		HikariDataSource pool = new HikariDataSource();
+		pool.setJdbcUrl(url);
+		pool.setUsername(System.getenv("BENCHMARK_DB_USER"));
+		pool.setPassword(System.getenv("BENCHMARK_DB_PASS"));
+		pool.setMaximumPoolSize(THREADS);
+		// Server side prepared statements don't survive a transaction pooler
+		pool.addDataSourceProperty("prepareThreshold", "0");
+		pools.add(pool);
+
+		TenantAwareDataSource dataSource = new TenantAwareDataSource();
+		dataSource.setTargetResolver(tenant -> pool);
+		dataSource.setTargetDataSources(Collections.emptyMap());
+		dataSource.setBinding(binding);
+		dataSource.afterPropertiesSet();
+		JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+		TransactionTemplate transactions = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+
+		ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(RUN_SECONDS);
+		List<Future<Long>> results = new ArrayList<>();
+		for (int t = 0; t < THREADS; t++) {
+			UUID tenantId = tenants.get(oneTenant ? 0 : t);
+			results.add(threads.submit(() -> {
+				SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken(new Tenant(tenantId), tenantId, new ArrayList<>()));
+				long ops = 0;
+				while (System.nanoTime() < end) {
+					Runnable work = () -> {
+						jdbc.queryForList("SELECT tenant_id, name, status, tier FROM tenant WHERE tenant_id = ?", tenantId);
+						List<Map<String, Object>> users = jdbc.queryForList("SELECT tenant_id, user_id, email, given_name, family_name FROM tenant_user WHERE tenant_id = ?", tenantId);
+						if (users.size() != USERS_PER_TENANT) {
+							throw new IllegalStateException("Expected " + USERS_PER_TENANT + " users but RLS returned " + users.size());
+						}
+					};
+					if (binding == Binding.Transaction) {
+						transactions.executeWithoutResult(status -> work.run());
+					} else {
+						work.run();
+					}
+					ops++;
+				}
+				return ops;
+			}));
+		}
+		long total = 0;
+		for (Future<Long> result : results) {
+			total += result.get();
+		}
+		threads.shutdown();
+		return (double) total / RUN_SECONDS;
+	}
+}
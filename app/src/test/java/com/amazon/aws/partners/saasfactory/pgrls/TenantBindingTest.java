@@ -0,0 +1,153 @@
+/**
+ * Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.amazon.aws.partners.saasfactory.pgrls;
+
+import com.amazon.aws.partners.saasfactory.pgrls.domain.Tenant;
+import com.amazon.aws.partners.saasfactory.pgrls.repository.Binding;
+import com.amazon.aws.partners.saasfactory.pgrls.repository.TenantAwareDataSource;
+import com.amazon.aws.partners.saasfactory.pgrls.service.TenantTransactionTemplate;
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks what a pooled connection still has bound once the application has given it back, against a
+ * real database. The pool holds a single connection so every checkout gets the same session, and the
+ * session is then inspected directly through the pool, the way the next tenant would find it. Skipped
+ * without a database:
+ *
+ * TEST_DB_URL=jdbc:postgresql://localhost:5432/rls TEST_DB_USER=app TEST_DB_PASS=... mvn test
+ */
+public class TenantBindingTest {
+
+	private final UUID tenantId = UUID.randomUUID();
+	private HikariDataSource pool;
+
+	@Before
+	public void setUp() {
+		String url = System.getenv("TEST_DB_URL");
+		Assume.assumeTrue("TEST_DB_URL not set", url != null);
+		pool = new HikariDataSource();
+		pool.setJdbcUrl(url);
+		pool.setUsername(System.getenv("TEST_DB_USER"));
+		pool.setPassword(System.getenv("TEST_DB_PASS"));
+		pool.setMaximumPoolSize(1);
+		SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken(new Tenant(tenantId), tenantId, new ArrayList<>()));
+	}
+
+	@After
+	public void tearDown() {
+		SecurityContextHolder.clearContext();
+		if (pool != null) {
+			pool.close();
+		}
+	}
+
+	@Test
+	public void sessionBindingIsResetWhenTheConnectionGoesBack() throws SQLException {
+		TenantAwareDataSource dataSource = dataSource(Binding.Session);
+		try (Connection connection = dataSource.getConnection()) {
+			assertEquals(tenantId.toString(), currentTenant(connection));
+		}
+		assertUnbound();
+	}
+
+	@Test
+	public void sessionBindingIsResetAfterARollback() throws SQLException {
+		TenantAwareDataSource dataSource = dataSource(Binding.Session);
+		rollBackAfterAnError(dataSource);
+		assertUnbound();
+		// The reset left the connection usable
+		try (Connection connection = dataSource.getConnection()) {
+			assertEquals(tenantId.toString(), currentTenant(connection));
+		}
+	}
+
+	@Test
+	public void transactionBindingEndsWithTheTransaction() throws SQLException {
+		TenantAwareDataSource dataSource = dataSource(Binding.Transaction);
+		JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+		String bound = transactions(dataSource).execute(status -> jdbc.queryForObject("SELECT current_setting('app.current_tenant', true)", String.class));
+		assertEquals(tenantId.toString(), bound);
+		assertUnbound();
+
+		rollBackAfterAnError(dataSource);
+		assertUnbound();
+	}
+
+	private TenantAwareDataSource dataSource(Binding binding) {
+		TenantAwareDataSource dataSource = new TenantAwareDataSource();
+		dataSource.setTargetResolver(tenant -> pool);
+		dataSource.setTargetDataSources(Collections.emptyMap());
+		dataSource.setBinding(binding);
+		// As for the shared pool, where the next checkout can be another tenant
+		dataSource.setClearOnClose(true);
+		dataSource.afterPropertiesSet();
+		return dataSource;
+	}
+
+	private TransactionTemplate transactions(TenantAwareDataSource dataSource) {
+		return new TenantTransactionTemplate(new DataSourceTransactionManager(dataSource));
+	}
+
+	// Binds the tenant, fails a statement so PostgreSQL aborts the transaction and rolls it back
+	private void rollBackAfterAnError(TenantAwareDataSource dataSource) {
+		JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+		transactions(dataSource).executeWithoutResult(status -> {
+			assertEquals(tenantId.toString(), jdbc.queryForObject("SELECT current_setting('app.current_tenant', true)", String.class));
+			try {
+				jdbc.queryForObject("SELECT 1 / 0", Integer.class);
+				fail("Division by zero");
+			} catch (DataAccessException e) {
+				status.setRollbackOnly();
+			}
+		});
+	}
+
+	// What the next checkout finds on the pool's only connection, before anything binds it
+	private void assertUnbound() throws SQLException {
+		try (Connection connection = pool.getConnection()) {
+			String tenant = currentTenant(connection);
+			assertTrue("Still bound to " + tenant, tenant == null || tenant.isEmpty());
+		}
+	}
+
+	private static String currentTenant(Connection connection) throws SQLException {
+		try (Statement sql = connection.createStatement(); ResultSet rs = sql.executeQuery("SELECT current_setting('app.current_tenant', true)")) {
+			rs.next();
+			return rs.getString(1);
+		}
+	}
+}
@@ -0,0 +1,210 @@
+/**
+ * Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.amazon.aws.partners.saasfactory.pgrls;
+
+import com.amazon.aws.partners.saasfactory.pgrls.domain.Status;
+import com.amazon.aws.partners.saasfactory.pgrls.domain.Tenant;
+import com.amazon.aws.partners.saasfactory.pgrls.domain.Tier;
+import com.amazon.aws.partners.saasfactory.pgrls.service.TenantCache;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+
+public class TenantCacheTest {
+
+	private final FakeTenantTable table = new FakeTenantTable();
+	private final TenantCache cache = new TenantCache(table);
+	private final List<String> changes = new ArrayList<>();
+
+	@After
+	public void close() {
+		cache.close();
+	}
+
+	@Test
+	public void refreshReadsOnlyChangedTenants() {
+		Tenant acme = table.insert("Acme");
+		start();
+		assertEquals("Acme", cache.get(acme.getId()).getName());
+
+		table.tick();
+		Tenant globex = table.insert("Globex");
+		acme.setName("Acme Corp");
+		table.update(acme);
+		cache.refresh();
+
+		assertEquals("Acme Corp", cache.get(acme.getId()).getName());
+		assertEquals("Globex", cache.get(globex.getId()).getName());
+		assertEquals("One full load at start", 1L, cache.getStats().get("reloads"));
+		assertTrue(changes.contains("changed " + acme.getId()));
+		assertTrue(changes.contains("added " + globex.getId()));
+	}
+
+	@Test
+	public void putDuringRefreshDiscardsTheRefresh() {
+		Tenant acme = table.insert("Acme");
+		start();
+		String version = cache.getVersion();
+
+		table.tick();
+		acme.setName("Acme Corp");
+		table.update(acme);
+		// This instance renames it again while the refresh is reading the older name
+		Tenant renamed = copy(acme);
+		renamed.setName("Acme Inc");
+		table.duringRefresh = () -> cache.put(renamed);
+		cache.refresh();
+
+		assertEquals("Acme Inc", cache.get(acme.getId()).getName());
+		assertNotEquals(version, cache.getVersion());
+		assertEquals("Refresh was thrown away", 1L, cache.getStats().get("refreshes"));
+		assertTrue("Write throughs aren't announced to the listener", changes.isEmpty());
+
+		// The next refresh isn't disturbed and picks up whatever is in the table
+		table.duringRefresh = null;
+		cache.refresh();
+		assertEquals(2L, cache.getStats().get("refreshes"));
+	}
+
+	@Test
+	public void removeDuringRefreshIsNotUndone() {
+		Tenant acme = table.insert("Acme");
+		start();
+
+		table.tick();
+		acme.setTier(Tier.Gold);
+		table.update(acme);
+		table.duringRefresh = () -> cache.remove(acme.getId());
+		cache.refresh();
+
+		assertNull(cache.get(acme.getId()));
+		assertTrue(cache.getAll().isEmpty());
+	}
+
+	@Test
+	public void deleteByAnotherInstanceReloadsEverything() {
+		Tenant acme = table.insert("Acme");
+		Tenant globex = table.insert("Globex");
+		start();
+		assertEquals(2, cache.getAll().size());
+
+		// Deletes don't touch updated_at, only the row count gives them away
+		table.tick();
+		table.delete(globex);
+		cache.refresh();
+
+		assertNull(cache.get(globex.getId()));
+		assertNotNull(cache.get(acme.getId()));
+		assertEquals(2L, cache.getStats().get("reloads"));
+		assertEquals(1, changes.size());
+		assertEquals("removed " + globex.getId(), changes.get(0));
+	}
+
+	private void start() {
+		cache.setListener((id, before, after) -> changes.add((before == null ? "added " : after == null ? "removed " : "changed ") + id));
+		cache.start(Long.MAX_VALUE);
+		assertEquals(1L, cache.getStats().get("refreshes"));
+	}
+
+	private static Tenant copy(Tenant tenant) {
+		Tenant copy = new Tenant(tenant.getId());
+		copy.setName(tenant.getName());
+		copy.setStatus(tenant.getStatus());
+		copy.setTier(tenant.getTier());
+		return copy;
+	}
+
+	/**
+	 * Answers the cache's queries from a map standing in for the tenant table, with a clock that only moves
+	 * when the test says so.
+	 */
+	static class FakeTenantTable extends JdbcTemplate {
+
+		final Map<UUID, Tenant> rows = new ConcurrentHashMap<>();
+		final Map<UUID, Timestamp> updatedAt = new ConcurrentHashMap<>();
+		long now = System.currentTimeMillis();
+		Runnable duringRefresh;
+
+		Tenant insert(String name) {
+			Tenant tenant = new Tenant(UUID.randomUUID());
+			tenant.setName(name);
+			tenant.setStatus(Status.Active);
+			tenant.setTier(Tier.Bronze);
+			update(tenant);
+			return tenant;
+		}
+
+		void update(Tenant tenant) {
+			rows.put(tenant.getId(), copy(tenant));
+			updatedAt.put(tenant.getId(), new Timestamp(now));
+		}
+
+		void delete(Tenant tenant) {
+			rows.remove(tenant.getId());
+			updatedAt.remove(tenant.getId());
+		}
+
+		// Further than the refresh overlap so the rows changed before don't come back
+		void tick() {
+			now += 120000;
+		}
+
+		@Override
+		public Map<String, Object> queryForMap(String sql) {
+			Map<String, Object> result = new HashMap<>();
+			result.put("refreshed_at", new Timestamp(now));
+			result.put("tenants", (long) rows.size());
+			return result;
+		}
+
+		@Override
+		public <T> List<T> query(String sql, RowMapper<T> rowMapper) {
+			return select(null);
+		}
+
+		@Override
+		public <T> List<T> query(String sql, RowMapper<T> rowMapper, Object... args) {
+			List<T> changed = select((Timestamp) args[0]);
+			if (duringRefresh != null) {
+				duringRefresh.run();
+			}
+			return changed;
+		}
+
+		@SuppressWarnings("unchecked")
+		private <T> List<T> select(Timestamp after) {
+			List<T> result = new ArrayList<>();
+			rows.forEach((id, tenant) -> {
+				if (after == null || updatedAt.get(id).after(after)) {
+					result.add((T) copy(tenant));
+				}
+			});
+			return result;
+		}
+	}
+}
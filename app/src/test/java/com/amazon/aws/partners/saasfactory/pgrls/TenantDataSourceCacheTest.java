@@ -0,0 +1,168 @@
+/**
+ * Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.amazon.aws.partners.saasfactory.pgrls;
+
+import com.amazon.aws.partners.saasfactory.pgrls.repository.TenantDataSourceCache;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.Assert.*;
+
+public class TenantDataSourceCacheTest {
+
+	private final Set<Object> closed = ConcurrentHashMap.newKeySet();
+
+	@Test
+	public void evictsLeastRecentlyUsedWhenFull() throws Exception {
+		TenantDataSourceCache cache = new TenantDataSourceCache(2, 0);
+		DataSource a = cache.get("a", this::pool);
+		cache.get("b", this::pool);
+		Thread.sleep(2);
+		// a is now more recently used than b
+		assertSame(a, cache.get("a"));
+		cache.get("c", this::pool);
+
+		assertEquals(2, cache.size());
+		assertNull("Least recently used tenant was evicted", cache.get("b"));
+		assertSame(a, cache.get("a"));
+		awaitClosed("b");
+		assertFalse(closed.contains("a"));
+
+		Map<String, Object> stats = cache.getStats();
+		assertEquals(1L, stats.get("evictions"));
+		assertEquals(2L, stats.get("hits"));
+		assertEquals(4L, stats.get("misses"));
+		cache.close();
+	}
+
+	@Test
+	public void expiresIdlePools() throws Exception {
+		TenantDataSourceCache cache = new TenantDataSourceCache(10, 100);
+		cache.get("a", this::pool);
+		awaitClosed("a");
+		assertEquals(0, cache.size());
+		cache.close();
+	}
+
+	@Test
+	public void evictClosesPool() throws Exception {
+		TenantDataSourceCache cache = new TenantDataSourceCache(10, 0);
+		cache.get("a", this::pool);
+		cache.evict("a");
+		assertNull(cache.get("a"));
+		awaitClosed("a");
+		cache.close();
+	}
+
+	@Test
+	public void evictionWaitsForCheckoutInProgress() throws Exception {
+		TenantDataSourceCache cache = new TenantDataSourceCache(1, 0);
+		CountDownLatch checkingOut = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		DataSource a = cache.get("a", tenant -> pool(tenant, checkingOut, release));
+		Future<Connection> checkout = Executors.newSingleThreadExecutor().submit(() -> a.getConnection());
+		assertTrue(checkingOut.await(5, TimeUnit.SECONDS));
+
+		// Another tenant pushes a out of the full cache while a's checkout waits on the pool
+		cache.get("b", this::pool);
+		Thread.sleep(200);
+		assertFalse("Pool closed under a checkout", closed.contains("a"));
+
+		release.countDown();
+		assertNotNull(checkout.get(5, TimeUnit.SECONDS));
+		awaitClosed("a");
+		cache.close();
+	}
+
+	@Test
+	public void checkoutAfterEvictionUsesNewPool() throws Exception {
+		TenantDataSourceCache cache = new TenantDataSourceCache(10, 0);
+		AtomicInteger created = new AtomicInteger();
+		Function<Object, DataSource> factory = tenant -> {
+			created.incrementAndGet();
+			return pool(tenant, new CountDownLatch(1), new CountDownLatch(0));
+		};
+		DataSource looked = cache.get("a", factory);
+		cache.evict("a");
+		awaitClosed("a");
+
+		// The caller still holds the evicted pool it looked up before the eviction
+		assertNotNull(looked.getConnection());
+		assertEquals("Checkout went to a new pool", 2, created.get());
+		assertEquals(1, cache.size());
+		cache.close();
+	}
+
+	private void awaitClosed(Object tenant) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!closed.contains(tenant) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue("Pool for " + tenant + " was closed", closed.contains(tenant));
+	}
+
+	// A pool whose getConnection signals it has started and waits to be released
+	private DataSource pool(Object tenant, CountDownLatch checkingOut, CountDownLatch release) {
+		boolean[] isClosed = new boolean[1];
+		return (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {DataSource.class, Closeable.class}, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "close":
+					isClosed[0] = true;
+					closed.add(tenant);
+					return null;
+				case "getConnection":
+					if (isClosed[0]) {
+						throw new SQLException("HikariDataSource has been closed");
+					}
+					checkingOut.countDown();
+					release.await();
+					return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Connection.class}, (p, m, a) -> null);
+				case "toString":
+					return String.valueOf(tenant);
+				default:
+					throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+
+	private DataSource pool(Object tenant) {
+		return (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {DataSource.class, Closeable.class}, (proxy, method, args) -> {
+			if ("close".equals(method.getName())) {
+				closed.add(tenant);
+				return null;
+			}
+			if ("toString".equals(method.getName())) {
+				return String.valueOf(tenant);
+			}
+			throw new UnsupportedOperationException(method.getName());
+		});
+	}
+}
@@ -0,0 +1,258 @@
+/**
+ * Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.amazon.aws.partners.saasfactory.pgrls;
+
+import com.amazon.aws.partners.saasfactory.pgrls.controller.TenantController;
+import com.amazon.aws.partners.saasfactory.pgrls.domain.Tenant;
+import com.amazon.aws.partners.saasfactory.pgrls.domain.User;
+import com.amazon.aws.partners.saasfactory.pgrls.repository.DataSourceRepository;
+import com.amazon.aws.partners.saasfactory.pgrls.service.TenantService;
+import com.amazon.aws.partners.saasfactory.pgrls.service.TenantServiceImpl;
+import org.junit.Test;
+import org.springframework.util.ReflectionUtils;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.sql.DataSource;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.*;
+
+public class TenantExportTest {
+
+	private final UUID tenantId = UUID.randomUUID();
+	private final List<User> users = Arrays.asList(
+			user("00000000-0000-0000-0000-000000000001", "ada@example.com", "Ada", "Lovelace"),
+			user("00000000-0000-0000-0000-000000000002", "grace@example.com", "Grace \"Amazing\"", "Hopper, Jr."));
+	private final Map<String, Object> response = new HashMap<>();
+	private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+	@Test
+	public void exportsCsv() throws Exception {
+		controller().exportUsers(tenantId.toString(), "csv", response());
+		assertEquals("text/csv", response.get("setContentType"));
+		assertEquals("attachment; filename=\"users-" + tenantId + ".csv\"", response.get("Content-Disposition"));
+		assertEquals("user_id,tenant_id,email,given_name,family_name\n"
+				+ "00000000-0000-0000-0000-000000000001," + tenantId + ",ada@example.com,Ada,Lovelace\n"
+				+ "00000000-0000-0000-0000-000000000002," + tenantId + ",grace@example.com,\"Grace \"\"Amazing\"\"\",\"Hopper, Jr.\"\n",
+				body.toString(StandardCharsets.UTF_8.name()));
+	}
+
+	@Test
+	public void exportsNdjson() throws Exception {
+		controller().exportUsers(tenantId.toString(), "ndjson", response());
+		assertEquals("application/x-ndjson", response.get("setContentType"));
+		assertEquals("{\"user_id\":\"00000000-0000-0000-0000-000000000001\",\"tenant_id\":\"" + tenantId + "\",\"email\":\"ada@example.com\",\"given_name\":\"Ada\",\"family_name\":\"Lovelace\"}\n"
+				+ "{\"user_id\":\"00000000-0000-0000-0000-000000000002\",\"tenant_id\":\"" + tenantId + "\",\"email\":\"grace@example.com\",\"given_name\":\"Grace \\\"Amazing\\\"\",\"family_name\":\"Hopper, Jr.\"}\n",
+				body.toString(StandardCharsets.UTF_8.name()));
+	}
+
+	@Test
+	public void refusesUnknownFormatsAndTenants() throws Exception {
+		controller().exportUsers(tenantId.toString(), "xml", response());
+		assertEquals(400, response.get("sendError"));
+		controller().exportUsers(UUID.randomUUID().toString(), "csv", response());
+		assertEquals(404, response.get("sendError"));
+		assertEquals(0, body.size());
+	}
+
+	@Test
+	public void serviceStreamsFromACursorInATransaction() throws Exception {
+		List<String> log = new ArrayList<>();
+		TenantServiceImpl service = new TenantServiceImpl();
+		DataSource database = database(log);
+		inject(service, "repo", new DataSourceRepository() {
+			@Override
+			public DataSource readDataSource() {
+				return database;
+			}
+
+			@Override
+			public boolean isReplica(DataSource dataSource) {
+				return dataSource == database;
+			}
+		});
+		inject(service, "exportFetchSize", 2);
+
+		List<String> exported = new ArrayList<>();
+		service.exportUsers(tenantId, user -> {
+			log.add("row " + user.getEmail());
+			exported.add(user.getEmail() + " " + user.getTenant().getId());
+		});
+		assertEquals(Arrays.asList("ada@example.com " + tenantId, "grace@example.com " + tenantId), exported);
+		// pgjdbc only uses a cursor when there's a fetch size and autocommit is off
+		assertEquals(Arrays.asList("setAutoCommit false", "setFetchSize 2", "executeQuery autoCommit=false",
+				"row ada@example.com", "row grace@example.com", "commit"), log.subList(0, 6));
+	}
+
+	private TenantController controller() {
+		TenantController controller = new TenantController();
+		inject(controller, "tenantService", Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {TenantService.class}, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "getTenant":
+					return tenantId.equals(args[0]) ? new Tenant(tenantId) : null;
+				case "exportUsers":
+					@SuppressWarnings("unchecked")
+					Consumer<User> consumer = (Consumer<User>) args[1];
+					users.forEach(consumer);
+					return null;
+				default:
+					throw new UnsupportedOperationException(method.getName());
+			}
+		}));
+		return controller;
+	}
+
+	private HttpServletResponse response() {
+		ServletOutputStream out = new ServletOutputStream() {
+			@Override
+			public void write(int b) {
+				body.write(b);
+			}
+
+			@Override
+			public boolean isReady() {
+				return true;
+			}
+
+			@Override
+			public void setWriteListener(WriteListener listener) {
+			}
+		};
+		return (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {HttpServletResponse.class}, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "getOutputStream":
+					return out;
+				case "setHeader":
+					response.put((String) args[0], args[1]);
+					return null;
+				default:
+					response.put(method.getName(), args != null && args.length > 0 ? args[0] : null);
+					return null;
+			}
+		});
+	}
+
+	// One connection whose statement returns the users and logs what the export did to it
+	private DataSource database(List<String> log) {
+		boolean[] autoCommit = {true};
+		Connection connection = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Connection.class}, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "getAutoCommit":
+					return autoCommit[0];
+				case "setAutoCommit":
+					autoCommit[0] = (Boolean) args[0];
+					log.add("setAutoCommit " + args[0]);
+					return null;
+				case "prepareStatement":
+					return statement(log, autoCommit);
+				case "commit":
+				case "rollback":
+					log.add(method.getName());
+					return null;
+				case "isReadOnly":
+				case "isClosed":
+					return false;
+				default:
+					return null;
+			}
+		});
+		return (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {DataSource.class}, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "getConnection":
+					return connection;
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "equals":
+					return proxy == args[0];
+				default:
+					throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+
+	private PreparedStatement statement(List<String> log, boolean[] autoCommit) {
+		return (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {PreparedStatement.class}, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "setFetchSize":
+					log.add("setFetchSize " + args[0]);
+					return null;
+				case "executeQuery":
+					log.add("executeQuery autoCommit=" + autoCommit[0]);
+					return resultSet();
+				default:
+					return null;
+			}
+		});
+	}
+
+	private ResultSet resultSet() {
+		int[] row = {0};
+		return (ResultSet) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {ResultSet.class}, (proxy, method, args) -> {
+			User user = row[0] > 0 && row[0] <= users.size() ? users.get(row[0] - 1) : null;
+			switch (method.getName()) {
+				case "next":
+					return ++row[0] <= users.size();
+				case "getRow":
+					return row[0];
+				case "getObject":
+					return "user_id".equals(args[0]) ? user.getId() : tenantId;
+				case "getString":
+					switch ((String) args[0]) {
+						case "email":
+							return user.getEmail();
+						case "given_name":
+							return user.getGivenName();
+						default:
+							return user.getFamilyName();
+					}
+				default:
+					return null;
+			}
+		});
+	}
+
+	private User user(String id, String email, String givenName, String familyName) {
+		User user = new User();
+		user.setId(UUID.fromString(id));
+		user.setEmail(email);
+		user.setGivenName(givenName);
+		user.setFamilyName(familyName);
+		user.setTenant(new Tenant(tenantId));
+		return user;
+	}
+
+	private static void inject(Object target, String name, Object value) {
+		Field field = ReflectionUtils.findField(target.getClass(), name);
+		ReflectionUtils.makeAccessible(field);
+		ReflectionUtils.setField(field, target, value);
+	}
+}
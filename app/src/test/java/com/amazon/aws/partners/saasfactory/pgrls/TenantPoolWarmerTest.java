@@ -0,0 +1,219 @@
+/**
+ * Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.amazon.aws.partners.saasfactory.pgrls;
+
+import com.amazon.aws.partners.saasfactory.pgrls.configuration.TenantAuthenticationProvider;
+import com.amazon.aws.partners.saasfactory.pgrls.configuration.TenantPoolWarmer;
+import com.amazon.aws.partners.saasfactory.pgrls.controller.RootController;
+import com.amazon.aws.partners.saasfactory.pgrls.domain.Tenant;
+import com.amazon.aws.partners.saasfactory.pgrls.domain.Tier;
+import com.amazon.aws.partners.saasfactory.pgrls.repository.DataSourceRepository;
+import com.amazon.aws.partners.saasfactory.pgrls.repository.Isolation;
+import com.amazon.aws.partners.saasfactory.pgrls.repository.TenantDataSourceCache;
+import com.amazon.aws.partners.saasfactory.pgrls.service.AdminService;
+import org.junit.Test;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.util.ReflectionUtils;
+
+import javax.sql.DataSource;
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TenantPoolWarmerTest {
+
+	private final Tenant gold = tenant(Tier.Gold);
+	private final Tenant silver = tenant(Tier.Silver);
+	private final Map<UUID, CompletableFuture<Void>> warming = new HashMap<>();
+	private final BlockingQueue<Thread> logins = new LinkedBlockingQueue<>();
+
+	@Test
+	public void warmOpensAConnectionAndGivesItBack() throws Exception {
+		AtomicInteger closed = new AtomicInteger();
+		DataSourceRepository repo = repository(Isolation.Pool);
+		repo.getDataSourceTargets().get(gold.getId(), tenant -> pool(closed, false));
+
+		repo.warm(gold).get(5, TimeUnit.SECONDS);
+		assertEquals(1, closed.get());
+	}
+
+	@Test
+	public void warmFailsWhenThePoolCantConnect() throws Exception {
+		DataSourceRepository repo = repository(Isolation.Pool);
+		repo.getDataSourceTargets().get(gold.getId(), tenant -> pool(new AtomicInteger(), true));
+		try {
+			repo.warm(gold).get(5, TimeUnit.SECONDS);
+			fail("Expected warming to fail");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof SQLException);
+		}
+	}
+
+	@Test
+	public void nothingToWarmWithoutATenantPool() {
+		DataSourceRepository shared = repository(Isolation.Shared);
+		assertTrue(shared.warm(gold).isDone());
+		DataSourceRepository tier = repository(Isolation.Tier);
+		assertTrue(tier.warm(silver).isDone());
+		assertEquals(0, shared.getDataSourceTargets().size() + tier.getDataSourceTargets().size());
+	}
+
+	@Test
+	public void healthWaitsForTheHotTenants() {
+		warming.put(gold.getId(), new CompletableFuture<>());
+		warming.put(silver.getId(), new CompletableFuture<>());
+		TenantPoolWarmer warmer = warmer(10, 60);
+		RootController controller = controller(warmer);
+		warmer.onApplicationEvent(null);
+		assertEquals(503, controller.health().getStatusCodeValue());
+
+		warming.get(gold.getId()).complete(null);
+		assertEquals(503, controller.health().getStatusCodeValue());
+		// A tenant whose pool couldn't be built doesn't hold up the rest
+		warming.get(silver.getId()).completeExceptionally(new SQLException("refused"));
+		assertEquals(200, controller.health().getStatusCodeValue());
+	}
+
+	@Test
+	public void healthGivesUpWaitingAfterTheTimeout() throws Exception {
+		warming.put(gold.getId(), new CompletableFuture<>());
+		warming.put(silver.getId(), CompletableFuture.completedFuture(null));
+		TenantPoolWarmer warmer = warmer(10, 1);
+		RootController controller = controller(warmer);
+		warmer.onApplicationEvent(null);
+		assertEquals(503, controller.health().getStatusCodeValue());
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!warmer.isWarm() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		assertEquals(200, controller.health().getStatusCodeValue());
+	}
+
+	@Test
+	public void healthyRightAwayWhenWarmingIsOff() {
+		TenantPoolWarmer warmer = warmer(0, 60);
+		warmer.onApplicationEvent(null);
+		assertEquals(200, controller(warmer).health().getStatusCodeValue());
+	}
+
+	@Test
+	public void loginIsRecordedOffTheLoginThreadEvenWhenWarmingFails() throws Exception {
+		CompletableFuture<Void> failed = new CompletableFuture<>();
+		failed.completeExceptionally(new SQLException("refused"));
+		warming.put(gold.getId(), failed);
+		TenantAuthenticationProvider provider = new TenantAuthenticationProvider();
+		inject(provider, "adminService", adminService());
+		inject(provider, "dataSourceRepository", stubRepository());
+
+		assertSame(gold, provider.authenticate(new UsernamePasswordAuthenticationToken("tenant", gold.getId().toString())).getPrincipal());
+		Thread recordedOn = logins.poll(5, TimeUnit.SECONDS);
+		assertNotNull("Login was recorded", recordedOn);
+		assertNotSame("Recorded off the login thread", Thread.currentThread(), recordedOn);
+	}
+
+	private TenantPoolWarmer warmer(int count, long timeoutSeconds) {
+		TenantPoolWarmer warmer = new TenantPoolWarmer();
+		inject(warmer, "adminService", adminService());
+		inject(warmer, "dataSourceRepository", stubRepository());
+		inject(warmer, "count", count);
+		inject(warmer, "timeoutSeconds", timeoutSeconds);
+		return warmer;
+	}
+
+	private RootController controller(TenantPoolWarmer warmer) {
+		RootController controller = new RootController();
+		inject(controller, "tenantPoolWarmer", warmer);
+		return controller;
+	}
+
+	private DataSourceRepository repository(Isolation isolation) {
+		DataSourceRepository repo = new DataSourceRepository();
+		inject(repo, "isolation", isolation);
+		inject(repo, "dataSourceTargets", new TenantDataSourceCache(10, 0));
+		return repo;
+	}
+
+	// Hands back the futures the test completes instead of building real pools
+	private DataSourceRepository stubRepository() {
+		DataSourceRepository repo = new DataSourceRepository() {
+			@Override
+			public CompletableFuture<Void> warm(Tenant tenant) {
+				return warming.get(tenant.getId());
+			}
+		};
+		inject(repo, "dataSourceTargets", new TenantDataSourceCache(10, 0));
+		return repo;
+	}
+
+	private AdminService adminService() {
+		return (AdminService) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {AdminService.class}, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "getHotTenants":
+					return Arrays.asList(gold, silver).subList(0, Math.min(2, (Integer) args[0]));
+				case "getTenant":
+					return gold.getId().equals(args[0]) ? gold : null;
+				case "recordLogin":
+					logins.add(Thread.currentThread());
+					return null;
+				default:
+					throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+
+	private static DataSource pool(AtomicInteger closed, boolean refuse) {
+		return (DataSource) Proxy.newProxyInstance(TenantPoolWarmerTest.class.getClassLoader(), new Class<?>[] {DataSource.class}, (proxy, method, args) -> {
+			if (!"getConnection".equals(method.getName())) {
+				return null;
+			}
+			if (refuse) {
+				throw new SQLException("Connection refused");
+			}
+			return Proxy.newProxyInstance(TenantPoolWarmerTest.class.getClassLoader(), new Class<?>[] {Connection.class}, (p, m, a) -> {
+				if ("close".equals(m.getName())) {
+					closed.incrementAndGet();
+				}
+				return null;
+			});
+		});
+	}
+
+	private static void inject(Object target, String name, Object value) {
+		Field field = ReflectionUtils.findField(target.getClass(), name);
+		ReflectionUtils.makeAccessible(field);
+		ReflectionUtils.setField(field, target, value);
+	}
+
+	private static Tenant tenant(Tier tier) {
+		Tenant tenant = new Tenant(UUID.randomUUID());
+		tenant.setTier(tier);
+		return tenant;
+	}
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.amazon.aws.partners.saasfactory.pgrls;
+
+import com.amazon.aws.partners.saasfactory.pgrls.domain.Tenant;
+import com.amazon.aws.partners.saasfactory.pgrls.repository.TenantAwareDataSource;
+import com.amazon.aws.partners.saasfactory.pgrls.repository.TenantDataSourceCache;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import javax.sql.DataSource;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of resolving a tenant's connection pool when the routing table is rebuilt on every
+ * request (setTargetDataSources + afterPropertiesSet) against resolving it straight from the pool cache.
+ * Database round-trips are stubbed out so only the routing cost is measured.
+ *
+ * Not part of the regular test run. Run it with: mvn test -Dtest=TenantRoutingBenchmark
+ */
+public class TenantRoutingBenchmark {
+
+	private static final long RUN_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+	@After
+	public void tearDown() {
+		SecurityContextHolder.clearContext();
+	}
+
+	@Test
+	public void routingLookup() throws SQLException {
+		System.out.println(String.format("%10s %20s %20s", "tenants", "rebuild ns/op", "registry ns/op"));
+		for (int tenants : new int[] {10, 1_000, 50_000}) {
+			TenantDataSourceCache cache = new TenantDataSourceCache(tenants, 0);
+			UUID current = null;
+			for (int i = 0; i < tenants; i++) {
+				current = UUID.randomUUID();
+				cache.get(current, tenant -> pool());
+			}
+			Tenant tenant = new Tenant(current);
+			SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken(tenant, current, new ArrayList<>()));
+
+			// What DataSourceRepository.dataSource() used to do for every query
+			AbstractRoutingDataSource rebuild = new AbstractRoutingDataSource() {
+				@Override
+				protected Object determineCurrentLookupKey() {
+					return ((Tenant) SecurityContextHolder.getContext().getAuthentication().getPrincipal()).getId();
+				}
+			};
+			double rebuildNanos = measure(() -> {
+				rebuild.setTargetDataSources(cache.asMap());
+				rebuild.afterPropertiesSet();
+				rebuild.getConnection().close();
+			});
+
+			TenantAwareDataSource registry = new TenantAwareDataSource();
+			registry.setTargetResolver(key -> cache.get(key, key2 -> pool()));
+			registry.setTargetDataSources(Collections.emptyMap());
+			registry.afterPropertiesSet();
+			double registryNanos = measure(() -> registry.getConnection().close());
+
+			System.out.println(String.format("%10d %20.0f %20.0f", tenants, rebuildNanos, registryNanos));
+			cache.close();
+		}
+	}
+
+	private static double measure(Op op) throws SQLException {
+		// Warm up then time as many operations as fit in the run window
+		long end = System.nanoTime() + RUN_NANOS / 4;
+		while (System.nanoTime() < end) {
+			op.run();
+		}
+		long count = 0;
+		long start = System.nanoTime();
+		end = start + RUN_NANOS;
+		long now;
+		do {
+			op.run();
+			count++;
+		} while ((now = System.nanoTime()) < end);
+		return (double) (now - start) / count;
+	}
+
+	private interface Op {
+		void run() throws SQLException;
+	}
+
+	private static DataSource pool() {
+		Connection connection = (Connection) Proxy.newProxyInstance(TenantRoutingBenchmark.class.getClassLoader(), new Class<?>[] {Connection.class}, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "prepareStatement":
+					return Proxy.newProxyInstance(TenantRoutingBenchmark.class.getClassLoader(), new Class<?>[] {PreparedStatement.class}, (p, m, a) -> "execute".equals(m.getName()) ? true : null);
+				case "unwrap":
+					return proxy;
+				case "getAutoCommit":
+					return true;
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "equals":
+					return proxy == args[0];
+				default:
+					return null;
+			}
+		});
+		return (DataSource) Proxy.newProxyInstance(TenantRoutingBenchmark.class.getClassLoader(), new Class<?>[] {DataSource.class}, (proxy, method, args) -> {
+			if ("getConnection".equals(method.getName())) {
+				return connection;
+			}
+			return null;
+		});
+	}
+}
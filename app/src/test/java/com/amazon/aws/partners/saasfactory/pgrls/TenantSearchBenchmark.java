@@ -0,0 +1,140 @@
+/**
+ * Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.amazon.aws.partners.saasfactory.pgrls;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.UUID;
+
+/**
+ * Latency of the trigram backed user search for one tenant with a million users, against loading every user
+ * of the tenant as the page used to. Queries run as the application user so RLS is in the plan. The users are
+ * created as the admin user and removed again afterwards.
+ *
+ * Needs a database bootstrapped by the application. Not part of the regular test run:
+ *
+ * BENCHMARK_DB_URL=jdbc:postgresql://localhost:5432/rls BENCHMARK_DB_USER=app BENCHMARK_DB_PASS=...
+ * BENCHMARK_ADMIN_USER=postgres BENCHMARK_ADMIN_PASS=... mvn test -Dtest=TenantSearchBenchmark
+ */
+public class TenantSearchBenchmark {
+
+	private static final int USERS = 1_000_000;
+	private static final int ITERATIONS = 20;
+	private static final int PAGE_SIZE = 50;
+	// Same statement TenantServiceImpl.searchUsers runs
+	private static final String SEARCH = "SELECT t.tenant_id, t.name, t.status, t.tier, u.user_id, u.email, u.given_name, u.family_name FROM tenant t " +
+			"LEFT JOIN LATERAL (SELECT user_id, email, given_name, family_name FROM tenant_user WHERE tenant_id = t.tenant_id " +
+			"AND ((email || ' ' || given_name || ' ' || family_name) ILIKE ? OR ? <% (email || ' ' || given_name || ' ' || family_name)) " +
+			"ORDER BY user_id LIMIT ?) u ON true WHERE t.tenant_id = ? ORDER BY u.user_id";
+
+	private final UUID tenantId = UUID.randomUUID();
+	private Connection admin;
+
+	@After
+	public void tearDown() throws SQLException {
+		if (admin != null) {
+			try (PreparedStatement sql = admin.prepareStatement("DELETE FROM tenant_user WHERE tenant_id = ?")) {
+				sql.setObject(1, tenantId);
+				sql.executeUpdate();
+			}
+			try (PreparedStatement sql = admin.prepareStatement("DELETE FROM tenant WHERE tenant_id = ?")) {
+				sql.setObject(1, tenantId);
+				sql.executeUpdate();
+			}
+			admin.close();
+		}
+	}
+
+	@Test
+	public void searchOneMillionUsers() throws SQLException {
+		String url = System.getenv("BENCHMARK_DB_URL");
+		Assume.assumeTrue("BENCHMARK_DB_URL not set", url != null);
+		Assume.assumeTrue("BENCHMARK_ADMIN_USER not set", System.getenv("BENCHMARK_ADMIN_USER") != null);
+
+		admin = DriverManager.getConnection(url, System.getenv("BENCHMARK_ADMIN_USER"), System.getenv("BENCHMARK_ADMIN_PASS"));
+		seed();
+
+		try (Connection connection = DriverManager.getConnection(url, System.getenv("BENCHMARK_DB_USER"), System.getenv("BENCHMARK_DB_PASS"))) {
+			try (Statement sql = connection.createStatement()) {
+				sql.execute("SELECT set_config('app.current_tenant', '" + tenantId + "', false)");
+			}
+			System.out.println(String.format("%-30s %10s %12s", "query", "rows", "avg ms"));
+			time(connection, "load all users", null);
+			time(connection, "email contains 'r123456'", "r123456");
+			time(connection, "name prefix 'Mar'", "Mar");
+			time(connection, "domain 'example42.com'", "example42.com");
+			time(connection, "typo 'Jonhson'", "Jonhson");
+			time(connection, "no match 'zzqxv'", "zzqxv");
+		}
+	}
+
+	private void seed() throws SQLException {
+		try (PreparedStatement sql = admin.prepareStatement("INSERT INTO tenant (tenant_id, name, status, tier) VALUES (?, ?, 'Active', 'Gold')")) {
+			sql.setObject(1, tenantId);
+			sql.setString(2, "Search Benchmark " + tenantId);
+			sql.executeUpdate();
+		}
+		try (PreparedStatement sql = admin.prepareStatement("INSERT INTO tenant_user (tenant_id, email, given_name, family_name) " +
+				"SELECT ?, 'user' || i || '@example' || (i % 100) || '.com', " +
+				"(ARRAY['Maria', 'James', 'Mark', 'Linda', 'Robert', 'Martha', 'David', 'Susan'])[i % 8 + 1], " +
+				"(ARRAY['Johnson', 'Smith', 'Garcia', 'Miller', 'Davis', 'Martinez', 'Wilson', 'Anderson'])[i % 7 + 1] || i % 1000 " +
+				"FROM generate_series(1, ?) i")) {
+			sql.setObject(1, tenantId);
+			sql.setInt(2, USERS);
+			sql.executeUpdate();
+		}
+		try (Statement sql = admin.createStatement()) {
+			sql.execute("ANALYZE tenant_user");
+		}
+	}
+
+	private void time(Connection connection, String label, String query) throws SQLException {
+		long rows = 0;
+		long elapsed = 0;
+		int iterations = query != null ? ITERATIONS : 1;
+		for (int i = 0; i < iterations; i++) {
+			long start = System.nanoTime();
+			try (PreparedStatement sql = connection.prepareStatement(query != null ? SEARCH
+					: "SELECT tenant_id, user_id, email, given_name, family_name FROM tenant_user WHERE tenant_id = ?")) {
+				if (query != null) {
+					sql.setString(1, "%" + query + "%");
+					sql.setString(2, query);
+					sql.setInt(3, PAGE_SIZE + 1);
+					sql.setObject(4, tenantId);
+				} else {
+					sql.setObject(1, tenantId);
+				}
+				rows = 0;
+				try (ResultSet rs = sql.executeQuery()) {
+					while (rs.next()) {
+						rows++;
+					}
+				}
+			}
+			elapsed += System.nanoTime() - start;
+		}
+		System.out.println(String.format("%-30s %10d %12.1f", label, rows, elapsed / 1_000_000.0 / iterations));
+	}
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.amazon.aws.partners.saasfactory.pgrls;
+
+import com.amazon.aws.partners.saasfactory.pgrls.configuration.TenantTokens;
+import com.amazon.aws.partners.saasfactory.pgrls.domain.Status;
+import com.amazon.aws.partners.saasfactory.pgrls.domain.Tenant;
+import com.amazon.aws.partners.saasfactory.pgrls.domain.Tier;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class TenantTokensTest {
+
+	private static final String SECRET = "0123456789abcdef0123456789abcdef";
+	private static final long TTL = 900000;
+	private static final long MAX_AGE = 3600000;
+
+	private final Instant now = Instant.parse("2024-01-01T00:00:00Z");
+
+	@Test
+	public void roundTrip() {
+		Tenant tenant = tenant("Acme | Widgets");
+		TenantTokens tokens = new TenantTokens(SECRET, TTL, MAX_AGE, at(now));
+		TenantTokens.Verified verified = tokens.verify(tokens.issue(tenant));
+		assertNotNull(verified);
+		assertEquals(tenant.getId(), verified.getTenant().getId());
+		assertEquals("Delimiter in the name survives", tenant.getName(), verified.getTenant().getName());
+		assertEquals(Tier.Gold, verified.getTenant().getTier());
+		assertEquals(Status.Active, verified.getTenant().getStatus());
+		assertFalse(tokens.isStale(verified));
+	}
+
+	@Test
+	public void rejectsTampering() {
+		TenantTokens tokens = new TenantTokens(SECRET, TTL, MAX_AGE, at(now));
+		String token = tokens.issue(tenant("Acme"));
+		String other = tokens.issue(tenant("Other"));
+		String swapped = other.substring(0, other.indexOf('.')) + token.substring(token.indexOf('.'));
+		assertNull("Payload signed for another tenant", tokens.verify(swapped));
+		assertNull("Garbage", tokens.verify("not-a-token"));
+		assertNull("Different secret", new TenantTokens(SECRET.replace('0', 'x'), TTL, MAX_AGE, at(now)).verify(token));
+	}
+
+	@Test
+	public void expires() {
+		String token = new TenantTokens(SECRET, TTL, MAX_AGE, at(now)).issue(tenant("Acme"));
+		TenantTokens.Verified halfway = new TenantTokens(SECRET, TTL, MAX_AGE, at(now.plus(Duration.ofMinutes(10)))).verify(token);
+		assertNotNull(halfway);
+		assertTrue("Refreshed once more than half the lifetime has gone", new TenantTokens(SECRET, TTL, MAX_AGE, at(now.plus(Duration.ofMinutes(10)))).isStale(halfway));
+		assertNull(new TenantTokens(SECRET, TTL, MAX_AGE, at(now.plus(Duration.ofMinutes(15)))).verify(token));
+	}
+
+	@Test
+	public void renewalCarriesCurrentTenantButNotPastMaxAge() {
+		Tenant tenant = tenant("Acme");
+		String token = new TenantTokens(SECRET, TTL, MAX_AGE, at(now)).issue(tenant);
+		// Keep renewing every 10 minutes, as an active tenant would
+		for (int minutes = 10; minutes < 60; minutes += 10) {
+			TenantTokens tokens = new TenantTokens(SECRET, TTL, MAX_AGE, at(now.plus(Duration.ofMinutes(minutes))));
+			TenantTokens.Verified verified = tokens.verify(token);
+			assertNotNull("Still valid after " + minutes + " minutes", verified);
+			if (tokens.isStale(verified)) {
+				tenant.setTier(Tier.Bronze);
+				token = tokens.renew(tenant, verified);
+			}
+		}
+		TenantTokens later = new TenantTokens(SECRET, TTL, MAX_AGE, at(now.plus(Duration.ofMinutes(55))));
+		TenantTokens.Verified verified = later.verify(token);
+		assertEquals("Renewal picked up the change", Tier.Bronze, verified.getTenant().getTier());
+		assertFalse("Can't be extended past the maximum age", later.isStale(verified));
+		assertNull(new TenantTokens(SECRET, TTL, MAX_AGE, at(now.plus(Duration.ofMinutes(60)))).verify(token));
+	}
+
+	@Test
+	public void sealsOtherValues() {
+		TenantTokens tokens = new TenantTokens(SECRET, TTL, MAX_AGE, at(now));
+		String sealed = tokens.seal("[{\"msg\":\"hi\"}]".getBytes(StandardCharsets.UTF_8));
+		assertEquals("[{\"msg\":\"hi\"}]", new String(tokens.open(sealed), StandardCharsets.UTF_8));
+		assertNull(tokens.open(sealed.replace('.', 'x')));
+		assertNull(tokens.open("e30." + sealed.substring(sealed.indexOf('.') + 1)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void requiresLongSecret() {
+		new TenantTokens("short", TTL, MAX_AGE);
+	}
+
+	private static Tenant tenant(String name) {
+		Tenant tenant = new Tenant(UUID.randomUUID());
+		tenant.setName(name);
+		tenant.setTier(Tier.Gold);
+		tenant.setStatus(Status.Active);
+		return tenant;
+	}
+
+	private static Clock at(Instant instant) {
+		return Clock.fixed(instant, ZoneOffset.UTC);
+	}
+}
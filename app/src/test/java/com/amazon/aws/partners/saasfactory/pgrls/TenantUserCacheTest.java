@@ -0,0 +1,162 @@
+/**
+ * Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.amazon.aws.partners.saasfactory.pgrls;
+
+import com.amazon.aws.partners.saasfactory.pgrls.domain.Tenant;
+import com.amazon.aws.partners.saasfactory.pgrls.domain.User;
+import com.amazon.aws.partners.saasfactory.pgrls.service.TenantUserCache;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+
+public class TenantUserCacheTest {
+
+	private final UUID tenantA = UUID.randomUUID();
+	private final UUID tenantB = UUID.randomUUID();
+	// Stands in for tenant_user, only returning rows the way RLS would for the authenticated tenant
+	private final Map<UUID, User> table = new HashMap<>();
+	private final AtomicInteger queries = new AtomicInteger();
+
+	@Test
+	public void crossTenantReadIsNullLikeRls() {
+		TenantUserCache cache = new TenantUserCache(10, 10);
+		User alice = user(tenantA, "alice@a.com");
+
+		assertEquals(alice.getId(), cache.getUser(tenantA, alice.getId(), load(tenantA, alice.getId())).getId());
+		assertEquals("Second read is cached", alice.getEmail(), cache.getUser(tenantA, alice.getId(), load(tenantA, alice.getId())).getEmail());
+		assertEquals(1, queries.get());
+
+		// Same answer as getUser gives tenant B straight from the database, and B's partition never sees the row
+		assertNull(load(tenantB, alice.getId()).get());
+		assertNull(cache.getUser(tenantB, alice.getId(), load(tenantB, alice.getId())));
+		assertNull("Misses aren't cached", cache.getUser(tenantB, alice.getId(), load(tenantB, alice.getId())));
+		assertEquals(4, queries.get());
+
+		assertTrue(cache.getUsers(tenantB, loadAll(tenantB)).isEmpty());
+		assertEquals(1, cache.getUsers(tenantA, loadAll(tenantA)).size());
+	}
+
+	@Test
+	public void neverCachesAnotherTenantsRow() {
+		TenantUserCache cache = new TenantUserCache(10, 10);
+		User alice = user(tenantA, "alice@a.com");
+		// A loader that ignores RLS must not get the row into tenant B's partition
+		Supplier<User> leaky = () -> {
+			queries.incrementAndGet();
+			return alice;
+		};
+		cache.getUser(tenantB, alice.getId(), leaky);
+		cache.getUser(tenantB, alice.getId(), leaky);
+		assertEquals(2, queries.get());
+	}
+
+	@Test
+	public void invalidateDropsTheTenant() {
+		TenantUserCache cache = new TenantUserCache(10, 10);
+		User alice = user(tenantA, "alice@a.com");
+		User bob = user(tenantB, "bob@b.com");
+		cache.getUser(tenantA, alice.getId(), load(tenantA, alice.getId()));
+		cache.getUser(tenantB, bob.getId(), load(tenantB, bob.getId()));
+
+		alice.setEmail("alice@example.com");
+		cache.invalidate(tenantA);
+		assertEquals("alice@example.com", cache.getUser(tenantA, alice.getId(), load(tenantA, alice.getId())).getEmail());
+		cache.getUser(tenantB, bob.getId(), load(tenantB, bob.getId()));
+		assertEquals("Other tenants keep their entries", 3, queries.get());
+	}
+
+	@Test
+	public void loadOverlappingInvalidateIsNotCached() {
+		TenantUserCache cache = new TenantUserCache(10, 10);
+		User alice = user(tenantA, "alice@a.com");
+		User stale = copy(alice);
+		alice.setEmail("alice@example.com");
+		cache.getUser(tenantA, alice.getId(), () -> {
+			cache.invalidate(tenantA);
+			return stale;
+		});
+		assertEquals("alice@example.com", cache.getUser(tenantA, alice.getId(), load(tenantA, alice.getId())).getEmail());
+	}
+
+	@Test
+	public void boundedPerTenantAndByTenants() {
+		TenantUserCache cache = new TenantUserCache(1, 2);
+		List<User> users = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			users.add(user(tenantA, i + "@a.com"));
+		}
+		users.forEach(user -> cache.getUser(tenantA, user.getId(), load(tenantA, user.getId())));
+		cache.getUser(tenantA, users.get(0).getId(), load(tenantA, users.get(0).getId()));
+		assertEquals("Least recently used user was evicted", 4, queries.get());
+		assertNull(cache.getUsers(tenantA, () -> null));
+		assertEquals("Too many users to cache the list", 3, cache.getUsers(tenantA, loadAll(tenantA)).size());
+
+		User bob = user(tenantB, "bob@b.com");
+		cache.getUser(tenantB, bob.getId(), load(tenantB, bob.getId()));
+		assertEquals(1, cache.getStats().get("tenants"));
+		assertEquals(1L, cache.getStats().get("evictions"));
+	}
+
+	@Test
+	public void returnsCopies() {
+		TenantUserCache cache = new TenantUserCache(10, 10);
+		User alice = user(tenantA, "alice@a.com");
+		cache.getUser(tenantA, alice.getId(), load(tenantA, alice.getId())).setEmail("changed");
+		assertEquals("alice@a.com", cache.getUser(tenantA, alice.getId(), load(tenantA, alice.getId())).getEmail());
+	}
+
+	private Supplier<User> load(UUID currentTenant, UUID userId) {
+		return () -> {
+			queries.incrementAndGet();
+			User user = table.get(userId);
+			return user != null && user.getTenant().getId().equals(currentTenant) ? copy(user) : null;
+		};
+	}
+
+	private Supplier<List<User>> loadAll(UUID currentTenant) {
+		return () -> {
+			queries.incrementAndGet();
+			List<User> users = new ArrayList<>();
+			table.values().stream().filter(user -> user.getTenant().getId().equals(currentTenant)).forEach(user -> users.add(copy(user)));
+			return users.isEmpty() ? Collections.emptyList() : users;
+		};
+	}
+
+	private User user(UUID tenantId, String email) {
+		User user = new User(UUID.randomUUID());
+		user.setTenant(new Tenant(tenantId));
+		user.setEmail(email);
+		table.put(user.getId(), user);
+		return user;
+	}
+
+	private static User copy(User user) {
+		User copy = new User(user.getId());
+		copy.setTenant(new Tenant(user.getTenant().getId()));
+		copy.setEmail(user.getEmail());
+		return copy;
+	}
+}
@@ -0,0 +1,432 @@
+/**
+ * Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.amazon.aws.partners.saasfactory.pgrls;
+
+import com.amazon.aws.partners.saasfactory.pgrls.domain.Tenant;
+import com.amazon.aws.partners.saasfactory.pgrls.domain.User;
+import com.amazon.aws.partners.saasfactory.pgrls.domain.UserBatchError;
+import com.amazon.aws.partners.saasfactory.pgrls.domain.UserBatchResult;
+import com.amazon.aws.partners.saasfactory.pgrls.domain.UserPage;
+import com.amazon.aws.partners.saasfactory.pgrls.repository.DataSourceRepository;
+import com.amazon.aws.partners.saasfactory.pgrls.repository.InvalidationBus;
+import com.amazon.aws.partners.saasfactory.pgrls.repository.TenantAwareDataSource;
+import com.amazon.aws.partners.saasfactory.pgrls.service.TenantServiceImpl;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.ReflectionUtils;
+
+import javax.sql.DataSource;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the tenant service's user queries and batch writes against a real database as the application user,
+ * so RLS and the unique email constraint behave as they do in production. Each test seeds its own tenants.
+ * The database tests are skipped without one:
+ *
+ * TEST_DB_URL=jdbc:postgresql://localhost:5432/rls TEST_DB_USER=app TEST_DB_PASS=... mvn test
+ */
+public class TenantUsersTest {
+
+	private final List<UUID> tenants = new ArrayList<>();
+	private JdbcTemplate jdbc;
+	private TransactionTemplate transactions;
+
+	@After
+	public void tearDown() {
+		SecurityContextHolder.clearContext();
+		for (UUID tenantId : tenants) {
+			asTenant(tenantId, sql -> {
+				sql.update("DELETE FROM tenant_user WHERE tenant_id = ?", tenantId);
+				sql.update("DELETE FROM tenant WHERE tenant_id = ?", tenantId);
+			});
+		}
+	}
+
+	@Test
+	public void saveUsersRejectsInvalidRowsBeforeTouchingTheDatabase() {
+		UUID tenantId = UUID.randomUUID();
+		authenticate(tenantId);
+		// Any SQL would fail, there's no database behind the repository
+		TenantServiceImpl service = service(null);
+
+		UserBatchResult result = service.saveUsers(Arrays.asList(
+				user(null, UUID.randomUUID(), "other@example.com", "Other", "Tenant"),
+				user(null, tenantId, "", "No", "Email"),
+				user(null, tenantId, "first@example.com", "", "Name"),
+				user(null, tenantId, "last@example.com", "Last", null)));
+		assertEquals(0, result.getInserted());
+		assertEquals(0, result.getUpdated());
+		assertEquals(Arrays.asList(
+				"Row 1 (other@example.com): new row violates row-level security policy for table \"tenant_user\"",
+				"Row 2: User email is required",
+				"Row 3 (first@example.com): User first name is required",
+				"Row 4 (last@example.com): User last name is required"), errors(result));
+		assertEquals("42501", result.getErrors().get(0).getSqlState());
+	}
+
+	@Test
+	public void saveUsersAcceptsWhatItCanAndRejectsTheRestRowByRow() {
+		UUID tenantId = tenant();
+		UUID otherTenantId = tenant();
+		UUID ada = seedUser(tenantId, "ada");
+		UUID bob = seedUser(tenantId, "bob");
+		UUID eve = seedUser(tenantId, "eve");
+		seedUser(otherTenantId, "carol");
+		seedUser(otherTenantId, "frank");
+		authenticate(tenantId);
+
+		User dave = user(null, tenantId, email(tenantId, "dave"), "Dave", "New");
+		UserBatchResult result = service(database()).saveUsers(Arrays.asList(
+				dave,
+				// Another tenant has the email. RLS hides that user but not the unique constraint.
+				user(null, tenantId, email(otherTenantId, "carol"), "Carol", "Taken"),
+				user(null, tenantId, email(tenantId, "dave"), "Dave", "Again"),
+				user(eve, tenantId, email(tenantId, "ada"), "Eve", "Taken"),
+				user(bob, tenantId, email(otherTenantId, "frank"), "Bob", "Taken"),
+				user(UUID.randomUUID(), tenantId, email(tenantId, "nobody"), "No", "Body"),
+				user(ada, tenantId, email(tenantId, "ada"), "Ada", "Renamed"),
+				user(null, otherTenantId, email(otherTenantId, "mallory"), "Mallory", "Cross")));
+
+		assertEquals(1, result.getInserted());
+		assertEquals(1, result.getUpdated());
+		assertNotNull(dave.getId());
+		List<UserBatchError> errors = new ArrayList<>(result.getErrors());
+		errors.sort((a, b) -> Long.compare(a.getRow(), b.getRow()));
+		assertEquals(Arrays.asList(2L, 3L, 4L, 5L, 6L, 8L), errors.stream().map(UserBatchError::getRow).collect(Collectors.toList()));
+		assertEquals(Arrays.asList("23505", null, "23505", "23505", null, "42501"), errors.stream().map(UserBatchError::getSqlState).collect(Collectors.toList()));
+		assertEquals(email(tenantId, "dave") + " is already in row 1 of this batch", errors.get(1).getMessage());
+
+		// The rejected updates didn't roll back the one that was accepted
+		asTenant(tenantId, sql -> {
+			Map<String, Object> renamed = sql.queryForMap("SELECT email, family_name FROM tenant_user WHERE user_id = ?", ada);
+			assertEquals(email(tenantId, "ada"), renamed.get("email"));
+			assertEquals("Renamed", renamed.get("family_name"));
+			assertEquals(email(tenantId, "bob"), sql.queryForObject("SELECT email FROM tenant_user WHERE user_id = ?", String.class, bob));
+			assertEquals(email(tenantId, "eve"), sql.queryForObject("SELECT email FROM tenant_user WHERE user_id = ?", String.class, eve));
+			assertEquals(Integer.valueOf(4), sql.queryForObject("SELECT count(*) FROM tenant_user", Integer.class));
+		});
+	}
+
+	@Test
+	public void tenantAndUsersComeBackFromOneQuery() {
+		UUID tenantId = tenant();
+		UUID emptyTenantId = tenant();
+		UUID otherTenantId = tenant();
+		UUID ada = seedUser(tenantId, "ada");
+		UUID bob = seedUser(tenantId, "bob");
+		seedUser(otherTenantId, "carol");
+		TenantServiceImpl service = service(database());
+
+		authenticate(tenantId);
+		Tenant tenant = service.getTenant(tenantId, true);
+		assertEquals("Users Test " + tenantId, tenant.getName());
+		assertEquals(new HashSet<>(Arrays.asList(ada, bob)), tenant.getUsers().stream().map(User::getId).collect(Collectors.toSet()));
+		assertTrue(tenant.getUsers().stream().allMatch(user -> tenantId.equals(user.getTenant().getId())));
+		// RLS hides the other tenant's row, so there's nothing to join its users to
+		assertNull(service.getTenant(otherTenantId, true));
+
+		// The outer join still returns the tenant when it has no users
+		authenticate(emptyTenantId);
+		Tenant empty = service.getTenant(emptyTenantId, true);
+		assertEquals(emptyTenantId, empty.getId());
+		assertTrue(empty.getUsers().isEmpty());
+	}
+
+	@Test
+	public void userPagesAskForOneMoreUserThanTheyHold() {
+		UUID tenantId = tenant();
+		List<UUID> ids = seedUsers(tenantId, 10, 20, 30, 40, 50, 60);
+		authenticate(tenantId);
+		TenantServiceImpl service = service(database());
+
+		UserPage first = service.getUserPage(tenantId, null, 3);
+		assertEquals(ids.subList(0, 3), ids(first));
+		assertEquals(ids.get(2), first.getNextCursor());
+		// Exactly a page left, so the extra row isn't there and this is the last page
+		UserPage second = service.getUserPage(tenantId, first.getNextCursor(), 3);
+		assertEquals(ids.subList(3, 6), ids(second));
+		assertNull(second.getNextCursor());
+		assertNull(service.getUserPage(tenantId, null, 6).getNextCursor());
+		assertEquals(ids.get(4), service.getUserPage(tenantId, null, 5).getNextCursor());
+		// Past the last user there's still the tenant
+		UserPage past = service.getUserPage(tenantId, ids.get(5), 3);
+		assertEquals(tenantId, past.getTenant().getId());
+		assertTrue(past.getUsers().isEmpty());
+		assertNull(past.getNextCursor());
+	}
+
+	@Test
+	public void userPagesStartStrictlyAfterTheCursor() {
+		UUID tenantId = tenant();
+		List<UUID> ids = seedUsers(tenantId, 10, 20, 30, 40);
+		authenticate(tenantId);
+		TenantServiceImpl service = service(database());
+
+		UserPage first = service.getUserPage(tenantId, null, 2);
+		assertEquals(ids.get(1), first.getNextCursor());
+		// The cursor's own user isn't repeated, even after it's gone. A user added before the cursor
+		// belongs to a page we've already seen and one added after it shows up next.
+		asTenant(tenantId, sql -> sql.update("DELETE FROM tenant_user WHERE user_id = ?", ids.get(1)));
+		UUID before = seedUser(tenantId, "before", new UUID(ids.get(0).getMostSignificantBits(), 15));
+		UUID after = seedUser(tenantId, "after", new UUID(ids.get(0).getMostSignificantBits(), 25));
+		UserPage second = service.getUserPage(tenantId, first.getNextCursor(), 2);
+		assertEquals(Arrays.asList(after, ids.get(2)), ids(second));
+		assertFalse(ids(second).contains(before));
+		assertEquals(ids.get(2), second.getNextCursor());
+	}
+
+	@Test
+	public void searchNeedsEnoughTextForATrigram() {
+		UUID tenantId = UUID.randomUUID();
+		authenticate(tenantId);
+		TenantServiceImpl service = service(null);
+		for (String query : new String[] {null, "", "ad", "  ad  "}) {
+			try {
+				service.searchUsers(tenantId, query, null, 10);
+				fail("Searched for " + query);
+			} catch (IllegalArgumentException e) {
+				assertEquals("Search for at least 3 characters", e.getMessage());
+			}
+		}
+	}
+
+	@Test
+	public void searchMatchesPartsOfWordsAndCloseMisspellings() {
+		UUID tenantId = tenant();
+		UUID otherTenantId = tenant();
+		UUID ada = seedUser(tenantId, UUID.randomUUID(), "ada", "Ada", "Lovelace");
+		UUID grace = seedUser(tenantId, UUID.randomUUID(), "grace", "Grace", "Hopper");
+		seedUser(otherTenantId, UUID.randomUUID(), "ada", "Ada", "Lovelace");
+		authenticate(tenantId);
+		TenantServiceImpl service = service(database());
+
+		// ILIKE finds text inside a word, whatever the case
+		assertEquals(Collections.singletonList(ada), ids(service.searchUsers(tenantId, "OVELA", null, 10)));
+		assertEquals(Collections.singletonList(grace), ids(service.searchUsers(tenantId, "hopp", null, 10)));
+		// No substring matches a typo, word similarity (<%) does
+		assertEquals(Collections.singletonList(ada), ids(service.searchUsers(tenantId, "Lovelase", null, 10)));
+		// LIKE wildcards in the query are matched literally
+		assertTrue(service.searchUsers(tenantId, "%%%", null, 10).getUsers().isEmpty());
+		assertTrue(service.searchUsers(tenantId, "___", null, 10).getUsers().isEmpty());
+
+		// Results page like the user list, and only ever hold the tenant's own users
+		UserPage first = service.searchUsers(tenantId, "example.com", null, 1);
+		assertEquals(1, first.getUsers().size());
+		UserPage second = service.searchUsers(tenantId, "example.com", first.getNextCursor(), 1);
+		assertEquals(1, second.getUsers().size());
+		assertNull(second.getNextCursor());
+		assertEquals(new HashSet<>(Arrays.asList(ada, grace)), new HashSet<>(Arrays.asList(first.getUsers().get(0).getId(), second.getUsers().get(0).getId())));
+	}
+
+	@Test
+	public void exportStreamsEveryUserThroughASmallerFetchSize() {
+		UUID tenantId = tenant();
+		UUID otherTenantId = tenant();
+		List<UUID> ids = seedUsers(tenantId, 10, 20, 30, 40, 50);
+		seedUsers(otherTenantId, 15, 25);
+		authenticate(tenantId);
+		// Fetches 2 rows at a time, so the cursor has to come back for more twice
+		TenantServiceImpl service = service(database());
+
+		List<UUID> exported = new ArrayList<>();
+		service.exportUsers(tenantId, user -> {
+			// pgjdbc only fetches in batches inside a transaction, session binding or not
+			assertTrue(TransactionSynchronizationManager.isActualTransactionActive());
+			assertEquals(tenantId, user.getTenant().getId());
+			exported.add(user.getId());
+		});
+		assertEquals(ids, exported);
+	}
+
+	@Test
+	public void saveUsersInsertsAcrossBatchesAndHandsBackTheIds() {
+		UUID tenantId = tenant();
+		authenticate(tenantId);
+		List<User> users = new ArrayList<>();
+		// Batches of 3, so two full batches and a partial one
+		for (int i = 0; i < 7; i++) {
+			users.add(user(null, tenantId, email(tenantId, "new" + i), "New", "User" + i));
+		}
+		UserBatchResult result = service(database()).saveUsers(users);
+
+		assertEquals(7, result.getInserted());
+		assertTrue(result.getErrors().isEmpty());
+		asTenant(tenantId, sql -> {
+			for (User user : users) {
+				assertNotNull(user.getEmail(), user.getId());
+				assertEquals(user.getEmail(), sql.queryForObject("SELECT email FROM tenant_user WHERE user_id = ?", String.class, user.getId()));
+			}
+		});
+	}
+
+	@Test
+	public void tenantVersionGoesUpWhenUsersChange() {
+		UUID tenantId = tenant();
+		authenticate(tenantId);
+		TenantServiceImpl service = service(database());
+
+		Long created = service.getTenantVersion(tenantId);
+		assertNotNull(created);
+		service.getUserPage(tenantId, null, 10);
+		assertEquals(created, service.getTenantVersion(tenantId));
+		service.saveUsers(Collections.singletonList(user(null, tenantId, email(tenantId, "ada"), "Ada", "Lovelace")));
+		Long saved = service.getTenantVersion(tenantId);
+		assertTrue(saved > created);
+		// One statement, one bump, however many rows it writes
+		asTenant(tenantId, sql -> sql.update("INSERT INTO tenant_user (tenant_id, email, given_name, family_name) VALUES (?, ?, 'Bob', 'Builder'), (?, ?, 'Eve', 'Builder')",
+				tenantId, email(tenantId, "bob"), tenantId, email(tenantId, "eve")));
+		assertEquals(Long.valueOf(saved + 1), service.getTenantVersion(tenantId));
+		// RLS hides the other tenant's slots
+		assertNull(service.getTenantVersion(tenant()));
+	}
+
+	private DataSource database() {
+		String url = System.getenv("TEST_DB_URL");
+		Assume.assumeTrue("TEST_DB_URL not set", url != null);
+		if (jdbc == null) {
+			DriverManagerDataSource dataSource = new DriverManagerDataSource(url, System.getenv("TEST_DB_USER"), System.getenv("TEST_DB_PASS"));
+			jdbc = new JdbcTemplate(dataSource);
+			transactions = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+		}
+		return jdbc.getDataSource();
+	}
+
+	// The service as the application wires it, minus the replica and the other instances
+	private TenantServiceImpl service(DataSource database) {
+		TenantAwareDataSource dataSource = new TenantAwareDataSource();
+		dataSource.setTargetResolver(tenant -> database);
+		dataSource.setTargetDataSources(Collections.emptyMap());
+		dataSource.afterPropertiesSet();
+		TenantServiceImpl service = new TenantServiceImpl();
+		inject(service, "repo", new DataSourceRepository() {
+			@Override
+			public DataSource dataSource() {
+				return dataSource;
+			}
+
+			@Override
+			public DataSource readDataSource() {
+				return dataSource;
+			}
+
+			@Override
+			public void markWrite() {
+			}
+
+			@Override
+			public boolean isReplica(DataSource dataSource) {
+				return false;
+			}
+		});
+		inject(service, "invalidationBus", new InvalidationBus());
+		inject(service, "batchSize", 3);
+		inject(service, "exportFetchSize", 2);
+		service.init();
+		return service;
+	}
+
+	private UUID tenant() {
+		database();
+		UUID tenantId = UUID.randomUUID();
+		asTenant(tenantId, sql -> sql.update("INSERT INTO tenant (tenant_id, name, status, tier) VALUES (?, ?, 'Active', 'Gold')", tenantId, "Users Test " + tenantId));
+		tenants.add(tenantId);
+		return tenantId;
+	}
+
+	private UUID seedUser(UUID tenantId, String name) {
+		return seedUser(tenantId, name, UUID.randomUUID());
+	}
+
+	private UUID seedUser(UUID tenantId, String name, UUID userId) {
+		return seedUser(tenantId, userId, name, name, "Seeded");
+	}
+
+	private UUID seedUser(UUID tenantId, UUID userId, String name, String givenName, String familyName) {
+		asTenant(tenantId, sql -> sql.update("INSERT INTO tenant_user (user_id, tenant_id, email, given_name, family_name) VALUES (?, ?, ?, ?, ?)",
+				userId, tenantId, email(tenantId, name), givenName, familyName));
+		return userId;
+	}
+
+	// Users whose ids sort in the order given, which is the order pages return them in
+	private List<UUID> seedUsers(UUID tenantId, long... positions) {
+		long prefix = UUID.randomUUID().getMostSignificantBits();
+		List<UUID> ids = new ArrayList<>();
+		for (long position : positions) {
+			ids.add(seedUser(tenantId, "user" + position, new UUID(prefix, position)));
+		}
+		return ids;
+	}
+
+	private void asTenant(UUID tenantId, Consumer<JdbcTemplate> work) {
+		transactions.executeWithoutResult(status -> {
+			jdbc.queryForObject("SELECT set_config('app.current_tenant', ?, true)", String.class, tenantId.toString());
+			work.accept(jdbc);
+		});
+	}
+
+	private static void authenticate(UUID tenantId) {
+		SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken(new Tenant(tenantId), tenantId, new ArrayList<>()));
+	}
+
+	// Emails are unique across tenants so they carry the tenant id
+	private static String email(UUID tenantId, String name) {
+		return name + "@" + tenantId + ".example.com";
+	}
+
+	private static User user(UUID userId, UUID tenantId, String email, String givenName, String familyName) {
+		User user = new User();
+		user.setId(userId);
+		user.setTenant(new Tenant(tenantId));
+		user.setEmail(email);
+		user.setGivenName(givenName);
+		user.setFamilyName(familyName);
+		return user;
+	}
+
+	private static List<UUID> ids(UserPage page) {
+		return page.getUsers().stream().map(User::getId).collect(Collectors.toList());
+	}
+
+	private static List<String> errors(UserBatchResult result) {
+		return result.getErrors().stream().map(UserBatchError::toString).collect(Collectors.toList());
+	}
+
+	private static void inject(Object target, String name, Object value) {
+		Field field = ReflectionUtils.findField(target.getClass(), name);
+		ReflectionUtils.makeAccessible(field);
+		ReflectionUtils.setField(field, target, value);
+	}
+}
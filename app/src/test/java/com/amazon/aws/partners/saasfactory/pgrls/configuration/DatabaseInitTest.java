@@ -0,0 +1,118 @@
+/**
+ * Copyright 2019 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this
+ * software and associated documentation files (the "Software"), to deal in the Software
+ * without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ * INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.amazon.aws.partners.saasfactory.pgrls.configuration;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+// In the same package as DatabaseInit to get at the migration ledger logic without a database
+public class DatabaseInitTest {
+
+	private Path dir;
+
+	@Before
+	public void createDir() throws IOException {
+		dir = Files.createTempDirectory("migrations");
+		dir.toFile().deleteOnExit();
+	}
+
+	@Test
+	public void ordersByVersionNumber() throws IOException {
+		write("V10__tenth.sql", "SELECT 10;");
+		write("V2__second_one.sql", "SELECT 2;");
+		write("V9__ninth.sql", "SELECT 9;");
+		List<DatabaseInit.Migration> migrations = load();
+		assertEquals("[2, 9, 10]", migrations.stream().map(m -> m.version).collect(Collectors.toList()).toString());
+		assertEquals("second one", migrations.get(0).description);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void refusesDuplicateVersions() throws IOException {
+		write("V2__one.sql", "SELECT 1;");
+		write("V02__other.sql", "SELECT 2;");
+		load();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void refusesBadNames() throws IOException {
+		write("V1__not-a-word.sql", "SELECT 1;");
+		load();
+	}
+
+	@Test
+	public void onlyUnappliedMigrationsArePending() throws IOException {
+		write("V1__first.sql", "SELECT 1;");
+		write("V2__second.sql", "SELECT 2;");
+		Map<Integer, String> applied = new HashMap<>();
+		assertEquals(2, DatabaseInit.pending(load(), applied).size());
+
+		applied.put(1, load().get(0).checksum);
+		List<DatabaseInit.Migration> pending = DatabaseInit.pending(load(), applied);
+		assertEquals(1, pending.size());
+		assertEquals(2, pending.get(0).version);
+	}
+
+	@Test
+	public void editedMigrationStopsStartup() throws IOException {
+		write("V1__first.sql", "CREATE TABLE a (id INT);\n\nCREATE TABLE b (id INT);\n");
+		Map<Integer, String> applied = new HashMap<>();
+		applied.put(1, load().get(0).checksum);
+
+		// Line endings alone don't count as an edit
+		write("V1__first.sql", "CREATE TABLE a (id INT);\r\n\r\nCREATE TABLE b (id INT);\r\n");
+		assertTrue(DatabaseInit.pending(load(), applied).isEmpty());
+
+		write("V1__first.sql", "CREATE TABLE a (id BIGINT);\n\nCREATE TABLE b (id INT);\n");
+		try {
+			DatabaseInit.pending(load(), applied);
+			fail("Expected the edited migration to be refused");
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("V1 first"));
+		}
+	}
+
+	@Test
+	public void shippedMigrationsLoad() {
+		List<DatabaseInit.Migration> migrations = DatabaseInit.loadMigrations();
+		assertFalse(migrations.isEmpty());
+		for (int i = 0; i < migrations.size(); i++) {
+			assertEquals("Versions have no gaps", i + 1, migrations.get(i).version);
+			assertFalse(migrations.get(i).statements().isEmpty());
+		}
+	}
+
+	private void write(String name, String script) throws IOException {
+		Path file = dir.resolve(name);
+		Files.write(file, script.getBytes(StandardCharsets.UTF_8));
+		file.toFile().deleteOnExit();
+	}
+
+	private List<DatabaseInit.Migration> load() {
+		return DatabaseInit.loadMigrations("file:" + dir.toAbsolutePath() + "/V*__*.sql");
+	}
+}